@@ -0,0 +1,77 @@
+package org.ofbiz.base.cache.redis;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.ofbiz.base.cache.redis.benchmark.BenchmarkEntities;
+import org.ofbiz.entity.GenericValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding of a Product value and of a 50 member list by each
+ * codec (entitycache.redis-codec).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheCodecBenchmark {
+
+	@Param({ "org.ofbiz.base.cache.redis.GenericValueCodec", "org.ofbiz.base.cache.redis.JavaSerializationCodec" })
+	public String codecClass;
+
+	private RedisCacheCodec codec;
+
+	private GenericValue value;
+
+	private List<GenericValue> list;
+
+	private byte[] encodedValue;
+
+	private byte[] encodedList;
+
+	@Setup
+	public void setup() throws Exception {
+		codec = (RedisCacheCodec) Class.forName(codecClass).newInstance();
+		value = BenchmarkEntities.makeProduct(42);
+		value.setImmutable();
+		list = BenchmarkEntities.makeCategoryMembers("CAT-7", 50);
+		for (GenericValue member : list) {
+			member.setImmutable();
+		}
+		encodedValue = codec.encode(value);
+		encodedList = codec.encode(list);
+	}
+
+	@Benchmark
+	public byte[] encodeValue() {
+		return codec.encode(value);
+	}
+
+	@Benchmark
+	public Object decodeValue() {
+		return codec.decode(encodedValue);
+	}
+
+	@Benchmark
+	public byte[] encodeList() {
+		return codec.encode(list);
+	}
+
+	@Benchmark
+	public Object decodeList() {
+		return codec.decode(encodedList);
+	}
+}
@@ -0,0 +1,77 @@
+package org.ofbiz.base.cache.redis;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.ofbiz.base.cache.redis.benchmark.BenchmarkEntities;
+import org.ofbiz.entity.GenericPK;
+import org.ofbiz.entity.condition.EntityCondition;
+import org.ofbiz.entity.condition.EntityOperator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the redis field names of cache entries, no redis involved.
+ * conditionKey builds a new but equal condition per call, as callers do, and
+ * is served by the fingerprint memo; conditionHash is the uncached walk of
+ * the condition tree.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RedisFieldKeyBenchmark {
+
+	private UtilRedisCache<Object, Object> cache;
+
+	private GenericPK pk;
+
+	private List<String> orderBy;
+
+	@Setup
+	public void setup() {
+		cache = new UtilRedisCache<Object, Object>("entitycache.entity-list.benchmark.ProductCategoryMember");
+		pk = BenchmarkEntities.makeProduct(42).getPrimaryKey();
+		orderBy = Arrays.asList("sequenceNum", "productId");
+	}
+
+	private static EntityCondition makeCondition() {
+		return EntityCondition.makeCondition(Arrays.asList(
+				EntityCondition.makeCondition("productCategoryId", EntityOperator.EQUALS, "CAT-7"),
+				EntityCondition.makeCondition("thruDate", EntityOperator.EQUALS, null),
+				EntityCondition.makeCondition("productId", EntityOperator.IN,
+						Arrays.asList("PROD-3", "PROD-1", "PROD-2"))), EntityOperator.AND);
+	}
+
+	@Benchmark
+	public String pkKey() {
+		return cache.getRedisFieldKey(pk);
+	}
+
+	@Benchmark
+	public String conditionKey() {
+		return cache.getRedisFieldKey(makeCondition(), orderBy);
+	}
+
+	@Benchmark
+	public long[] conditionHash() {
+		return EntityConditionFingerprint.hash(makeCondition());
+	}
+
+	/** the condition construction included in conditionKey and conditionHash */
+	@Benchmark
+	public EntityCondition conditionOnly() {
+		return makeCondition();
+	}
+}
@@ -0,0 +1,114 @@
+package org.ofbiz.base.cache.redis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.ofbiz.base.cache.redis.benchmark.BenchmarkEntities;
+import org.ofbiz.entity.GenericPK;
+import org.ofbiz.entity.GenericValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * get/put/remove of UtilRedisCache with GenericValues, one redis round trip
+ * per operation (no near cache, see the benchmark entitycache.properties).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UtilRedisCacheBenchmark {
+
+	private static final int ENTRIES = 1000;
+
+	private static final int BATCH = 20;
+
+	private UtilRedisCache<GenericPK, GenericValue> cache;
+
+	private GenericValue[] values;
+
+	private GenericPK[] pks;
+
+	private GenericPK missingPk;
+
+	private GenericValue scratch;
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		private int next = 0;
+
+		int next() {
+			next = (next + 1) % ENTRIES;
+			return next;
+		}
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		BenchmarkEntities.startRedis();
+		cache = UtilRedisCacheFactory.getOrCreateUtilCache("entitycache.entity." + BenchmarkEntities.DELEGATOR_NAME
+				+ "." + BenchmarkEntities.PRODUCT);
+		cache.clear();
+		values = new GenericValue[ENTRIES];
+		pks = new GenericPK[ENTRIES];
+		for (int i = 0; i < ENTRIES; i++) {
+			values[i] = BenchmarkEntities.makeProduct(i);
+			values[i].setImmutable();
+			pks[i] = values[i].getPrimaryKey();
+			cache.put(pks[i], values[i]);
+		}
+		missingPk = BenchmarkEntities.makeProduct(ENTRIES + 1).getPrimaryKey();
+		scratch = BenchmarkEntities.makeProduct(ENTRIES + 2);
+	}
+
+	@TearDown
+	public void tearDown() {
+		cache.clear();
+	}
+
+	@Benchmark
+	public GenericValue get(Cursor cursor) {
+		return cache.get(pks[cursor.next()]);
+	}
+
+	@Benchmark
+	public GenericValue getMiss() {
+		return cache.get(missingPk);
+	}
+
+	@Benchmark
+	public Map<GenericPK, GenericValue> getAll(Cursor cursor) {
+		List<GenericPK> batch = new ArrayList<GenericPK>(BATCH);
+		for (int i = 0; i < BATCH; i++) {
+			batch.add(pks[cursor.next()]);
+		}
+		return cache.getAll(batch);
+	}
+
+	@Benchmark
+	public GenericValue put(Cursor cursor) {
+		int i = cursor.next();
+		return cache.put(pks[i], values[i]);
+	}
+
+	/** a remove needs an entry, so this is one put plus one remove */
+	@Benchmark
+	public GenericValue putAndRemove() {
+		GenericPK pk = scratch.getPrimaryKey();
+		cache.put(pk, scratch);
+		return cache.remove(pk);
+	}
+}
@@ -0,0 +1,16 @@
+package org.ofbiz.base.cache.redis.benchmark;
+
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.DelegatorFactory;
+
+/**
+ * Returns the benchmark delegator to DelegatorFactory.getDelegator, registered
+ * in META-INF/services; other names are left to the entity engine.
+ */
+public class BenchmarkDelegatorFactory extends DelegatorFactory {
+
+	@Override
+	public Delegator getInstance(String delegatorName) {
+		return BenchmarkEntities.DELEGATOR_NAME.equals(delegatorName) ? BenchmarkEntities.getDelegator() : null;
+	}
+}
@@ -0,0 +1,213 @@
+package org.ofbiz.base.cache.redis.benchmark;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.model.ModelEntity;
+import org.ofbiz.entity.model.ModelField;
+import org.ofbiz.entity.model.ModelFieldType;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Entities and redis for the benchmarks, without an entity engine or server.
+ *
+ * The delegator "benchmark" is a proxy that only knows two entities modelled
+ * on Product and ProductCategoryMember, enough to create, cache and decode
+ * GenericValues; it is found by DelegatorFactory through
+ * BenchmarkDelegatorFactory. Redis is FakeRedisServer on REDIS_PORT unless
+ * -Dbenchmark.redis=external, then a server must listen there.
+ */
+public final class BenchmarkEntities {
+
+	public static final String DELEGATOR_NAME = "benchmark";
+
+	/** must match entitycache.redis-port in the benchmark entitycache.properties */
+	public static final int REDIS_PORT = 16379;
+
+	public static final String PRODUCT = "Product";
+
+	public static final String CATEGORY_MEMBER = "ProductCategoryMember";
+
+	private static final Map<String, ModelEntity> models = new HashMap<String, ModelEntity>();
+
+	private static final Map<String, ModelFieldType> fieldTypes = new HashMap<String, ModelFieldType>();
+
+	private static final Delegator delegator;
+
+	private static FakeRedisServer redisServer = null;
+
+	static {
+		fieldType("id", "VARCHAR(20)", "String");
+		fieldType("id-long", "VARCHAR(60)", "String");
+		fieldType("name", "VARCHAR(100)", "String");
+		fieldType("description", "VARCHAR(255)", "String");
+		fieldType("indicator", "CHAR(1)", "String");
+		fieldType("currency-amount", "DECIMAL(18,2)", "java.math.BigDecimal");
+		fieldType("fixed-point", "DECIMAL(18,6)", "java.math.BigDecimal");
+		fieldType("numeric", "DECIMAL(20,0)", "Long");
+		fieldType("date-time", "TIMESTAMP", "java.sql.Timestamp");
+
+		ModelEntity product = entity(PRODUCT);
+		field(product, "productId", "id", true);
+		field(product, "productTypeId", "id", false);
+		field(product, "primaryProductCategoryId", "id", false);
+		field(product, "internalName", "name", false);
+		field(product, "productName", "name", false);
+		field(product, "description", "description", false);
+		field(product, "longDescription", "description", false);
+		field(product, "introductionDate", "date-time", false);
+		field(product, "salesDiscontinuationDate", "date-time", false);
+		field(product, "isVirtual", "indicator", false);
+		field(product, "isVariant", "indicator", false);
+		field(product, "quantityIncluded", "fixed-point", false);
+		field(product, "piecesIncluded", "numeric", false);
+		field(product, "weight", "fixed-point", false);
+		field(product, "price", "currency-amount", false);
+		field(product, "createdByUserLogin", "id-long", false);
+		field(product, "lastUpdatedStamp", "date-time", false);
+		field(product, "createdStamp", "date-time", false);
+
+		ModelEntity member = entity(CATEGORY_MEMBER);
+		field(member, "productCategoryId", "id", true);
+		field(member, "productId", "id", true);
+		field(member, "fromDate", "date-time", true);
+		field(member, "thruDate", "date-time", false);
+		field(member, "comments", "description", false);
+		field(member, "sequenceNum", "numeric", false);
+		field(member, "quantity", "fixed-point", false);
+		field(member, "lastUpdatedStamp", "date-time", false);
+		field(member, "createdStamp", "date-time", false);
+
+		delegator = (Delegator) Proxy.newProxyInstance(BenchmarkEntities.class.getClassLoader(),
+				new Class<?>[] { Delegator.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						return invokeDelegator(proxy, method, args);
+					}
+				});
+	}
+
+	private BenchmarkEntities() {
+	}
+
+	public static Delegator getDelegator() {
+		return delegator;
+	}
+
+	public static synchronized void startRedis() throws IOException {
+		if (redisServer != null || "external".equals(System.getProperty("benchmark.redis"))) {
+			return;
+		}
+		redisServer = new FakeRedisServer(REDIS_PORT);
+		redisServer.start();
+	}
+
+	public static GenericValue makeProduct(int i) {
+		Timestamp now = new Timestamp(1500000000000L + i * 1000L);
+		Map<String, Object> fields = new HashMap<String, Object>();
+		fields.put("productId", "PROD-" + i);
+		fields.put("productTypeId", "FINISHED_GOOD");
+		fields.put("primaryProductCategoryId", "CAT-" + (i % 50));
+		fields.put("internalName", "Benchmark product " + i);
+		fields.put("productName", "Benchmark Product " + i);
+		fields.put("description", "A product used to measure the entity cache, number " + i);
+		fields.put("longDescription", "Long description of benchmark product " + i
+				+ ", with enough text to be about as large as the descriptions of a real catalog entry.");
+		fields.put("introductionDate", now);
+		fields.put("isVirtual", "N");
+		fields.put("isVariant", "N");
+		fields.put("quantityIncluded", new BigDecimal("1.000000"));
+		fields.put("piecesIncluded", Long.valueOf(1));
+		fields.put("weight", new BigDecimal("0.250000"));
+		fields.put("price", new BigDecimal(i % 1000).add(new BigDecimal("0.99")));
+		fields.put("createdByUserLogin", "admin");
+		fields.put("lastUpdatedStamp", now);
+		fields.put("createdStamp", now);
+		return delegator.makeValue(PRODUCT, fields);
+	}
+
+	public static List<GenericValue> makeCategoryMembers(String productCategoryId, int count) {
+		List<GenericValue> members = new ArrayList<GenericValue>(count);
+		Timestamp fromDate = new Timestamp(1500000000000L);
+		for (int i = 0; i < count; i++) {
+			Map<String, Object> fields = new HashMap<String, Object>();
+			fields.put("productCategoryId", productCategoryId);
+			fields.put("productId", "PROD-" + i);
+			fields.put("fromDate", fromDate);
+			fields.put("sequenceNum", Long.valueOf(i * 10));
+			fields.put("comments", "member " + i);
+			fields.put("lastUpdatedStamp", fromDate);
+			fields.put("createdStamp", fromDate);
+			members.add(delegator.makeValue(CATEGORY_MEMBER, fields));
+		}
+		return members;
+	}
+
+	private static Object invokeDelegator(Object proxy, Method method, Object[] args) {
+		String name = method.getName();
+		if ("getDelegatorName".equals(name) || "getDelegatorBaseName".equals(name) || "toString".equals(name)) {
+			return DELEGATOR_NAME;
+		} else if ("getModelEntity".equals(name)) {
+			return models.get(args[0]);
+		} else if ("getEntityFieldType".equals(name)) {
+			return fieldTypes.get(args[1]);
+		} else if ("getEntityGroupName".equals(name)) {
+			return "org.ofbiz";
+		} else if ("makeValue".equals(name) && args != null && args.length == 2 && args[1] instanceof Map) {
+			@SuppressWarnings("unchecked")
+			Map<String, Object> fields = (Map<String, Object>) args[1];
+			return GenericValue.create((Delegator) proxy, models.get(args[0]), fields);
+		} else if ("hashCode".equals(name)) {
+			return System.identityHashCode(proxy);
+		} else if ("equals".equals(name)) {
+			return proxy == args[0];
+		}
+		Class<?> returnType = method.getReturnType();
+		if (returnType == boolean.class) {
+			return Boolean.FALSE;
+		} else if (returnType.isPrimitive() && returnType != void.class) {
+			return 0;
+		}
+		// everything else is not used by the cache
+		return null;
+	}
+
+	private static ModelEntity entity(String entityName) {
+		ModelEntity model = new ModelEntity();
+		model.setEntityName(entityName);
+		model.setPackageName("org.ofbiz.benchmark");
+		models.put(entityName, model);
+		return model;
+	}
+
+	private static void field(ModelEntity model, String name, String type, boolean isPk) {
+		model.addField(ModelField.create(model, "", name, type, null, null, null, isPk, isPk, false, false, false,
+				null));
+	}
+
+	private static void fieldType(String type, String sqlType, String javaType) {
+		try {
+			Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+			Element element = document.createElement("field-type-def");
+			element.setAttribute("type", type);
+			element.setAttribute("sql-type", sqlType);
+			element.setAttribute("java-type", javaType);
+			fieldTypes.put(type, new ModelFieldType(element));
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,442 @@
+package org.ofbiz.base.cache.redis.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * In-process stand-in for redis, so the benchmarks run without a server.
+ *
+ * Speaks RESP on localhost and keeps strings, hashes and sorted sets in
+ * memory. It covers the commands of the cache get/put/remove paths; EVAL is
+ * acknowledged without running the script, so the benchmarks whose work is
+ * in a script (dependency registration of list puts) are excluded from the
+ * offline run, see build.gradle. PUBLISH has no subscribers. Expiry times
+ * are accepted and ignored. Run against a real redis (-Dbenchmark.redis=external)
+ * for numbers including server-side work.
+ */
+public class FakeRedisServer {
+
+	private final int port;
+
+	private final ConcurrentHashMap<String, Object> data = new ConcurrentHashMap<String, Object>();
+
+	private ServerSocket serverSocket = null;
+
+	public FakeRedisServer(int port) {
+		this.port = port;
+	}
+
+	public synchronized void start() throws IOException {
+		if (serverSocket != null) {
+			return;
+		}
+		serverSocket = new ServerSocket(port, 128, InetAddress.getByName("127.0.0.1"));
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "fake-redis-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public synchronized void stop() {
+		if (serverSocket != null) {
+			try {
+				serverSocket.close();
+			} catch (IOException e) {
+				// Do nothing.
+			}
+			serverSocket = null;
+		}
+		data.clear();
+	}
+
+	private void accept() {
+		ServerSocket server = serverSocket;
+		while (server != null && !server.isClosed()) {
+			try {
+				final Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				Thread connection = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				}, "fake-redis-connection");
+				connection.setDaemon(true);
+				connection.start();
+			} catch (IOException e) {
+				return;
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			while (true) {
+				List<byte[]> command = readCommand(in);
+				execute(command, out);
+				if (in.available() == 0) {
+					// flush once per pipeline
+					out.flush();
+				}
+			}
+		} catch (IOException e) {
+			// connection closed
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Do nothing.
+			}
+		}
+	}
+
+	private static List<byte[]> readCommand(InputStream in) throws IOException {
+		int type = in.read();
+		if (type < 0) {
+			throw new EOFException();
+		}
+		if (type != '*') {
+			throw new IOException("Unexpected RESP type " + (char) type);
+		}
+		int count = (int) readNumber(in);
+		List<byte[]> args = new ArrayList<byte[]>(count);
+		for (int i = 0; i < count; i++) {
+			if (in.read() != '$') {
+				throw new IOException("Expected bulk string");
+			}
+			int length = (int) readNumber(in);
+			byte[] arg = new byte[length];
+			int read = 0;
+			while (read < length) {
+				int n = in.read(arg, read, length - read);
+				if (n < 0) {
+					throw new EOFException();
+				}
+				read += n;
+			}
+			in.read(); // \r
+			in.read(); // \n
+			args.add(arg);
+		}
+		return args;
+	}
+
+	private static long readNumber(InputStream in) throws IOException {
+		long value = 0;
+		boolean negative = false;
+		int b;
+		while ((b = in.read()) != '\r') {
+			if (b < 0) {
+				throw new EOFException();
+			}
+			if (b == '-') {
+				negative = true;
+			} else {
+				value = value * 10 + (b - '0');
+			}
+		}
+		in.read(); // \n
+		return negative ? -value : value;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void execute(List<byte[]> command, OutputStream out) throws IOException {
+		String name = new String(command.get(0), StandardCharsets.US_ASCII).toUpperCase();
+		if ("PING".equals(name)) {
+			writeStatus(out, "PONG");
+		} else if ("AUTH".equals(name) || "SELECT".equals(name) || "READONLY".equals(name)
+				|| "FLUSHDB".equals(name) || "FLUSHALL".equals(name)) {
+			if (name.startsWith("FLUSH")) {
+				data.clear();
+			}
+			writeStatus(out, "OK");
+		} else if ("QUIT".equals(name)) {
+			writeStatus(out, "OK");
+			out.flush();
+			throw new EOFException();
+		} else if ("GET".equals(name)) {
+			Object value = data.get(key(command, 1));
+			writeBulk(out, value instanceof byte[] ? (byte[]) value : null);
+		} else if ("SET".equals(name)) {
+			String key = key(command, 1);
+			boolean nx = false;
+			for (int i = 3; i < command.size(); i++) {
+				nx |= "NX".equalsIgnoreCase(new String(command.get(i), StandardCharsets.US_ASCII));
+			}
+			if (nx && data.containsKey(key)) {
+				writeBulk(out, null);
+			} else {
+				data.put(key, command.get(2));
+				writeStatus(out, "OK");
+			}
+		} else if ("SETEX".equals(name) || "PSETEX".equals(name)) {
+			data.put(key(command, 1), command.get(3));
+			writeStatus(out, "OK");
+		} else if ("DEL".equals(name) || "UNLINK".equals(name)) {
+			long removed = 0;
+			for (int i = 1; i < command.size(); i++) {
+				removed += data.remove(key(command, i)) != null ? 1 : 0;
+			}
+			writeInteger(out, removed);
+		} else if ("EXISTS".equals(name)) {
+			writeInteger(out, data.containsKey(key(command, 1)) ? 1 : 0);
+		} else if ("EXPIRE".equals(name) || "PEXPIRE".equals(name) || "EXPIREAT".equals(name)
+				|| "PEXPIREAT".equals(name)) {
+			writeInteger(out, data.containsKey(key(command, 1)) ? 1 : 0);
+		} else if ("RENAME".equals(name)) {
+			Object value = data.remove(key(command, 1));
+			if (value == null) {
+				writeError(out, "ERR no such key");
+			} else {
+				data.put(key(command, 2), value);
+				writeStatus(out, "OK");
+			}
+		} else if ("HGET".equals(name)) {
+			Map<String, byte[]> hash = (Map<String, byte[]>) data.get(key(command, 1));
+			writeBulk(out, hash != null ? hash.get(key(command, 2)) : null);
+		} else if ("HMGET".equals(name)) {
+			Map<String, byte[]> hash = (Map<String, byte[]>) data.get(key(command, 1));
+			writeArrayHeader(out, command.size() - 2);
+			for (int i = 2; i < command.size(); i++) {
+				writeBulk(out, hash != null ? hash.get(key(command, i)) : null);
+			}
+		} else if ("HSET".equals(name) || "HMSET".equals(name)) {
+			Map<String, byte[]> hash = hash(key(command, 1));
+			long added = 0;
+			for (int i = 2; i + 1 < command.size(); i += 2) {
+				added += hash.put(key(command, i), command.get(i + 1)) == null ? 1 : 0;
+			}
+			if ("HMSET".equals(name)) {
+				writeStatus(out, "OK");
+			} else {
+				writeInteger(out, added);
+			}
+		} else if ("HDEL".equals(name)) {
+			Map<String, byte[]> hash = (Map<String, byte[]>) data.get(key(command, 1));
+			long removed = 0;
+			for (int i = 2; hash != null && i < command.size(); i++) {
+				removed += hash.remove(key(command, i)) != null ? 1 : 0;
+			}
+			writeInteger(out, removed);
+		} else if ("HLEN".equals(name)) {
+			Map<String, byte[]> hash = (Map<String, byte[]>) data.get(key(command, 1));
+			writeInteger(out, hash != null ? hash.size() : 0);
+		} else if ("HKEYS".equals(name)) {
+			Map<String, byte[]> hash = (Map<String, byte[]>) data.get(key(command, 1));
+			List<String> fields = hash != null ? new ArrayList<String>(hash.keySet()) : new ArrayList<String>();
+			writeArrayHeader(out, fields.size());
+			for (String field : fields) {
+				writeBulk(out, bytes(field));
+			}
+		} else if ("HSCAN".equals(name)) {
+			// one pass returns everything, cursor 0 ends the scan; COUNT is ignored
+			Map<String, byte[]> hash = (Map<String, byte[]>) data.get(key(command, 1));
+			String match = null;
+			for (int i = 3; i + 1 < command.size(); i += 2) {
+				if ("MATCH".equalsIgnoreCase(key(command, i))) {
+					match = key(command, i + 1);
+				}
+			}
+			List<Map.Entry<String, byte[]>> entries = new ArrayList<Map.Entry<String, byte[]>>();
+			if (hash != null) {
+				for (Map.Entry<String, byte[]> entry : hash.entrySet()) {
+					if (match == null || globMatches(match, 0, entry.getKey(), 0)) {
+						entries.add(entry);
+					}
+				}
+			}
+			writeArrayHeader(out, 2);
+			writeBulk(out, bytes("0"));
+			writeArrayHeader(out, entries.size() * 2);
+			for (Map.Entry<String, byte[]> entry : entries) {
+				writeBulk(out, bytes(entry.getKey()));
+				writeBulk(out, entry.getValue());
+			}
+		} else if ("ZADD".equals(name)) {
+			Map<String, Double> zset = zset(key(command, 1));
+			long added = 0;
+			for (int i = 2; i + 1 < command.size(); i += 2) {
+				double score = Double.parseDouble(new String(command.get(i), StandardCharsets.US_ASCII));
+				added += zset.put(key(command, i + 1), score) == null ? 1 : 0;
+			}
+			writeInteger(out, added);
+		} else if ("ZREM".equals(name)) {
+			Map<String, Double> zset = (Map<String, Double>) data.get(key(command, 1));
+			long removed = 0;
+			for (int i = 2; zset != null && i < command.size(); i++) {
+				removed += zset.remove(key(command, i)) != null ? 1 : 0;
+			}
+			writeInteger(out, removed);
+		} else if ("PUBLISH".equals(name)) {
+			writeInteger(out, 0);
+		} else if ("EVAL".equals(name) || "EVALSHA".equals(name)) {
+			writeBulk(out, null);
+		} else if ("INFO".equals(name)) {
+			writeBulk(out, bytes("# Replication\r\nrole:master\r\nconnected_slaves:0\r\n"));
+		} else {
+			writeError(out, "ERR unknown command '" + name + "'");
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, byte[]> hash(String key) {
+		Object hash = data.get(key);
+		if (hash == null) {
+			hash = new ConcurrentHashMap<String, byte[]>();
+			Object existing = data.putIfAbsent(key, hash);
+			if (existing != null) {
+				hash = existing;
+			}
+		}
+		return (Map<String, byte[]>) hash;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, Double> zset(String key) {
+		Object zset = data.get(key);
+		if (zset == null) {
+			// members only, scores are not ordered on
+			zset = new ConcurrentSkipListMap<String, Double>();
+			Object existing = data.putIfAbsent(key, zset);
+			if (existing != null) {
+				zset = existing;
+			}
+		}
+		return (Map<String, Double>) zset;
+	}
+
+	/**
+	 * redis glob style matching as used by SCAN ... MATCH: *, ?, [...] (with
+	 * ^ and ranges) and \ escaping the next character
+	 */
+	private static boolean globMatches(String pattern, int p, String value, int v) {
+		while (p < pattern.length()) {
+			char c = pattern.charAt(p);
+			if (c == '*') {
+				while (p < pattern.length() && pattern.charAt(p) == '*') {
+					p++;
+				}
+				if (p == pattern.length()) {
+					return true;
+				}
+				for (int i = v; i <= value.length(); i++) {
+					if (globMatches(pattern, p, value, i)) {
+						return true;
+					}
+				}
+				return false;
+			}
+			if (v >= value.length()) {
+				return false;
+			}
+			char s = value.charAt(v);
+			if (c == '?') {
+				p++;
+			} else if (c == '[') {
+				int end = p + 1;
+				boolean not = end < pattern.length() && pattern.charAt(end) == '^';
+				if (not) {
+					end++;
+				}
+				boolean found = false;
+				while (end < pattern.length() && pattern.charAt(end) != ']') {
+					char from = pattern.charAt(end);
+					if (from == '\\' && end + 1 < pattern.length()) {
+						from = pattern.charAt(++end);
+					}
+					char to = from;
+					if (end + 2 < pattern.length() && pattern.charAt(end + 1) == '-' && pattern.charAt(end + 2) != ']') {
+						to = pattern.charAt(end + 2);
+						end += 2;
+					}
+					found |= from <= to ? s >= from && s <= to : s >= to && s <= from;
+					end++;
+				}
+				if (found == not) {
+					return false;
+				}
+				p = end + 1;
+			} else {
+				if (c == '\\' && p + 1 < pattern.length()) {
+					c = pattern.charAt(++p);
+				}
+				if (c != s) {
+					return false;
+				}
+				p++;
+			}
+			v++;
+		}
+		return v == value.length();
+	}
+
+	/** keys and fields are kept as ISO-8859-1 strings, which maps bytes one to one */
+	private static String key(List<byte[]> command, int index) {
+		return new String(command.get(index), StandardCharsets.ISO_8859_1);
+	}
+
+	private static byte[] bytes(String value) {
+		return value.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static void writeStatus(OutputStream out, String status) throws IOException {
+		out.write('+');
+		out.write(bytes(status));
+		out.write('\r');
+		out.write('\n');
+	}
+
+	private static void writeError(OutputStream out, String error) throws IOException {
+		out.write('-');
+		out.write(bytes(error));
+		out.write('\r');
+		out.write('\n');
+	}
+
+	private static void writeInteger(OutputStream out, long value) throws IOException {
+		out.write(':');
+		out.write(bytes(Long.toString(value)));
+		out.write('\r');
+		out.write('\n');
+	}
+
+	private static void writeArrayHeader(OutputStream out, int size) throws IOException {
+		out.write('*');
+		out.write(bytes(Integer.toString(size)));
+		out.write('\r');
+		out.write('\n');
+	}
+
+	private static void writeBulk(OutputStream out, byte[] value) throws IOException {
+		if (value == null) {
+			out.write(bytes("$-1\r\n"));
+			return;
+		}
+		out.write('$');
+		out.write(bytes(Integer.toString(value.length)));
+		out.write('\r');
+		out.write('\n');
+		out.write(value);
+		out.write('\r');
+		out.write('\n');
+	}
+}
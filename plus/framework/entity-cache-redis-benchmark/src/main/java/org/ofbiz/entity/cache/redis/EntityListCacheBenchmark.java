@@ -0,0 +1,92 @@
+package org.ofbiz.entity.cache.redis;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.ofbiz.base.cache.redis.benchmark.BenchmarkEntities;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.condition.EntityCondition;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups of category member lists through EntityListCache, the way
+ * delegator.findList(..., useCache=true) reaches the cache: a new condition
+ * per call, fingerprinted, read and decoded from redis.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EntityListCacheBenchmark {
+
+	private static final int CATEGORIES = 50;
+
+	private static final int MEMBERS = 20;
+
+	private static final List<String> ORDER_BY = Arrays.asList("sequenceNum");
+
+	private EntityListCache cache;
+
+	private List<GenericValue> members;
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		private int next = 0;
+
+		String nextCategory() {
+			next = (next + 1) % CATEGORIES;
+			return "CAT-" + next;
+		}
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		BenchmarkEntities.startRedis();
+		cache = new EntityListCache(BenchmarkEntities.DELEGATOR_NAME);
+		cache.remove(BenchmarkEntities.CATEGORY_MEMBER);
+		for (int i = 0; i < CATEGORIES; i++) {
+			String productCategoryId = "CAT-" + i;
+			cache.put(BenchmarkEntities.CATEGORY_MEMBER,
+					EntityCondition.makeCondition("productCategoryId", productCategoryId), ORDER_BY,
+					BenchmarkEntities.makeCategoryMembers(productCategoryId, MEMBERS));
+		}
+		members = BenchmarkEntities.makeCategoryMembers("CAT-0", MEMBERS);
+	}
+
+	@TearDown
+	public void tearDown() {
+		cache.remove(BenchmarkEntities.CATEGORY_MEMBER);
+	}
+
+	@Benchmark
+	public List<GenericValue> get(Cursor cursor) {
+		return cache.get(BenchmarkEntities.CATEGORY_MEMBER,
+				EntityCondition.makeCondition("productCategoryId", cursor.nextCategory()), ORDER_BY);
+	}
+
+	@Benchmark
+	public List<GenericValue> getMiss() {
+		return cache.get(BenchmarkEntities.CATEGORY_MEMBER,
+				EntityCondition.makeCondition("productCategoryId", "NO-SUCH-CATEGORY"), ORDER_BY);
+	}
+
+	/** includes the dependency registration (EVAL) of the list, only run against a real redis */
+	@Benchmark
+	public List<GenericValue> put() {
+		return cache.put(BenchmarkEntities.CATEGORY_MEMBER, EntityCondition.makeCondition("productCategoryId", "CAT-0"),
+				ORDER_BY, members);
+	}
+}
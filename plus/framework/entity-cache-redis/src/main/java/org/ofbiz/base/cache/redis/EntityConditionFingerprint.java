@@ -0,0 +1,293 @@
+package org.ofbiz.base.cache.redis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.ofbiz.entity.condition.EntityCondition;
+import org.ofbiz.entity.condition.EntityConditionList;
+import org.ofbiz.entity.condition.EntityExpr;
+import org.ofbiz.entity.condition.EntityFieldMap;
+import org.ofbiz.entity.condition.EntityJoinOperator;
+import org.ofbiz.entity.condition.EntityOperator;
+
+/**
+ * Canonical 128 bit fingerprint of an EntityCondition, used as the condition
+ * part of list/object cache field names instead of toString().
+ *
+ * The condition tree is normalized before hashing: nested AND/OR of the same
+ * operator are flattened, their members are sorted, a list with a single
+ * member is the member itself, an EntityFieldMap is the same as the
+ * EntityConditionList of its expressions and the values of IN/NOT IN are
+ * sorted. Integral numbers hash the same regardless of their type.
+ *
+ * Results are kept in a bounded concurrent map keyed by the frozen condition,
+ * so the tree is only hashed once per distinct condition; a lookup costs one
+ * hashCode and one equals of the condition and takes no lock. The oldest
+ * conditions are dropped first.
+ */
+public final class EntityConditionFingerprint {
+
+	/** length of the hex string returned by fingerprint() */
+	public static final int LENGTH = 32;
+
+	private static final byte T_NULL = 'N';
+	private static final byte T_EXPR = 'E';
+	private static final byte T_LIST = 'L';
+	private static final byte T_OTHER = 'W';
+	private static final byte T_CONDITION = 'C';
+	private static final byte T_STRING = 'S';
+	private static final byte T_INTEGRAL = 'J';
+	private static final byte T_DECIMAL = 'D';
+	private static final byte T_COLLECTION = 'A';
+	private static final byte T_VALUE = 'O';
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final Comparator<long[]> FINGERPRINT_ORDER = new Comparator<long[]>() {
+		@Override
+		public int compare(long[] a, long[] b) {
+			int c = Long.compare(a[0], b[0]);
+			return c != 0 ? c : Long.compare(a[1], b[1]);
+		}
+	};
+
+	private static volatile int memoMaxSize = 10000;
+
+	private static final ConcurrentHashMap<EntityCondition, String> memo = new ConcurrentHashMap<EntityCondition, String>(
+			256);
+
+	/** keys of memo in the order they were added */
+	private static final ConcurrentLinkedQueue<EntityCondition> memoOrder = new ConcurrentLinkedQueue<EntityCondition>();
+
+	private static final String NULL_FINGERPRINT = toHex(MurmurHash3.hash128(new byte[] { T_NULL }));
+
+	private EntityConditionFingerprint() {
+	}
+
+	static void setMemoMaxSize(int maxSize) {
+		memoMaxSize = maxSize;
+	}
+
+	public static String fingerprint(EntityCondition condition) {
+		if (condition == null) {
+			return NULL_FINGERPRINT;
+		}
+		if (memoMaxSize > 0) {
+			String fingerprint = memo.get(condition);
+			if (fingerprint != null) {
+				return fingerprint;
+			}
+		}
+		String fingerprint = toHex(hash(condition));
+		if (memoMaxSize > 0) {
+			// the key must not change while it is in the map
+			EntityCondition frozen = condition.freeze();
+			if (memo.putIfAbsent(frozen, fingerprint) == null) {
+				memoOrder.add(frozen);
+				while (memo.size() > memoMaxSize) {
+					EntityCondition eldest = memoOrder.poll();
+					if (eldest == null) {
+						break;
+					}
+					memo.remove(eldest);
+				}
+			}
+		}
+		return fingerprint;
+	}
+
+	static long[] hash(EntityCondition condition) {
+		Buffer out = new Buffer();
+		try {
+			EntityJoinOperator joinOp = getJoinOperator(condition);
+			if (joinOp != null) {
+				List<long[]> members = new ArrayList<long[]>();
+				collectMembers(condition, joinOp, members);
+				if (members.size() == 1) {
+					return members.get(0);
+				}
+				Collections.sort(members, FINGERPRINT_ORDER);
+				out.writeByte(T_LIST);
+				writeString(out, joinOp.getCode());
+				out.writeInt(members.size());
+				for (long[] member : members) {
+					out.writeLong(member[0]);
+					out.writeLong(member[1]);
+				}
+			} else if (condition instanceof EntityExpr) {
+				EntityExpr expr = (EntityExpr) condition;
+				EntityOperator<?, ?, ?> op = expr.getOperator();
+				String code = op != null ? op.getCode() : null;
+				out.writeByte(T_EXPR);
+				writeString(out, code);
+				writeOperand(out, expr.getLhs(), false);
+				writeOperand(out, expr.getRhs(), "IN".equalsIgnoreCase(code) || "NOT IN".equalsIgnoreCase(code));
+			} else {
+				out.writeByte(T_OTHER);
+				writeString(out, condition.getClass().getName());
+				writeString(out, condition.toString());
+			}
+		} catch (IOException e) {
+			// not thrown by a ByteArrayOutputStream
+			throw new IllegalStateException(e);
+		}
+		return MurmurHash3.hash128(out.buffer(), 0, out.size());
+	}
+
+	/**
+	 * AND/OR operator of a condition list, an EntityFieldMap or an EntityExpr
+	 * joining two conditions, null for anything else.
+	 */
+	private static EntityJoinOperator getJoinOperator(EntityCondition condition) {
+		if (condition instanceof EntityConditionList || condition instanceof EntityFieldMap) {
+			if (condition instanceof EntityConditionList) {
+				return ((EntityConditionList<?>) condition).getOperator();
+			}
+			return ((EntityFieldMap) condition).getOperator();
+		}
+		if (condition instanceof EntityExpr) {
+			EntityExpr expr = (EntityExpr) condition;
+			EntityOperator<?, ?, ?> op = expr.getOperator();
+			if (op instanceof EntityJoinOperator && expr.getLhs() instanceof EntityCondition
+					&& expr.getRhs() instanceof EntityCondition) {
+				return (EntityJoinOperator) op;
+			}
+		}
+		return null;
+	}
+
+	private static void collectMembers(EntityCondition condition, EntityJoinOperator joinOp, List<long[]> members) {
+		if (condition instanceof EntityConditionList) {
+			Iterator<? extends EntityCondition> it = ((EntityConditionList<?>) condition).getConditionIterator();
+			while (it.hasNext()) {
+				addMember(it.next(), joinOp, members);
+			}
+		} else if (condition instanceof EntityFieldMap) {
+			EntityFieldMap fieldMap = (EntityFieldMap) condition;
+			// one expression per field, in the order of the field map
+			int index = 0;
+			Iterator<String> it = fieldMap.getFieldKeyIterator();
+			while (it.hasNext()) {
+				it.next();
+				addMember(fieldMap.getCondition(index++), joinOp, members);
+			}
+		} else {
+			EntityExpr expr = (EntityExpr) condition;
+			addMember((EntityCondition) expr.getLhs(), joinOp, members);
+			addMember((EntityCondition) expr.getRhs(), joinOp, members);
+		}
+	}
+
+	private static void addMember(EntityCondition member, EntityJoinOperator joinOp, List<long[]> members) {
+		if (member == null) {
+			return;
+		}
+		if (joinOp.equals(getJoinOperator(member))) {
+			collectMembers(member, joinOp, members);
+		} else {
+			members.add(hash(member));
+		}
+	}
+
+	private static void writeOperand(Buffer out, Object value, boolean unordered) throws IOException {
+		if (value == null) {
+			out.writeByte(T_NULL);
+		} else if (value instanceof EntityCondition) {
+			long[] hash = hash((EntityCondition) value);
+			out.writeByte(T_CONDITION);
+			out.writeLong(hash[0]);
+			out.writeLong(hash[1]);
+		} else if (value instanceof String) {
+			out.writeByte(T_STRING);
+			writeString(out, (String) value);
+		} else if (value instanceof Long || value instanceof Integer || value instanceof Short
+				|| value instanceof Byte) {
+			out.writeByte(T_INTEGRAL);
+			out.writeLong(((Number) value).longValue());
+		} else if (value instanceof BigDecimal) {
+			out.writeByte(T_DECIMAL);
+			BigDecimal decimal = (BigDecimal) value;
+			writeString(out, decimal.signum() == 0 ? "0" : decimal.stripTrailingZeros().toPlainString());
+		} else if (value instanceof Collection) {
+			Collection<?> collection = (Collection<?>) value;
+			out.writeByte(T_COLLECTION);
+			out.writeInt(collection.size());
+			if (unordered) {
+				List<long[]> elements = new ArrayList<long[]>(collection.size());
+				for (Object element : collection) {
+					Buffer elementOut = new Buffer();
+					writeOperand(elementOut, element, false);
+					elements.add(MurmurHash3.hash128(elementOut.buffer(), 0, elementOut.size()));
+				}
+				Collections.sort(elements, FINGERPRINT_ORDER);
+				for (long[] element : elements) {
+					out.writeLong(element[0]);
+					out.writeLong(element[1]);
+				}
+			} else {
+				for (Object element : collection) {
+					writeOperand(out, element, false);
+				}
+			}
+		} else {
+			// field values, functions, dates, ...
+			out.writeByte(T_VALUE);
+			writeString(out, value.getClass().getName());
+			writeString(out, value.toString());
+		}
+	}
+
+	private static void writeString(Buffer out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String toHex(long[] hash) {
+		char[] chars = new char[LENGTH];
+		for (int i = 0; i < 16; i++) {
+			long word = hash[i >> 3];
+			int b = (int) (word >>> (56 - ((i & 7) << 3))) & 0xff;
+			chars[i << 1] = HEX[b >>> 4];
+			chars[(i << 1) + 1] = HEX[b & 0x0f];
+		}
+		return new String(chars);
+	}
+
+	/** DataOutputStream over a ByteArrayOutputStream, with access to the array */
+	private static final class Buffer extends DataOutputStream {
+		private Buffer() {
+			super(new Bytes());
+		}
+
+		private byte[] buffer() {
+			return ((Bytes) out).buf();
+		}
+	}
+
+	private static final class Bytes extends ByteArrayOutputStream {
+		private Bytes() {
+			super(128);
+		}
+
+		private byte[] buf() {
+			return buf;
+		}
+	}
+}
@@ -0,0 +1,369 @@
+package org.ofbiz.base.cache.redis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.base.util.UtilObject;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.DelegatorFactory;
+import org.ofbiz.entity.GenericEntity;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.model.ModelEntity;
+import org.ofbiz.entity.model.ModelField;
+
+/**
+ * Compact binary form for GenericValue and List&lt;GenericValue&gt;.
+ *
+ * A value is written as delegator name, entity name, a hash of the field
+ * names and types of the entity, and then the field values in ModelEntity
+ * field order with a one byte type tag each, field names are not stored. A
+ * value whose hash does not match the entity definition of the reading node
+ * is a miss. Anything else (object cache values, values without delegator)
+ * falls back to java serialization. Data written with java serialization only
+ * (starting with the stream magic 0xAC) is still readable.
+ */
+public class GenericValueCodec implements RedisCacheCodec {
+
+	public static final String module = GenericValueCodec.class.getName();
+
+	// payload tags, first byte
+	protected static final byte TAG_JAVA = 0x00;
+	// values written without the field hash, read as misses
+	protected static final byte TAG_VALUE_V1 = 0x01;
+	protected static final byte TAG_VALUE_LIST_V1 = 0x02;
+	protected static final byte TAG_NULL_VALUE = 0x03;
+	protected static final byte TAG_VALUE = 0x04;
+	protected static final byte TAG_VALUE_LIST = 0x05;
+	protected static final byte JAVA_STREAM_MAGIC = (byte) 0xAC;
+
+	// field value tags
+	private static final byte F_NULL = 0;
+	private static final byte F_STRING = 1;
+	private static final byte F_LONG = 2;
+	private static final byte F_INTEGER = 3;
+	private static final byte F_BIGDECIMAL = 4;
+	private static final byte F_DOUBLE = 5;
+	private static final byte F_FLOAT = 6;
+	private static final byte F_TIMESTAMP = 7;
+	private static final byte F_DATE = 8;
+	private static final byte F_TIME = 9;
+	private static final byte F_TRUE = 10;
+	private static final byte F_FALSE = 11;
+	private static final byte F_BYTES = 12;
+	private static final byte F_JAVA = 13;
+
+	/**
+	 * fieldsHash of the current model of each entity by name, a reloaded
+	 * model replaces the entry of its entity
+	 */
+	private static final ConcurrentHashMap<String, FieldsHash> fieldsHashes = new ConcurrentHashMap<String, FieldsHash>();
+
+	private static final class FieldsHash {
+		private final ModelEntity model;
+		private final long hash;
+
+		private FieldsHash(ModelEntity model, long hash) {
+			this.model = model;
+			this.hash = hash;
+		}
+	}
+
+	@Override
+	public byte[] encode(Object value) {
+		if (value == null)
+			return null;
+		try {
+			if (value instanceof GenericEntity.NULL) {
+				return new byte[] { TAG_NULL_VALUE };
+			}
+			if (value instanceof GenericValue && isEncodable((GenericValue) value)) {
+				ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+				DataOutputStream out = new DataOutputStream(bos);
+				out.writeByte(TAG_VALUE);
+				writeValue(out, (GenericValue) value, null);
+				out.flush();
+				return bos.toByteArray();
+			}
+			if (value instanceof List && isEncodableList((List<?>) value)) {
+				List<?> list = (List<?>) value;
+				ByteArrayOutputStream bos = new ByteArrayOutputStream(64 + list.size() * 128);
+				DataOutputStream out = new DataOutputStream(bos);
+				out.writeByte(TAG_VALUE_LIST);
+				out.writeInt(list.size());
+				GenericValue previous = null;
+				for (Object member : list) {
+					writeValue(out, (GenericValue) member, previous);
+					previous = (GenericValue) member;
+				}
+				out.flush();
+				return bos.toByteArray();
+			}
+		} catch (IOException e) {
+			Debug.logWarning(e, "Unable to encode cache value, falling back to java serialization", module);
+		}
+		byte[] serialized = UtilObject.getBytes(value);
+		if (serialized == null)
+			return null;
+		byte[] bytes = new byte[serialized.length + 1];
+		bytes[0] = TAG_JAVA;
+		System.arraycopy(serialized, 0, bytes, 1, serialized.length);
+		return bytes;
+	}
+
+	@Override
+	public Object decode(byte[] bytes) {
+		if (bytes == null || bytes.length == 0)
+			return null;
+		switch (bytes[0]) {
+		case JAVA_STREAM_MAGIC:
+			return UtilObject.getObject(bytes);
+		case TAG_NULL_VALUE:
+			return GenericValue.NULL_VALUE;
+		case TAG_JAVA:
+			byte[] serialized = new byte[bytes.length - 1];
+			System.arraycopy(bytes, 1, serialized, 0, serialized.length);
+			return UtilObject.getObject(serialized);
+		case TAG_VALUE_V1:
+		case TAG_VALUE_LIST_V1:
+			return null;
+		default:
+		}
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 1, bytes.length - 1));
+			if (bytes[0] == TAG_VALUE) {
+				return readValue(in, null);
+			}
+			if (bytes[0] == TAG_VALUE_LIST) {
+				int size = in.readInt();
+				List<GenericValue> list = new ArrayList<GenericValue>(size);
+				GenericValue previous = null;
+				for (int i = 0; i < size; i++) {
+					GenericValue value = readValue(in, previous);
+					if (value == null) {
+						return null;
+					}
+					list.add(value);
+					previous = value;
+				}
+				return list;
+			}
+			Debug.logWarning("Unknown cache value tag [" + bytes[0] + "], ignoring cached value", module);
+		} catch (IOException e) {
+			Debug.logWarning(e, "Unable to decode cache value, ignoring cached value", module);
+		}
+		return null;
+	}
+
+	protected boolean isEncodable(GenericValue value) {
+		return value.getDelegator() != null && value.getModelEntity() != null;
+	}
+
+	protected boolean isEncodableList(List<?> list) {
+		for (Object member : list) {
+			if (!(member instanceof GenericValue) || member instanceof GenericEntity.NULL
+					|| !isEncodable((GenericValue) member)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * header is skipped (flag 0) when delegator and entity are the same as the
+	 * previous list member.
+	 */
+	protected void writeValue(DataOutputStream out, GenericValue value, GenericValue previous) throws IOException {
+		String delegatorName = value.getDelegator().getDelegatorName();
+		ModelEntity model = value.getModelEntity();
+		if (previous != null && previous.getModelEntity() == model
+				&& delegatorName.equals(previous.getDelegator().getDelegatorName())) {
+			out.writeByte(0);
+		} else {
+			out.writeByte(1);
+			out.writeUTF(delegatorName);
+			out.writeUTF(model.getEntityName());
+			out.writeLong(fieldsHash(model));
+		}
+		List<ModelField> fields = model.getFieldsUnmodifiable();
+		out.writeShort(fields.size());
+		for (ModelField field : fields) {
+			writeField(out, value.get(field.getName()));
+		}
+	}
+
+	protected GenericValue readValue(DataInputStream in, GenericValue previous) throws IOException {
+		Delegator delegator;
+		ModelEntity model;
+		if (in.readByte() == 0) {
+			if (previous == null) {
+				throw new IOException("Cached value without entity header");
+			}
+			delegator = previous.getDelegator();
+			model = previous.getModelEntity();
+		} else {
+			String delegatorName = in.readUTF();
+			String entityName = in.readUTF();
+			long fieldsHash = in.readLong();
+			delegator = DelegatorFactory.getDelegator(delegatorName);
+			model = delegator != null ? delegator.getModelEntity(entityName) : null;
+			if (model == null) {
+				Debug.logWarning("No entity [" + entityName + "] in delegator [" + delegatorName
+						+ "], ignoring cached value", module);
+				return null;
+			}
+			if (fieldsHash != fieldsHash(model)) {
+				// written by a node with another definition of the entity
+				return null;
+			}
+		}
+		List<ModelField> fields = model.getFieldsUnmodifiable();
+		int fieldCount = in.readShort();
+		if (fieldCount != fields.size()) {
+			// entity definition changed since the value was cached
+			return null;
+		}
+		Map<String, Object> fieldValues = new HashMap<String, Object>(fieldCount * 2);
+		for (int i = 0; i < fieldCount; i++) {
+			Object fieldValue = readField(in);
+			if (fieldValue != null) {
+				fieldValues.put(fields.get(i).getName(), fieldValue);
+			}
+		}
+		GenericValue value = delegator.makeValue(model.getEntityName(), fieldValues);
+		value.synchronizedWithDatasource();
+		value.setImmutable();
+		return value;
+	}
+
+	/** hash of the names and types of the fields of model, in field order */
+	protected static long fieldsHash(ModelEntity model) {
+		FieldsHash cached = fieldsHashes.get(model.getEntityName());
+		if (cached != null && cached.model == model) {
+			return cached.hash;
+		}
+		long hash = computeFieldsHash(model);
+		fieldsHashes.put(model.getEntityName(), new FieldsHash(model, hash));
+		return hash;
+	}
+
+	private static long computeFieldsHash(ModelEntity model) {
+		StringBuilder fields = new StringBuilder();
+		for (ModelField field : model.getFieldsUnmodifiable()) {
+			fields.append(field.getName()).append(':').append(field.getType()).append(';');
+		}
+		return MurmurHash3.hash128(fields.toString().getBytes(StandardCharsets.UTF_8))[0];
+	}
+
+	protected void writeField(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(F_NULL);
+		} else if (value instanceof String) {
+			out.writeByte(F_STRING);
+			writeBytes(out, ((String) value).getBytes(StandardCharsets.UTF_8));
+		} else if (value instanceof Long) {
+			out.writeByte(F_LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof Integer) {
+			out.writeByte(F_INTEGER);
+			out.writeInt((Integer) value);
+		} else if (value instanceof BigDecimal) {
+			BigDecimal decimal = (BigDecimal) value;
+			out.writeByte(F_BIGDECIMAL);
+			out.writeInt(decimal.scale());
+			writeBytes(out, decimal.unscaledValue().toByteArray());
+		} else if (value instanceof Double) {
+			out.writeByte(F_DOUBLE);
+			out.writeDouble((Double) value);
+		} else if (value instanceof Float) {
+			out.writeByte(F_FLOAT);
+			out.writeFloat((Float) value);
+		} else if (value instanceof Timestamp) {
+			Timestamp timestamp = (Timestamp) value;
+			out.writeByte(F_TIMESTAMP);
+			out.writeLong(timestamp.getTime());
+			out.writeInt(timestamp.getNanos());
+		} else if (value instanceof java.sql.Date) {
+			out.writeByte(F_DATE);
+			out.writeLong(((java.sql.Date) value).getTime());
+		} else if (value instanceof Time) {
+			out.writeByte(F_TIME);
+			out.writeLong(((Time) value).getTime());
+		} else if (value instanceof Boolean) {
+			out.writeByte((Boolean) value ? F_TRUE : F_FALSE);
+		} else if (value instanceof byte[]) {
+			out.writeByte(F_BYTES);
+			writeBytes(out, (byte[]) value);
+		} else {
+			byte[] serialized = UtilObject.getBytes(value);
+			if (serialized == null) {
+				throw new IOException("Field value of type " + value.getClass().getName() + " is not serializable");
+			}
+			out.writeByte(F_JAVA);
+			writeBytes(out, serialized);
+		}
+	}
+
+	protected Object readField(DataInputStream in) throws IOException {
+		byte tag = in.readByte();
+		switch (tag) {
+		case F_NULL:
+			return null;
+		case F_STRING:
+			return new String(readBytes(in), StandardCharsets.UTF_8);
+		case F_LONG:
+			return in.readLong();
+		case F_INTEGER:
+			return in.readInt();
+		case F_BIGDECIMAL:
+			int scale = in.readInt();
+			return new BigDecimal(new BigInteger(readBytes(in)), scale);
+		case F_DOUBLE:
+			return in.readDouble();
+		case F_FLOAT:
+			return in.readFloat();
+		case F_TIMESTAMP:
+			Timestamp timestamp = new Timestamp(in.readLong());
+			timestamp.setNanos(in.readInt());
+			return timestamp;
+		case F_DATE:
+			return new java.sql.Date(in.readLong());
+		case F_TIME:
+			return new Time(in.readLong());
+		case F_TRUE:
+			return Boolean.TRUE;
+		case F_FALSE:
+			return Boolean.FALSE;
+		case F_BYTES:
+			return readBytes(in);
+		case F_JAVA:
+			return UtilObject.getObject(readBytes(in));
+		default:
+			throw new IOException("Unknown field tag [" + tag + "]");
+		}
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,23 @@
+package org.ofbiz.base.cache.redis;
+
+import org.ofbiz.base.util.UtilObject;
+
+/**
+ * Plain java serialization of the cached value (the original storage format).
+ */
+public class JavaSerializationCodec implements RedisCacheCodec {
+
+	@Override
+	public byte[] encode(Object value) {
+		if (value == null)
+			return null;
+		return UtilObject.getBytes(value);
+	}
+
+	@Override
+	public Object decode(byte[] bytes) {
+		if (bytes == null)
+			return null;
+		return UtilObject.getObject(bytes);
+	}
+}
@@ -0,0 +1,97 @@
+package org.ofbiz.base.cache.redis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ * Blocking transport on the RedisManager connection pool, the command runs in
+ * the calling thread and the returned future is already completed. Reads use
+ * the replica chosen by the read policy.
+ */
+public class JedisPoolTransport implements RedisTransport {
+
+	private final RedisManager redisManager;
+
+	public JedisPoolTransport(RedisManager redisManager) {
+		this.redisManager = redisManager;
+	}
+
+	@Override
+	public CompletableFuture<byte[]> hget(byte[] key, byte[] field) {
+		Jedis jedis = null;
+		Boolean error = true;
+		try {
+			jedis = redisManager.acquireReadConnection(key);
+			byte[] value = jedis.hget(key, field);
+			error = false;
+			return CompletableFuture.completedFuture(value);
+		} finally {
+			if (jedis != null) {
+				redisManager.returnReadConnection(jedis, error);
+			}
+		}
+	}
+
+	@Override
+	public CompletableFuture<List<byte[]>> hmget(byte[] key, byte[]... fields) {
+		Jedis jedis = null;
+		Boolean error = true;
+		try {
+			jedis = redisManager.acquireReadConnection(key);
+			List<byte[]> values = jedis.hmget(key, fields);
+			error = false;
+			return CompletableFuture.completedFuture(values);
+		} finally {
+			if (jedis != null) {
+				redisManager.returnReadConnection(jedis, error);
+			}
+		}
+	}
+
+	@Override
+	public CompletableFuture<List<byte[]>> hmgetAndGet(byte[] key, byte[] stringKey, byte[]... fields) {
+		Jedis jedis = null;
+		Boolean error = true;
+		try {
+			jedis = redisManager.acquireReadConnection(key);
+			Pipeline pipeline = jedis.pipelined();
+			Response<List<byte[]>> values = pipeline.hmget(key, fields);
+			Response<byte[]> value = pipeline.get(stringKey);
+			pipeline.sync();
+			List<byte[]> result = new ArrayList<byte[]>(values.get());
+			result.add(value.get());
+			error = false;
+			return CompletableFuture.completedFuture(result);
+		} finally {
+			if (jedis != null) {
+				redisManager.returnReadConnection(jedis, error);
+			}
+		}
+	}
+
+	@Override
+	public CompletableFuture<Long> hset(byte[] key, byte[] field, byte[] value) {
+		Jedis jedis = null;
+		Boolean error = true;
+		try {
+			jedis = redisManager.acquireConnection(key);
+			Long result = jedis.hset(key, field, value);
+			error = false;
+			return CompletableFuture.completedFuture(result);
+		} finally {
+			if (jedis != null) {
+				redisManager.returnConnection(jedis, error);
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		// the pool belongs to RedisManager
+	}
+}
@@ -0,0 +1,526 @@
+package org.ofbiz.base.cache.redis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import org.ofbiz.base.util.Debug;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * Asynchronous transport multiplexing all threads over one connection (one
+ * per master in cluster mode).
+ *
+ * Callers only enqueue the command and get a CompletableFuture back. A writer
+ * thread drains the queue and sends everything queued with one socket write
+ * (automatic pipelining), a reader thread parses the replies and completes
+ * the futures in order. The connection is opened on first use and reopened
+ * after an I/O error, commands pending at that time fail with a
+ * JedisConnectionException. Connections to nodes that left the topology
+ * (the old master after a Sentinel failover, a replica no longer read from)
+ * are closed when a connection to a new node is opened and by
+ * closeRemovedNodes.
+ */
+public class RedisAsyncTransport implements RedisTransport {
+
+	public static final String module = RedisAsyncTransport.class.getName();
+
+	/** upper bound of commands sent with one socket write */
+	private static final int MAX_BATCH = 512;
+
+	private static final byte[] GET = "GET".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] HGET = "HGET".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] HMGET = "HMGET".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] HSET = "HSET".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] AUTH = "AUTH".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] SELECT = "SELECT".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] READONLY = "READONLY".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CRLF = new byte[] { '\r', '\n' };
+
+	private static final Function<Object, byte[]> TO_BYTES = new Function<Object, byte[]>() {
+		@Override
+		public byte[] apply(Object reply) {
+			return (byte[]) reply;
+		}
+	};
+
+	private static final Function<Object, List<byte[]>> TO_BYTES_LIST = new Function<Object, List<byte[]>>() {
+		@Override
+		public List<byte[]> apply(Object reply) {
+			List<?> replies = (List<?>) reply;
+			List<byte[]> values = new ArrayList<byte[]>(replies.size());
+			for (Object value : replies) {
+				values.add((byte[]) value);
+			}
+			return values;
+		}
+	};
+
+	private static final Function<Object, Long> TO_LONG = new Function<Object, Long>() {
+		@Override
+		public Long apply(Object reply) {
+			return (Long) reply;
+		}
+	};
+
+	private final RedisManager redisManager;
+
+	/** host:port -> connection */
+	private final Map<String, Connection> connections = new ConcurrentHashMap<String, Connection>();
+
+	private volatile boolean closed = false;
+
+	public RedisAsyncTransport(RedisManager redisManager) {
+		this.redisManager = redisManager;
+	}
+
+	@Override
+	public CompletableFuture<byte[]> hget(byte[] key, byte[] field) {
+		return send(redisManager.getReadAddress(key), HGET, key, field).thenApply(TO_BYTES);
+	}
+
+	@Override
+	public CompletableFuture<List<byte[]>> hmget(byte[] key, byte[]... fields) {
+		byte[][] args = new byte[fields.length + 2][];
+		args[0] = HMGET;
+		args[1] = key;
+		System.arraycopy(fields, 0, args, 2, fields.length);
+		return send(redisManager.getReadAddress(key), args).thenApply(TO_BYTES_LIST);
+	}
+
+	@Override
+	public CompletableFuture<List<byte[]>> hmgetAndGet(byte[] key, byte[] stringKey, byte[]... fields) {
+		// both go to the same connection and are written with the same batch
+		HostAndPort node = redisManager.getReadAddress(key);
+		byte[][] args = new byte[fields.length + 2][];
+		args[0] = HMGET;
+		args[1] = key;
+		System.arraycopy(fields, 0, args, 2, fields.length);
+		CompletableFuture<List<byte[]>> values = send(node, args).thenApply(TO_BYTES_LIST);
+		CompletableFuture<byte[]> value = send(node, GET, stringKey).thenApply(TO_BYTES);
+		return values.thenCombine(value, new BiFunction<List<byte[]>, byte[], List<byte[]>>() {
+			@Override
+			public List<byte[]> apply(List<byte[]> fieldValues, byte[] stringValue) {
+				fieldValues.add(stringValue);
+				return fieldValues;
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<Long> hset(byte[] key, byte[] field, byte[] value) {
+		return send(key, HSET, key, field, value).thenApply(TO_LONG);
+	}
+
+	/**
+	 * Sends any command, the future completes with the raw reply: byte[] for
+	 * bulk strings, String for status replies, Long for integers and List for
+	 * arrays. Error replies complete it with a JedisDataException. routingKey
+	 * selects the node in cluster mode.
+	 */
+	public CompletableFuture<Object> send(byte[] routingKey, byte[]... args) {
+		return send(redisManager.getMasterAddress(routingKey), args);
+	}
+
+	private CompletableFuture<Object> send(HostAndPort node, byte[]... args) {
+		CompletableFuture<Object> future = new CompletableFuture<Object>();
+		if (closed) {
+			future.completeExceptionally(new JedisConnectionException("Redis transport is closed"));
+			return future;
+		}
+		try {
+			getConnection(node).enqueue(new Command(args, future));
+		} catch (JedisConnectionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		synchronized (connections) {
+			for (Connection connection : connections.values()) {
+				connection.close(null);
+			}
+			connections.clear();
+		}
+	}
+
+	private Connection getConnection(HostAndPort address) {
+		String nodeKey = address.toString();
+		Connection current = connections.get(nodeKey);
+		if (current != null && current.open) {
+			return current;
+		}
+		synchronized (connections) {
+			current = connections.get(nodeKey);
+			if (current == null || !current.open) {
+				current = connect(address);
+				connections.put(nodeKey, current);
+				// a new node is often a new master replacing another one
+				closeRemovedNodes();
+			}
+			return current;
+		}
+	}
+
+	/**
+	 * Closes the connections, and their reader and writer threads, to nodes
+	 * that are no longer a master or a replica read from, and drops closed
+	 * ones. Their pending commands fail with a JedisConnectionException.
+	 */
+	public void closeRemovedNodes() {
+		Set<String> nodes = new HashSet<String>();
+		for (HostAndPort node : redisManager.getNodeAddresses()) {
+			nodes.add(node.toString());
+		}
+		synchronized (connections) {
+			Iterator<Map.Entry<String, Connection>> it = connections.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, Connection> entry = it.next();
+				if (!entry.getValue().open || !nodes.contains(entry.getKey())) {
+					it.remove();
+					if (entry.getValue().open) {
+						Debug.logInfo("entity cache async transport disconnecting from " + entry.getKey()
+								+ ", no longer in the redis topology", module);
+						entry.getValue().close(null);
+					}
+				}
+			}
+		}
+	}
+
+	private Connection connect(HostAndPort address) {
+		SocketChannel channel = null;
+		try {
+			channel = SocketChannel.open();
+			channel.socket().setTcpNoDelay(true);
+			channel.socket().setKeepAlive(true);
+			channel.socket().connect(new InetSocketAddress(address.getHost(), address.getPort()),
+					redisManager.getTimeout());
+			Connection newConnection = new Connection(channel);
+			List<CompletableFuture<Object>> handshake = new ArrayList<CompletableFuture<Object>>(2);
+			String password = redisManager.getPassword();
+			if (password != null && !"".equals(password.trim())) {
+				handshake.add(newConnection.enqueue(AUTH, password.getBytes(StandardCharsets.UTF_8)));
+			}
+			if (redisManager.isCluster()) {
+				// lets cluster replicas serve the reads routed to them, a no-op on masters
+				handshake.add(newConnection.enqueue(READONLY));
+			} else if (redisManager.getDatabase() != 0) {
+				handshake.add(newConnection.enqueue(SELECT,
+						Integer.toString(redisManager.getDatabase()).getBytes(StandardCharsets.US_ASCII)));
+			}
+			newConnection.start();
+			awaitHandshake(newConnection, handshake, address);
+			Debug.logInfo("entity cache async transport connected to " + address, module);
+			return newConnection;
+		} catch (IOException e) {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException ignored) {
+				}
+			}
+			throw new JedisConnectionException("Unable to connect to redis at " + address, e);
+		}
+	}
+
+	/**
+	 * Waits for the replies of AUTH, READONLY and SELECT; when one of them
+	 * fails the connection is closed, commands sent on it would run
+	 * unauthenticated or on the wrong database.
+	 */
+	private void awaitHandshake(Connection connection, List<CompletableFuture<Object>> handshake,
+			HostAndPort address) {
+		int timeout = redisManager.getTimeout();
+		try {
+			for (CompletableFuture<Object> reply : handshake) {
+				if (timeout > 0) {
+					reply.get(timeout, TimeUnit.MILLISECONDS);
+				} else {
+					reply.get();
+				}
+			}
+		} catch (ExecutionException e) {
+			connection.close(null);
+			throw new JedisConnectionException("Redis handshake with " + address + " failed: "
+					+ e.getCause().getMessage(), e.getCause());
+		} catch (TimeoutException e) {
+			connection.close(null);
+			throw new JedisConnectionException("Timed out waiting for the redis handshake with " + address, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			connection.close(null);
+			throw new JedisConnectionException(e);
+		}
+	}
+
+	private static final class Command {
+		private final byte[][] args;
+		private final CompletableFuture<Object> future;
+
+		private Command(byte[][] args, CompletableFuture<Object> future) {
+			this.args = args;
+			this.future = future;
+		}
+	}
+
+	private final class Connection {
+		private final SocketChannel channel;
+		private final LinkedBlockingQueue<Command> outbound = new LinkedBlockingQueue<Command>();
+		/** written commands waiting for their reply, in write order */
+		private final ConcurrentLinkedQueue<Command> inflight = new ConcurrentLinkedQueue<Command>();
+		private final ByteBuffer readBuffer = ByteBuffer.allocate(16384);
+		private volatile boolean open = true;
+		private Thread writer;
+		private Thread reader;
+
+		private Connection(SocketChannel channel) {
+			this.channel = channel;
+			readBuffer.flip();
+		}
+
+		private void start() {
+			writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					writeLoop();
+				}
+			}, "entitycache-redis-async-writer");
+			writer.setDaemon(true);
+			reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					readLoop();
+				}
+			}, "entitycache-redis-async-reader");
+			reader.setDaemon(true);
+			writer.start();
+			reader.start();
+		}
+
+		private void enqueue(Command command) {
+			outbound.add(command);
+			if (!open) {
+				// lost the race with close(), make sure nothing is left behind
+				failPending(new JedisConnectionException("Redis connection closed"));
+			}
+		}
+
+		private CompletableFuture<Object> enqueue(byte[]... args) {
+			CompletableFuture<Object> future = new CompletableFuture<Object>();
+			enqueue(new Command(args, future));
+			return future;
+		}
+
+		private void writeLoop() {
+			List<Command> batch = new ArrayList<Command>(MAX_BATCH);
+			Buffer buffer = new Buffer();
+			try {
+				while (open) {
+					batch.add(outbound.take());
+					outbound.drainTo(batch, MAX_BATCH - 1);
+					buffer.reset();
+					for (Command command : batch) {
+						encode(buffer, command.args);
+						inflight.add(command);
+					}
+					ByteBuffer bytes = ByteBuffer.wrap(buffer.buf(), 0, buffer.size());
+					while (bytes.hasRemaining()) {
+						channel.write(bytes);
+					}
+					batch.clear();
+				}
+			} catch (InterruptedException e) {
+				close(null);
+			} catch (Exception e) {
+				close(e);
+			} finally {
+				// commands taken off outbound but not yet in inflight when close() failed the pending ones
+				JedisConnectionException closedException = new JedisConnectionException("Redis connection closed");
+				for (Command command : batch) {
+					command.future.completeExceptionally(closedException);
+				}
+				failPending(closedException);
+			}
+		}
+
+		private void readLoop() {
+			try {
+				while (open) {
+					Object reply = readReply();
+					Command command = inflight.poll();
+					if (command == null) {
+						throw new IOException("Received a reply without pending command");
+					}
+					if (reply instanceof JedisDataException) {
+						command.future.completeExceptionally((JedisDataException) reply);
+					} else {
+						command.future.complete(reply);
+					}
+				}
+			} catch (Exception e) {
+				close(e);
+			}
+		}
+
+		private void close(Exception cause) {
+			synchronized (this) {
+				if (!open) {
+					return;
+				}
+				open = false;
+			}
+			if (cause != null) {
+				Debug.logWarning(cause, "entity cache async transport connection lost", module);
+			}
+			try {
+				channel.close();
+			} catch (IOException ignored) {
+			}
+			if (writer != null) {
+				writer.interrupt();
+			}
+			failPending(cause != null ? new JedisConnectionException(cause)
+					: new JedisConnectionException("Redis connection closed"));
+		}
+
+		private void failPending(JedisConnectionException e) {
+			Command command;
+			while ((command = inflight.poll()) != null) {
+				command.future.completeExceptionally(e);
+			}
+			while ((command = outbound.poll()) != null) {
+				command.future.completeExceptionally(e);
+			}
+		}
+
+		private Object readReply() throws IOException {
+			byte type = readByte();
+			switch (type) {
+			case '+':
+				return readLine();
+			case '-':
+				return new JedisDataException(readLine());
+			case ':':
+				return Long.parseLong(readLine());
+			case '$': {
+				int length = Integer.parseInt(readLine());
+				if (length < 0) {
+					return null;
+				}
+				byte[] bytes = new byte[length];
+				readFully(bytes);
+				readByte(); // \r
+				readByte(); // \n
+				return bytes;
+			}
+			case '*': {
+				int count = Integer.parseInt(readLine());
+				if (count < 0) {
+					return null;
+				}
+				List<Object> replies = new ArrayList<Object>(count);
+				for (int i = 0; i < count; i++) {
+					replies.add(readReply());
+				}
+				return replies;
+			}
+			default:
+				throw new IOException("Unknown redis reply type [" + (char) type + "]");
+			}
+		}
+
+		private String readLine() throws IOException {
+			StringBuilder sb = new StringBuilder();
+			byte b;
+			while ((b = readByte()) != '\r') {
+				sb.append((char) b);
+			}
+			readByte(); // \n
+			return sb.toString();
+		}
+
+		private byte readByte() throws IOException {
+			if (!readBuffer.hasRemaining()) {
+				fill();
+			}
+			return readBuffer.get();
+		}
+
+		private void readFully(byte[] bytes) throws IOException {
+			int offset = 0;
+			while (offset < bytes.length) {
+				if (!readBuffer.hasRemaining()) {
+					fill();
+				}
+				int n = Math.min(readBuffer.remaining(), bytes.length - offset);
+				readBuffer.get(bytes, offset, n);
+				offset += n;
+			}
+		}
+
+		private void fill() throws IOException {
+			readBuffer.clear();
+			int n;
+			do {
+				n = channel.read(readBuffer);
+			} while (n == 0);
+			readBuffer.flip();
+			if (n < 0) {
+				throw new IOException("Connection closed by redis");
+			}
+		}
+	}
+
+	private static void encode(Buffer out, byte[][] args) {
+		out.write('*');
+		out.writeAscii(args.length);
+		out.write(CRLF, 0, 2);
+		for (byte[] arg : args) {
+			out.write('$');
+			out.writeAscii(arg.length);
+			out.write(CRLF, 0, 2);
+			out.write(arg, 0, arg.length);
+			out.write(CRLF, 0, 2);
+		}
+	}
+
+	private static final class Buffer extends ByteArrayOutputStream {
+		private Buffer() {
+			super(8192);
+		}
+
+		private byte[] buf() {
+			return buf;
+		}
+
+		private void writeAscii(int value) {
+			byte[] digits = Integer.toString(value).getBytes(StandardCharsets.US_ASCII);
+			write(digits, 0, digits.length);
+		}
+	}
+}
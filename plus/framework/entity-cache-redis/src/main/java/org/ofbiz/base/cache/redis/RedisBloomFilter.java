@@ -0,0 +1,147 @@
+package org.ofbiz.base.cache.redis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Local copy of a bloom filter kept in redis as a bitmap, see
+ * UtilRedisCache.isKnownAbsent.
+ *
+ * Bit i is bit 7 - i % 8 of byte i / 8, the order of SETBIT/GETBIT, so the
+ * bitmap read with GET is loaded as is. The hashes positions of a key are
+ * h1 + i * h2 of its MurmurHash3.
+ */
+final class RedisBloomFilter {
+
+	/** the largest bitmap redis can hold */
+	private static final long MAX_BITS = 1L << 32;
+
+	private final long bits;
+
+	private final int hashes;
+
+	private volatile AtomicLongArray words;
+
+	/** positions added while a bitmap is read, applied again after load */
+	private volatile Queue<long[]> journal = null;
+
+	RedisBloomFilter(long bits, int hashes) {
+		this.bits = bits;
+		this.hashes = hashes;
+		this.words = new AtomicLongArray(wordCount(bits));
+	}
+
+	/**
+	 * a filter holding expectedKeys keys with the given false positive rate
+	 */
+	static RedisBloomFilter create(long expectedKeys, double falsePositiveRate) {
+		double ln2 = Math.log(2);
+		long bits = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (ln2 * ln2));
+		bits = Math.max(64, Math.min(MAX_BITS, bits));
+		int hashes = (int) Math.max(1, Math.round((double) bits / expectedKeys * ln2));
+		return new RedisBloomFilter(bits, hashes);
+	}
+
+	long getBits() {
+		return bits;
+	}
+
+	int getHashes() {
+		return hashes;
+	}
+
+	long[] positions(String key) {
+		long[] hash = MurmurHash3.hash128(key.getBytes(StandardCharsets.UTF_8));
+		long[] positions = new long[hashes];
+		for (int i = 0; i < hashes; i++) {
+			positions[i] = ((hash[0] + i * hash[1]) & Long.MAX_VALUE) % bits;
+		}
+		return positions;
+	}
+
+	boolean mightContain(String key) {
+		AtomicLongArray words = this.words;
+		for (long position : positions(key)) {
+			if ((words.get((int) (position >>> 6)) & mask(position)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	void add(long[] positions) {
+		AtomicLongArray words = this.words;
+		set(words, positions);
+		if (journal != null || words != this.words) {
+			// a load is running or replaced the bits meanwhile
+			synchronized (this) {
+				if (journal != null) {
+					journal.add(positions);
+				}
+				set(this.words, positions);
+			}
+		}
+	}
+
+	/** call before the bitmap passed to load is read */
+	synchronized void beginLoad() {
+		journal = new ConcurrentLinkedQueue<long[]>();
+	}
+
+	/**
+	 * replaces the bits with bitmap, as read by GET, keeping the positions
+	 * added since beginLoad; null only ends the load
+	 */
+	synchronized void load(byte[] bitmap) {
+		if (bitmap == null) {
+			journal = null;
+			return;
+		}
+		AtomicLongArray loaded = new AtomicLongArray(wordCount(bits));
+		int length = Math.min(bitmap.length, (int) ((bits + 7) / 8));
+		for (int i = 0; i < length; i++) {
+			if (bitmap[i] != 0) {
+				int word = i >>> 3;
+				loaded.set(word, loaded.get(word) | ((bitmap[i] & 0xFFL) << (56 - (i & 7) * 8)));
+			}
+		}
+		words = loaded;
+		if (journal != null) {
+			for (long[] positions : journal) {
+				set(loaded, positions);
+			}
+			journal = null;
+		}
+	}
+
+	/** the bitmap in the layout of SETBIT */
+	byte[] toBytes() {
+		AtomicLongArray words = this.words;
+		byte[] bitmap = new byte[(int) ((bits + 7) / 8)];
+		for (int i = 0; i < bitmap.length; i++) {
+			bitmap[i] = (byte) (words.get(i >>> 3) >>> (56 - (i & 7) * 8));
+		}
+		return bitmap;
+	}
+
+	private static void set(AtomicLongArray words, long[] positions) {
+		for (long position : positions) {
+			int word = (int) (position >>> 6);
+			long mask = mask(position);
+			long value;
+			do {
+				value = words.get(word);
+			} while ((value & mask) == 0 && !words.compareAndSet(word, value, value | mask));
+		}
+	}
+
+	private static long mask(long position) {
+		return 1L << (63 - (position & 63));
+	}
+
+	private static int wordCount(long bits) {
+		return (int) ((bits + 63) >>> 6);
+	}
+}
@@ -0,0 +1,15 @@
+package org.ofbiz.base.cache.redis;
+
+/**
+ * Turns cached values into the bytes stored in redis and back.
+ *
+ * configured with entitycache.redis-codec, an implementation must be
+ * thread safe and have a public no-arg constructor. decode returns null for
+ * data it cannot read, which is then handled as a cache miss.
+ */
+public interface RedisCacheCodec {
+
+	byte[] encode(Object value);
+
+	Object decode(byte[] bytes);
+}
@@ -0,0 +1,259 @@
+package org.ofbiz.base.cache.redis;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.ofbiz.base.util.Debug;
+
+/**
+ * Optional header written in front of the codec payload of a cache entry.
+ *
+ * layout: MAGIC, flags, [expireAt millis when FLAG_EXPIRE], [softExpireAt
+ * millis when FLAG_SOFT_EXPIRE], [payload length when FLAG_COMPRESSED],
+ * payload. Entries
+ * without any header field are stored as the bare codec payload, which never
+ * starts with MAGIC.
+ *
+ * Payloads of at least compressThreshold bytes are deflated (fastest level)
+ * when that makes them smaller, see entitycache.redis-compressThreshold. With
+ * FLAG_CHUNKED the payload is not a codec payload but a RedisListManifest.
+ */
+final class RedisCacheEnvelope {
+
+	static final byte MAGIC = 0x7F;
+
+	static final byte FLAG_EXPIRE = 0x01;
+
+	/** past softExpireAt the value is served while it is refreshed */
+	static final byte FLAG_SOFT_EXPIRE = 0x02;
+
+	/** payload is deflated, preceded by its inflated length */
+	static final byte FLAG_COMPRESSED = 0x04;
+
+	/** payload is the RedisListManifest of a list stored in chunks */
+	static final byte FLAG_CHUNKED = 0x08;
+
+	/** Deflater/Inflater hold native memory and are costly to create, one per thread is reused */
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.BEST_SPEED, true);
+		}
+	};
+
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+
+	final long expireAt;
+
+	final long softExpireAt;
+
+	/** codec payload, null when a compressed payload could not be inflated */
+	final byte[] payload;
+
+	final boolean chunked;
+
+	private RedisCacheEnvelope(long expireAt, long softExpireAt, byte[] payload, boolean chunked) {
+		this.expireAt = expireAt;
+		this.softExpireAt = softExpireAt;
+		this.payload = payload;
+		this.chunked = chunked;
+	}
+
+	boolean isExpired(long now) {
+		return expireAt > 0 && expireAt <= now;
+	}
+
+	boolean isSoftExpired(long now) {
+		return softExpireAt > 0 && softExpireAt <= now;
+	}
+
+	static byte[] wrap(byte[] payload, long expireAt) {
+		return wrap(payload, expireAt, 0);
+	}
+
+	static byte[] wrap(byte[] payload, long expireAt, long softExpireAt) {
+		return wrap(payload, expireAt, softExpireAt, 0);
+	}
+
+	/**
+	 * @param compressThreshold
+	 *            smallest payload that is compressed, 0 for none
+	 */
+	static byte[] wrap(byte[] payload, long expireAt, long softExpireAt, int compressThreshold) {
+		return wrap(payload, expireAt, softExpireAt, compressThreshold, (byte) 0);
+	}
+
+	static byte[] wrapManifest(byte[] manifest, long expireAt, long softExpireAt) {
+		return wrap(manifest, expireAt, softExpireAt, 0, FLAG_CHUNKED);
+	}
+
+	/** true when bytes hold a RedisListManifest, without unwrapping them */
+	static boolean isChunked(byte[] bytes) {
+		return bytes != null && bytes.length >= 2 && bytes[0] == MAGIC && (bytes[1] & FLAG_CHUNKED) != 0;
+	}
+
+	private static byte[] wrap(byte[] payload, long expireAt, long softExpireAt, int compressThreshold, byte flags) {
+		if (payload == null) {
+			return null;
+		}
+		int length = payload.length;
+		byte[] compressed = null;
+		if (compressThreshold > 0 && length >= compressThreshold) {
+			compressed = deflate(payload);
+			if (compressed != null) {
+				payload = compressed;
+			}
+		}
+		if (expireAt <= 0 && softExpireAt <= 0 && compressed == null && flags == 0) {
+			return payload;
+		}
+		int offset = 2;
+		if (expireAt > 0) {
+			flags |= FLAG_EXPIRE;
+			offset += 8;
+		}
+		if (softExpireAt > 0) {
+			flags |= FLAG_SOFT_EXPIRE;
+			offset += 8;
+		}
+		if (compressed != null) {
+			flags |= FLAG_COMPRESSED;
+			offset += 4;
+		}
+		byte[] bytes = new byte[payload.length + offset];
+		bytes[0] = MAGIC;
+		bytes[1] = flags;
+		offset = 2;
+		if (expireAt > 0) {
+			writeLong(bytes, offset, expireAt);
+			offset += 8;
+		}
+		if (softExpireAt > 0) {
+			writeLong(bytes, offset, softExpireAt);
+			offset += 8;
+		}
+		if (compressed != null) {
+			writeInt(bytes, offset, length);
+			offset += 4;
+		}
+		System.arraycopy(payload, 0, bytes, offset, payload.length);
+		return bytes;
+	}
+
+	static RedisCacheEnvelope unwrap(byte[] bytes) {
+		if (bytes.length < 2 || bytes[0] != MAGIC) {
+			return new RedisCacheEnvelope(0, 0, bytes, false);
+		}
+		byte flags = bytes[1];
+		boolean chunked = (flags & FLAG_CHUNKED) != 0;
+		int offset = 2;
+		long expireAt = 0;
+		if ((flags & FLAG_EXPIRE) != 0) {
+			expireAt = readLong(bytes, offset);
+			offset += 8;
+		}
+		long softExpireAt = 0;
+		if ((flags & FLAG_SOFT_EXPIRE) != 0) {
+			softExpireAt = readLong(bytes, offset);
+			offset += 8;
+		}
+		if ((flags & FLAG_COMPRESSED) != 0) {
+			int length = readInt(bytes, offset);
+			offset += 4;
+			return new RedisCacheEnvelope(expireAt, softExpireAt, inflate(bytes, offset, length), chunked);
+		}
+		byte[] payload = new byte[bytes.length - offset];
+		System.arraycopy(bytes, offset, payload, 0, payload.length);
+		return new RedisCacheEnvelope(expireAt, softExpireAt, payload, chunked);
+	}
+
+	/**
+	 * deflated payload, null when it would not be smaller
+	 */
+	private static byte[] deflate(byte[] payload) {
+		Deflater deflater = deflaters.get();
+		try {
+			deflater.setInput(payload);
+			deflater.finish();
+			// anything not saving at least 1/8 is not worth the inflate on every read
+			byte[] buffer = new byte[payload.length - payload.length / 8];
+			int length = 0;
+			while (!deflater.finished() && length < buffer.length) {
+				length += deflater.deflate(buffer, length, buffer.length - length);
+			}
+			if (!deflater.finished()) {
+				return null;
+			}
+			byte[] compressed = new byte[length];
+			System.arraycopy(buffer, 0, compressed, 0, length);
+			return compressed;
+		} finally {
+			deflater.reset();
+		}
+	}
+
+	/**
+	 * inflated payload, null when the data is damaged (read as a miss)
+	 */
+	private static byte[] inflate(byte[] bytes, int offset, int length) {
+		Inflater inflater = inflaters.get();
+		try {
+			inflater.setInput(bytes, offset, bytes.length - offset);
+			byte[] payload = new byte[length];
+			int read = 0;
+			while (read < length && !inflater.finished()) {
+				int n = inflater.inflate(payload, read, length - read);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				read += n;
+			}
+			if (read != length) {
+				Debug.logWarning("Truncated compressed cache value, ignoring cached value", "redis");
+				return null;
+			}
+			return payload;
+		} catch (DataFormatException e) {
+			Debug.logWarning(e, "Corrupt compressed cache value, ignoring cached value", "redis");
+			return null;
+		} finally {
+			inflater.reset();
+		}
+	}
+
+	private static void writeInt(byte[] bytes, int offset, int value) {
+		for (int i = 3; i >= 0; i--) {
+			bytes[offset + i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+
+	private static int readInt(byte[] bytes, int offset) {
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			value = (value << 8) | (bytes[offset + i] & 0xFF);
+		}
+		return value;
+	}
+
+	private static void writeLong(byte[] bytes, int offset, long value) {
+		for (int i = 7; i >= 0; i--) {
+			bytes[offset + i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+
+	private static long readLong(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (bytes[offset + i] & 0xFF);
+		}
+		return value;
+	}
+}
@@ -0,0 +1,162 @@
+package org.ofbiz.base.cache.redis;
+
+import java.util.UUID;
+
+import org.ofbiz.base.util.Debug;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.Pipeline;
+
+/**
+ * Keeps the near cache tier of every node coherent: put/remove/clear of a
+ * UtilRedisCache publish a message on a redis channel, the other nodes drop
+ * the matching local entries when they receive it. The keys added to primary
+ * key filters are sent the same way (OP_PK_ADDED).
+ *
+ * message format: nodeId|op|cacheName|field
+ */
+public class RedisCacheInvalidator {
+
+	public static final String module = RedisCacheInvalidator.class.getName();
+
+	public static final String DEFAULT_CHANNEL = "entitycache.invalidate";
+
+	static final char OP_REMOVE = 'R';
+	static final char OP_REMOVE_PREFIX = 'P';
+	static final char OP_CLEAR = 'C';
+	static final char OP_PK_ADDED = 'K';
+
+	private static final long RECONNECT_WAIT_MILLIS = 5000;
+
+	private final String nodeId = UUID.randomUUID().toString();
+
+	private final RedisManager redisManager;
+
+	private final String channel;
+
+	private volatile Thread subscriberThread = null;
+
+	private volatile boolean running = false;
+
+	private final JedisPubSub listener = new JedisPubSub() {
+		@Override
+		public void onMessage(String channel, String message) {
+			handleMessage(message);
+		}
+	};
+
+	public RedisCacheInvalidator(RedisManager redisManager, String channel) {
+		this.redisManager = redisManager;
+		this.channel = channel != null ? channel : DEFAULT_CHANNEL;
+	}
+
+	public String getChannel() {
+		return channel;
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Start the subscriber thread, it holds one redis connection for as long
+	 * as the node is running.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		subscriberThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				subscribeLoop();
+			}
+		}, "entitycache-redis-invalidator");
+		subscriberThread.setDaemon(true);
+		subscriberThread.start();
+		Debug.logInfo("entity cache invalidation subscribed on redis channel [" + channel + "]", module);
+	}
+
+	public synchronized void stop() {
+		running = false;
+		if (listener.isSubscribed()) {
+			listener.unsubscribe();
+		}
+	}
+
+	public void publish(Pipeline pipeline, char op, String cacheName, String field) {
+		pipeline.publish(channel, message(op, cacheName, field));
+	}
+
+	public void publish(Jedis jedis, char op, String cacheName, String field) {
+		jedis.publish(channel, message(op, cacheName, field));
+	}
+
+	protected String message(char op, String cacheName, String field) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(nodeId).append('|').append(op).append('|').append(cacheName).append('|');
+		if (field != null) {
+			sb.append(field);
+		}
+		return sb.toString();
+	}
+
+	protected void handleMessage(String message) {
+		String[] parts = message.split("\\|", 4);
+		if (parts.length < 4 || parts[1].length() != 1) {
+			Debug.logWarning("Ignoring malformed entity cache invalidation message [" + message + "]", module);
+			return;
+		}
+		if (nodeId.equals(parts[0])) {
+			// our own message, the local tier was updated already
+			return;
+		}
+		UtilRedisCache<?, ?> cache = UtilRedisCacheFactory.findCache(parts[2]);
+		if (cache == null) {
+			return;
+		}
+		if (Debug.verboseOn())
+			Debug.logVerbose("redis invalidation [" + message + "]", "redis");
+		if (parts[1].charAt(0) == OP_PK_ADDED) {
+			cache.pkFilterAdded(parts[3]);
+		} else {
+			cache.invalidateNearCache(parts[1].charAt(0), parts[3]);
+		}
+	}
+
+	private void subscribeLoop() {
+		while (running) {
+			Jedis jedis = null;
+			Boolean error = true;
+			try {
+				jedis = redisManager.acquireConnection();
+				jedis.subscribe(listener, channel);
+				error = false;
+			} catch (Exception e) {
+				Debug.logWarning(e, "Lost entity cache invalidation subscription on [" + channel + "], retrying", module);
+			} finally {
+				if (jedis != null) {
+					// a connection that was in subscribe mode is never reused
+					redisManager.returnConnection(jedis, true);
+				}
+			}
+			if (running && error) {
+				// while the subscription is down the local tiers may have missed
+				// messages, drop everything rather than serve stale values
+				UtilRedisCacheFactory.clearNearCaches();
+				try {
+					Thread.sleep(RECONNECT_WAIT_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+}
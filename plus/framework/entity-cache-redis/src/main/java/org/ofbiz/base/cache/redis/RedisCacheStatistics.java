@@ -0,0 +1,258 @@
+package org.ofbiz.base.cache.redis;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Access statistics of one UtilRedisCache on this node (entitycache.redis-statistics).
+ *
+ * Counters are LongAdders so concurrent reads do not contend on them; the
+ * redis round trips of reads (HGET/HMGET) and writes (HSET/HDEL) go to
+ * separate latency histograms. Hits are reads answered by redis, near hits
+ * reads answered in this JVM (near cache or a pending write-behind value).
+ */
+public class RedisCacheStatistics implements RedisCacheStatisticsMBean {
+
+	private final UtilRedisCache<?, ?> cache;
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder nearHits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder pkFilterRejects = new LongAdder();
+
+	private final LongAdder puts = new LongAdder();
+
+	private final LongAdder stalePutRejects = new LongAdder();
+
+	private final LongAdder removes = new LongAdder();
+
+	private final LongAdder bytesIn = new LongAdder();
+
+	private final LongAdder bytesOut = new LongAdder();
+
+	private final LongAdder serializeNanos = new LongAdder();
+
+	private final LongAdder deserializeNanos = new LongAdder();
+
+	private final RedisLatencyHistogram readLatency = new RedisLatencyHistogram();
+
+	private final RedisLatencyHistogram writeLatency = new RedisLatencyHistogram();
+
+	/** null when topKSize is 0 */
+	private final RedisTopKSketch topKeys;
+
+	public RedisCacheStatistics(UtilRedisCache<?, ?> cache, int topKSize, double topKSampleRate) {
+		this.cache = cache;
+		this.topKeys = topKSize > 0 ? new RedisTopKSketch(topKSize, topKSampleRate) : null;
+	}
+
+	void recordHit(String field) {
+		hits.increment();
+		offer(field);
+	}
+
+	void recordNearHit(String field) {
+		nearHits.increment();
+		offer(field);
+	}
+
+	void recordMiss(String field) {
+		misses.increment();
+		offer(field);
+	}
+
+	void recordPkFilterReject() {
+		pkFilterRejects.increment();
+	}
+
+	private void offer(String field) {
+		if (topKeys != null) {
+			topKeys.offer(field);
+		}
+	}
+
+	void recordPut() {
+		puts.increment();
+	}
+
+	void recordStalePutReject() {
+		stalePutRejects.increment();
+	}
+
+	void recordRemove() {
+		removes.increment();
+	}
+
+	void recordSerialize(long nanos, int bytes) {
+		serializeNanos.add(nanos);
+		bytesOut.add(bytes);
+	}
+
+	void recordDeserialize(long nanos, int bytes) {
+		deserializeNanos.add(nanos);
+		bytesIn.add(bytes);
+	}
+
+	void recordRead(long nanos) {
+		readLatency.record(nanos);
+	}
+
+	void recordWrite(long nanos) {
+		writeLatency.record(nanos);
+	}
+
+	@Override
+	public String getName() {
+		return cache.getName();
+	}
+
+	@Override
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	@Override
+	public long getNearHitCount() {
+		return nearHits.sum();
+	}
+
+	@Override
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	@Override
+	public long getPkFilterRejectCount() {
+		return pkFilterRejects.sum();
+	}
+
+	@Override
+	public double getHitRatio() {
+		long found = hits.sum() + nearHits.sum();
+		long reads = found + misses.sum();
+		return reads > 0 ? (double) found / reads : 0;
+	}
+
+	@Override
+	public long getPutCount() {
+		return puts.sum();
+	}
+
+	@Override
+	public long getStalePutRejectCount() {
+		return stalePutRejects.sum();
+	}
+
+	@Override
+	public long getRemoveCount() {
+		return removes.sum();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	@Override
+	public long getSerializeTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(serializeNanos.sum());
+	}
+
+	@Override
+	public long getDeserializeTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(deserializeNanos.sum());
+	}
+
+	@Override
+	public long getReadCount() {
+		return readLatency.getCount();
+	}
+
+	@Override
+	public long getReadLatencyMeanMicros() {
+		return readLatency.getMeanMicros();
+	}
+
+	@Override
+	public long getReadLatency50Micros() {
+		return readLatency.getPercentileMicros(50);
+	}
+
+	@Override
+	public long getReadLatency99Micros() {
+		return readLatency.getPercentileMicros(99);
+	}
+
+	@Override
+	public long getReadLatency999Micros() {
+		return readLatency.getPercentileMicros(99.9);
+	}
+
+	@Override
+	public long getWriteCount() {
+		return writeLatency.getCount();
+	}
+
+	@Override
+	public long getWriteLatencyMeanMicros() {
+		return writeLatency.getMeanMicros();
+	}
+
+	@Override
+	public long getWriteLatency50Micros() {
+		return writeLatency.getPercentileMicros(50);
+	}
+
+	@Override
+	public long getWriteLatency99Micros() {
+		return writeLatency.getPercentileMicros(99);
+	}
+
+	@Override
+	public long getWriteLatency999Micros() {
+		return writeLatency.getPercentileMicros(99.9);
+	}
+
+	@Override
+	public int getNearCacheSize() {
+		return cache.getNearCacheSize();
+	}
+
+	@Override
+	public String[] getTopKeys() {
+		if (topKeys == null) {
+			return new String[0];
+		}
+		List<String> keys = topKeys.getTopKeys();
+		return keys.toArray(new String[keys.size()]);
+	}
+
+	@Override
+	public void reset() {
+		hits.reset();
+		nearHits.reset();
+		misses.reset();
+		pkFilterRejects.reset();
+		puts.reset();
+		stalePutRejects.reset();
+		removes.reset();
+		bytesIn.reset();
+		bytesOut.reset();
+		serializeNanos.reset();
+		deserializeNanos.reset();
+		readLatency.reset();
+		writeLatency.reset();
+		if (topKeys != null) {
+			topKeys.reset();
+		}
+	}
+}
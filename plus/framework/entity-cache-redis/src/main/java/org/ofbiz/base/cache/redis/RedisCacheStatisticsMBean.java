@@ -0,0 +1,65 @@
+package org.ofbiz.base.cache.redis;
+
+/**
+ * JMX view of RedisCacheStatistics, registered per cache as
+ * org.ofbiz.entitycache.redis:type=UtilRedisCache,name=(cache name).
+ * Latencies are in microseconds, times in milliseconds.
+ */
+public interface RedisCacheStatisticsMBean {
+
+	String getName();
+
+	long getHitCount();
+
+	long getNearHitCount();
+
+	long getMissCount();
+
+	/** reads answered as not existing by the primary key filter, without redis */
+	long getPkFilterRejectCount();
+
+	/** (hits + near hits) / reads, 0 when nothing was read */
+	double getHitRatio();
+
+	long getPutCount();
+
+	/** puts not written because the cache was invalidated since their miss, see versionedPut */
+	long getStalePutRejectCount();
+
+	long getRemoveCount();
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	long getSerializeTimeMillis();
+
+	long getDeserializeTimeMillis();
+
+	long getReadCount();
+
+	long getReadLatencyMeanMicros();
+
+	long getReadLatency50Micros();
+
+	long getReadLatency99Micros();
+
+	long getReadLatency999Micros();
+
+	long getWriteCount();
+
+	long getWriteLatencyMeanMicros();
+
+	long getWriteLatency50Micros();
+
+	long getWriteLatency99Micros();
+
+	long getWriteLatency999Micros();
+
+	int getNearCacheSize();
+
+	/** most read fields of this cache on this node, see RedisTopKSketch */
+	String[] getTopKeys();
+
+	void reset();
+}
@@ -0,0 +1,68 @@
+package org.ofbiz.base.cache.redis;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Read-only view of a list stored in chunks, see RedisListManifest. A chunk is
+ * read from redis and decoded the first time one of its elements is accessed,
+ * then kept by the view.
+ *
+ * The chunks are only guaranteed to exist while the entry is cached: a chunk
+ * that is gone when it is first accessed (the entry was replaced, removed or
+ * expired after the view was returned) raises a
+ * ConcurrentModificationException.
+ */
+final class RedisChunkedList<E> extends AbstractList<E> implements RandomAccess, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient UtilRedisCache<?, ?> cache;
+
+	private final transient String field;
+
+	private final transient RedisListManifest manifest;
+
+	private final transient AtomicReferenceArray<List<E>> chunks;
+
+	RedisChunkedList(UtilRedisCache<?, ?> cache, String field, RedisListManifest manifest) {
+		this.cache = cache;
+		this.field = field;
+		this.manifest = manifest;
+		this.chunks = new AtomicReferenceArray<List<E>>(manifest.getChunkCount());
+	}
+
+	@Override
+	public E get(int index) {
+		if (index < 0 || index >= manifest.size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + manifest.size);
+		}
+		int chunk = manifest.getChunk(index);
+		List<E> values = chunks.get(chunk);
+		if (values == null) {
+			List<List<E>> read = cache.readChunks(field, manifest, chunk, chunk + 1);
+			if (read == null) {
+				throw new ConcurrentModificationException("Chunk " + chunk + " of [" + field + "] in cache ["
+						+ cache.getName() + "] is no longer cached");
+			}
+			values = read.get(0);
+			chunks.set(chunk, values);
+		}
+		return values.get(index - chunk * manifest.chunkSize);
+	}
+
+	@Override
+	public int size() {
+		return manifest.size;
+	}
+
+	/** serialized as a plain list with all elements read */
+	private Object writeReplace() {
+		return new ArrayList<E>(this);
+	}
+}
@@ -0,0 +1,128 @@
+package org.ofbiz.base.cache.redis;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ofbiz.base.util.Debug;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+/**
+ * Records the cache entries read on this node into a sorted set shared by all
+ * nodes (member cacheName|field, score = sampled reads), the source of the
+ * hot-key part of EntityCacheWarmup.
+ *
+ * Reads are sampled with sampleRate and counted in memory, flush() adds the
+ * counts to redis with one pipeline and trims the set to the maxKeys highest
+ * scores.
+ */
+public class RedisHotKeyRecorder {
+
+	public static final String module = RedisHotKeyRecorder.class.getName();
+
+	public static final String HOT_KEYS_KEY = "entitycache:hotkeys";
+
+	private final RedisManager redisManager;
+
+	private final double sampleRate;
+
+	private final int maxKeys;
+
+	private final ConcurrentHashMap<String, AtomicLong> counts = new ConcurrentHashMap<String, AtomicLong>();
+
+	public RedisHotKeyRecorder(RedisManager redisManager, double sampleRate, int maxKeys) {
+		this.redisManager = redisManager;
+		this.sampleRate = sampleRate;
+		this.maxKeys = maxKeys;
+	}
+
+	public void record(String cacheName, String field) {
+		if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+			return;
+		}
+		String member = cacheName + '|' + field;
+		AtomicLong count = counts.get(member);
+		if (count == null) {
+			if (counts.size() >= maxKeys) {
+				// bounded between flushes, keys seen that rarely are not hot anyway
+				return;
+			}
+			AtomicLong newCount = new AtomicLong();
+			count = counts.putIfAbsent(member, newCount);
+			if (count == null) {
+				count = newCount;
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * Adds the counts sampled since the last flush to the shared set.
+	 */
+	public void flush() {
+		if (counts.isEmpty()) {
+			return;
+		}
+		List<String> members = new ArrayList<String>(counts.keySet());
+		Jedis jedis = null;
+		Boolean error = true;
+		try {
+			jedis = redisManager.acquireConnection(HOT_KEYS_KEY);
+			Pipeline pipeline = jedis.pipelined();
+			for (String member : members) {
+				AtomicLong count = counts.remove(member);
+				if (count != null && count.get() > 0) {
+					pipeline.zincrby(HOT_KEYS_KEY, count.get(), member);
+				}
+			}
+			pipeline.zremrangeByRank(HOT_KEYS_KEY, 0, -(maxKeys + 1));
+			pipeline.sync();
+			error = false;
+			if (Debug.verboseOn())
+				Debug.logVerbose("redis hot keys flushed [" + members.size() + "]", "redis");
+		} finally {
+			if (jedis != null) {
+				redisManager.returnConnection(jedis, error);
+			}
+		}
+	}
+
+	/**
+	 * The max hottest entries as cacheName -> fields, hottest first.
+	 */
+	public static Map<String, List<String>> getHotKeys(RedisManager redisManager, int max) {
+		Map<String, List<String>> hotKeys = new LinkedHashMap<String, List<String>>();
+		Jedis jedis = null;
+		Boolean error = true;
+		try {
+			jedis = redisManager.acquireConnection(HOT_KEYS_KEY);
+			Set<String> members = jedis.zrevrange(HOT_KEYS_KEY, 0, max - 1);
+			error = false;
+			for (String member : members) {
+				int separator = member.indexOf('|');
+				if (separator <= 0) {
+					continue;
+				}
+				String cacheName = member.substring(0, separator);
+				List<String> fields = hotKeys.get(cacheName);
+				if (fields == null) {
+					fields = new ArrayList<String>();
+					hotKeys.put(cacheName, fields);
+				}
+				fields.add(member.substring(separator + 1));
+			}
+			return hotKeys;
+		} finally {
+			if (jedis != null) {
+				redisManager.returnConnection(jedis, error);
+			}
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package org.ofbiz.base.cache.redis;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with power-of-two buckets in microseconds:
+ * bucket i counts durations in [2^(i-1), 2^i) microseconds, the last bucket
+ * everything above. Percentiles are reported as the upper bound of their
+ * bucket, so they are exact to a factor of two, enough to tell a 100us
+ * round trip from a 10ms one.
+ */
+public class RedisLatencyHistogram {
+
+	/** 2^31 microseconds is about 36 minutes */
+	private static final int BUCKETS = 32;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+	private final LongAdder totalNanos = new LongAdder();
+
+	public RedisLatencyHistogram() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	public void record(long nanos) {
+		long micros = nanos / 1000;
+		int bucket = 64 - Long.numberOfLeadingZeros(micros);
+		buckets[bucket < BUCKETS ? bucket : BUCKETS - 1].increment();
+		totalNanos.add(nanos);
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (LongAdder bucket : buckets) {
+			count += bucket.sum();
+		}
+		return count;
+	}
+
+	/** mean duration in microseconds, 0 when nothing was recorded */
+	public long getMeanMicros() {
+		long count = getCount();
+		return count > 0 ? totalNanos.sum() / count / 1000 : 0;
+	}
+
+	/**
+	 * upper bound in microseconds of the bucket holding the given percentile
+	 * (0-100), 0 when nothing was recorded
+	 */
+	public long getPercentileMicros(double percentile) {
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets[i].sum();
+			count += counts[i];
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0) {
+				return 1L << i;
+			}
+		}
+		return 1L << (BUCKETS - 1);
+	}
+
+	public void reset() {
+		for (LongAdder bucket : buckets) {
+			bucket.reset();
+		}
+		totalNanos.reset();
+	}
+}
@@ -0,0 +1,96 @@
+package org.ofbiz.base.cache.redis;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Stored in the field of a list that is kept in chunks of chunkSize elements.
+ *
+ * The chunks are fields of the same hash named field#token:index, so they are
+ * removed together with the field by clear, condition invalidation and the
+ * expiry reaper. token is new for every put, a reader never combines chunks
+ * of two puts.
+ *
+ * layout: token (8 bytes), size (4 bytes), chunkSize (4 bytes)
+ */
+final class RedisListManifest {
+
+	private static final int LENGTH = 16;
+
+	final long token;
+
+	final int size;
+
+	final int chunkSize;
+
+	private RedisListManifest(long token, int size, int chunkSize) {
+		this.token = token;
+		this.size = size;
+		this.chunkSize = chunkSize;
+	}
+
+	static RedisListManifest create(int size, int chunkSize) {
+		return new RedisListManifest(ThreadLocalRandom.current().nextLong(), size, chunkSize);
+	}
+
+	int getChunkCount() {
+		return (size + chunkSize - 1) / chunkSize;
+	}
+
+	/** the chunk holding element index */
+	int getChunk(int index) {
+		return index / chunkSize;
+	}
+
+	String getChunkField(String field, int chunk) {
+		return field + "#" + Long.toHexString(token) + ":" + chunk;
+	}
+
+	byte[] encode() {
+		byte[] bytes = new byte[LENGTH];
+		long value = token;
+		for (int i = 7; i >= 0; i--) {
+			bytes[i] = (byte) value;
+			value >>>= 8;
+		}
+		writeInt(bytes, 8, size);
+		writeInt(bytes, 12, chunkSize);
+		return bytes;
+	}
+
+	/** null when bytes are no manifest */
+	static RedisListManifest decode(byte[] bytes) {
+		if (bytes == null || bytes.length != LENGTH) {
+			return null;
+		}
+		long token = 0;
+		for (int i = 0; i < 8; i++) {
+			token = (token << 8) | (bytes[i] & 0xFF);
+		}
+		int size = readInt(bytes, 8);
+		int chunkSize = readInt(bytes, 12);
+		if (size < 0 || chunkSize <= 0) {
+			return null;
+		}
+		return new RedisListManifest(token, size, chunkSize);
+	}
+
+	private static void writeInt(byte[] bytes, int offset, int value) {
+		for (int i = 3; i >= 0; i--) {
+			bytes[offset + i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+
+	private static int readInt(byte[] bytes, int offset) {
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			value = (value << 8) | (bytes[offset + i] & 0xFF);
+		}
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		return "RedisListManifest[" + size + " elements in chunks of " + chunkSize + "]";
+	}
+}
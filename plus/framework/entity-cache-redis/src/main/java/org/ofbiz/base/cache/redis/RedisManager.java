@@ -2,10 +2,18 @@ package org.ofbiz.base.cache.redis;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.ofbiz.base.redis.RedisClusterRouter;
+import org.ofbiz.base.util.Debug;
+
+import redis.clients.jedis.HostAndPort;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
@@ -15,6 +23,25 @@ import redis.clients.util.Pool;
 
 public class RedisManager {
 
+	public static final String module = RedisManager.class.getName();
+
+	private static final RedisClusterRouter.Log clusterLog = new RedisClusterRouter.Log() {
+		@Override
+		public boolean isVerboseEnabled() {
+			return Debug.verboseOn();
+		}
+
+		@Override
+		public void verbose(String message) {
+			Debug.logVerbose(message, "redis");
+		}
+
+		@Override
+		public void warning(String message) {
+			Debug.logWarning(message, module);
+		}
+	};
+
 	protected String host = "localhost";
 	protected int port = 6379;
 	protected int database = 0;
@@ -22,8 +49,15 @@ public class RedisManager {
 	protected int timeout = Protocol.DEFAULT_TIMEOUT;
 	protected String sentinelMaster = null;
 	Set<String> sentinelSet = null;
+	protected String clusterNodes = null;
 
 	protected Pool<Jedis> connectionPool;
+	protected RedisClusterRouter clusterRouter = null;
+	protected String readPolicy = null;
+	protected int readMaxLag = 10;
+	protected RedisReplicaRouter replicaRouter = null;
+	/** replica connections borrowed by acquireReadConnection -> their pool */
+	private final Map<Jedis, JedisPool> replicaConnections = new ConcurrentHashMap<Jedis, JedisPool>();
 	protected JedisPoolConfig connectionPoolConfig = new JedisPoolConfig();
 
 	public RedisManager() {
@@ -105,7 +139,138 @@ public class RedisManager {
 		this.sentinelMaster = master;
 	}
 
+	public String getClusterNodes() {
+		return clusterNodes;
+	}
+
+	/**
+	 * comma separated host:port list of Redis Cluster nodes, enables cluster
+	 * mode
+	 */
+	public void setClusterNodes(String clusterNodes) {
+		this.clusterNodes = clusterNodes;
+	}
+
+	public String getReadPolicy() {
+		return readPolicy;
+	}
+
+	/**
+	 * master, prefer-replica or nearest, see RedisReplicaRouter
+	 */
+	public void setReadPolicy(String readPolicy) {
+		this.readPolicy = readPolicy;
+	}
+
+	public int getReadMaxLag() {
+		return readMaxLag;
+	}
+
+	/**
+	 * highest replication lag in seconds of a replica still used for reads,
+	 * negative for no bound
+	 */
+	public void setReadMaxLag(int readMaxLag) {
+		this.readMaxLag = readMaxLag;
+	}
+
+	public boolean isCluster() {
+		return clusterRouter != null;
+	}
+
+	/**
+	 * address of the current master, as reported by Sentinel when configured
+	 */
+	public HostAndPort getMasterAddress() {
+		if (connectionPool instanceof JedisSentinelPool) {
+			return ((JedisSentinelPool) connectionPool).getCurrentHostMaster();
+		}
+		return new HostAndPort(getHost(), getPort());
+	}
+
+	/**
+	 * address of the master serving key, the same for all keys when not in
+	 * cluster mode
+	 */
+	public HostAndPort getMasterAddress(byte[] key) {
+		if (clusterRouter != null) {
+			return clusterRouter.getNode(RedisClusterRouter.getSlot(key));
+		}
+		return getMasterAddress();
+	}
+
+	/**
+	 * addresses of all masters, one unless in cluster mode
+	 */
+	public Collection<HostAndPort> getMasterAddresses() {
+		if (clusterRouter != null) {
+			return clusterRouter.getMasters();
+		}
+		return Collections.singletonList(getMasterAddress());
+	}
+
+	/**
+	 * addresses of all masters and of the replicas currently used for reads
+	 */
+	public Collection<HostAndPort> getNodeAddresses() {
+		Collection<HostAndPort> masters = getMasterAddresses();
+		if (replicaRouter == null) {
+			return masters;
+		}
+		Set<HostAndPort> nodes = new HashSet<HostAndPort>(masters);
+		nodes.addAll(replicaRouter.getReplicaAddresses());
+		return nodes;
+	}
+
+	/**
+	 * node reads of key go to according to the read policy
+	 */
+	public HostAndPort getReadAddress(byte[] key) {
+		HostAndPort master = getMasterAddress(key);
+		return replicaRouter != null ? replicaRouter.getReadAddress(master) : master;
+	}
+
+	/**
+	 * true when reads may be served by replicas
+	 */
+	public boolean isReadFromReplica() {
+		return replicaRouter != null;
+	}
+
+	/**
+	 * re-read the replicas used for reads, no-op with the master read policy
+	 */
+	public void refreshReplicas() {
+		if (replicaRouter != null) {
+			replicaRouter.refresh();
+		}
+	}
+
+	/**
+	 * re-read the cluster slot map after a MOVED/ASK reply, no-op when not in
+	 * cluster mode
+	 */
+	public void refreshClusterSlots() {
+		if (clusterRouter != null) {
+			clusterRouter.refresh(false);
+		}
+	}
+
+	/**
+	 * connection to any node, use acquireConnection(key) for keyed commands
+	 */
 	protected Jedis acquireConnection() {
+		return acquireConnection((String) null);
+	}
+
+	/**
+	 * connection to the node serving key
+	 */
+	protected Jedis acquireConnection(String key) {
+		if (clusterRouter != null) {
+			int slot = key != null ? RedisClusterRouter.getSlot(key) : 0;
+			return clusterRouter.getPool(slot).getResource();
+		}
 		Jedis jedis = connectionPool.getResource();
 
 		if (getDatabase() != 0) {
@@ -115,7 +280,63 @@ public class RedisManager {
 		return jedis;
 	}
 
+	protected Jedis acquireConnection(byte[] key) {
+		if (clusterRouter != null) {
+			return clusterRouter.getPool(RedisClusterRouter.getSlot(key)).getResource();
+		}
+		return acquireConnection((String) null);
+	}
+
+	/**
+	 * connection for read-only commands on key, to a replica when the read
+	 * policy picks one; give it back with returnReadConnection
+	 */
+	protected Jedis acquireReadConnection(byte[] key) {
+		if (replicaRouter != null) {
+			HostAndPort master = getMasterAddress(key);
+			HostAndPort node = replicaRouter.getReadAddress(master);
+			JedisPool pool = node.equals(master) ? null : replicaRouter.getPool(node);
+			if (pool != null) {
+				Jedis jedis = replicaRouter.acquireConnection(pool);
+				replicaConnections.put(jedis, pool);
+				return jedis;
+			}
+		}
+		return acquireConnection(key);
+	}
+
+	protected void returnReadConnection(Jedis jedis, Boolean error) {
+		JedisPool pool = replicaConnections.remove(jedis);
+		if (pool == null) {
+			returnConnection(jedis, error);
+		} else if (error) {
+			pool.returnBrokenResource(jedis);
+		} else {
+			pool.returnResource(jedis);
+		}
+	}
+
+	/**
+	 * connection to the given master
+	 */
+	Jedis acquireConnection(HostAndPort master) {
+		if (clusterRouter != null) {
+			return acquireConnection(clusterRouter.getPool(master));
+		}
+		return acquireConnection(connectionPool);
+	}
+
 	protected void returnConnection(Jedis jedis, Boolean error) {
+		if (clusterRouter != null) {
+			if (error) {
+				clusterRouter.getPool(jedis).returnBrokenResource(jedis);
+				// may be a MOVED reply after resharding or failover
+				clusterRouter.refresh(false);
+			} else {
+				clusterRouter.getPool(jedis).returnResource(jedis);
+			}
+			return;
+		}
 		if (error) {
 			connectionPool.returnBrokenResource(jedis);
 		} else {
@@ -128,52 +349,82 @@ public class RedisManager {
 	}
 
 	public void clear() {
-		Jedis jedis = null;
-		Boolean error = true;
-		try {
-			jedis = acquireConnection();
-			jedis.flushDB();
-			error = false;
-		} finally {
-			if (jedis != null) {
-				returnConnection(jedis, error);
+		for (Pool<Jedis> pool : getMasterPools()) {
+			Jedis jedis = null;
+			Boolean error = true;
+			try {
+				jedis = acquireConnection(pool);
+				jedis.flushDB();
+				error = false;
+			} finally {
+				if (jedis != null) {
+					returnConnection(jedis, error);
+				}
 			}
 		}
 	}
 
 	public int getSize() throws IOException {
-		Jedis jedis = null;
-		Boolean error = true;
-		try {
-			jedis = acquireConnection();
-			int size = jedis.dbSize().intValue();
-			error = false;
-			return size;
-		} finally {
-			if (jedis != null) {
-				returnConnection(jedis, error);
+		int size = 0;
+		for (Pool<Jedis> pool : getMasterPools()) {
+			Jedis jedis = null;
+			Boolean error = true;
+			try {
+				jedis = acquireConnection(pool);
+				size += jedis.dbSize().intValue();
+				error = false;
+			} finally {
+				if (jedis != null) {
+					returnConnection(jedis, error);
+				}
 			}
 		}
+		return size;
 	}
 
 	public String[] keys() throws IOException {
-		Jedis jedis = null;
-		Boolean error = true;
-		try {
-			jedis = acquireConnection();
-			Set<String> keySet = jedis.keys("*");
-			error = false;
-			return keySet.toArray(new String[keySet.size()]);
-		} finally {
-			if (jedis != null) {
-				returnConnection(jedis, error);
+		Set<String> keySet = new HashSet<String>();
+		for (Pool<Jedis> pool : getMasterPools()) {
+			Jedis jedis = null;
+			Boolean error = true;
+			try {
+				jedis = acquireConnection(pool);
+				keySet.addAll(jedis.keys("*"));
+				error = false;
+			} finally {
+				if (jedis != null) {
+					returnConnection(jedis, error);
+				}
 			}
 		}
+		return keySet.toArray(new String[keySet.size()]);
+	}
+
+	/**
+	 * the single pool, or the pools of all cluster masters
+	 */
+	protected Collection<? extends Pool<Jedis>> getMasterPools() {
+		if (clusterRouter != null) {
+			return clusterRouter.getMasterPools();
+		}
+		return Collections.singletonList(connectionPool);
+	}
+
+	private Jedis acquireConnection(Pool<Jedis> pool) {
+		Jedis jedis = pool.getResource();
+		if (clusterRouter == null && getDatabase() != 0) {
+			jedis.select(getDatabase());
+		}
+		return jedis;
 	}
 
 	void initializeDatabaseConnection() {
 		try {
-			if (getSentinelMaster() != null) {
+			if (getClusterNodes() != null && !"".equals(getClusterNodes().trim())) {
+				clusterRouter = new RedisClusterRouter(getClusterNodes(), this.connectionPoolConfig, getTimeout(),
+						getPassword(), clusterLog);
+				clusterRouter.initialize();
+			} else if (getSentinelMaster() != null) {
 				Set<String> sentinelSet = getSentinelSet();
 				if (sentinelSet != null && sentinelSet.size() > 0) {
 					connectionPool = new JedisSentinelPool(getSentinelMaster(), sentinelSet, this.connectionPoolConfig,
@@ -186,6 +437,11 @@ public class RedisManager {
 				connectionPool = new JedisPool(this.connectionPoolConfig, getHost(), getPort(), getTimeout(),
 						getPassword());
 			}
+			RedisReplicaRouter.ReadPolicy policy = RedisReplicaRouter.ReadPolicy.parse(getReadPolicy());
+			if (policy != RedisReplicaRouter.ReadPolicy.MASTER) {
+				replicaRouter = new RedisReplicaRouter(this, policy, getReadMaxLag(), this.connectionPoolConfig);
+				replicaRouter.refresh();
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new RuntimeException("Error connecting to Redis", e);
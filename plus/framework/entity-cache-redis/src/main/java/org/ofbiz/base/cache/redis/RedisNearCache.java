@@ -0,0 +1,194 @@
+package org.ofbiz.base.cache.redis;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-heap (L1) tier in front of a UtilRedisCache.
+ *
+ * Entries are evicted in LRU order once maxSize is reached and are reported
+ * as missing after expireTime. Redis stays the source of truth, this tier is
+ * only kept coherent by the invalidation messages of RedisCacheInvalidator.
+ *
+ * The entries are split in segments by key hash, each with its own lock and
+ * LRU order, so concurrent hits on different keys do not contend; eviction
+ * is LRU within the segment of the key.
+ */
+public class RedisNearCache<V> {
+
+	private static final int MAX_SEGMENTS = 16;
+
+	/** the smallest segment worth splitting off */
+	private static final int MIN_SEGMENT_SIZE = 64;
+
+	private final int maxSize;
+
+	private final long expireTimeNanos;
+
+	private final Segment<V>[] segments;
+
+	/**
+	 * Incremented on every remove/clear, a value read from redis is only kept
+	 * if no invalidation happened while it was loaded.
+	 */
+	private final AtomicLong generation = new AtomicLong();
+
+	@SuppressWarnings("unchecked")
+	public RedisNearCache(int maxSize, long expireTimeMillis) {
+		this.maxSize = maxSize;
+		this.expireTimeNanos = TimeUnit.NANOSECONDS.convert(expireTimeMillis, TimeUnit.MILLISECONDS);
+		int count = Integer.highestOneBit(Math.max(1, Math.min(MAX_SEGMENTS, maxSize / MIN_SEGMENT_SIZE)));
+		int segmentSize = Math.max(1, (maxSize + count - 1) / count);
+		this.segments = new Segment[count];
+		for (int i = 0; i < count; i++) {
+			segments[i] = new Segment<V>(segmentSize);
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment<V> segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	private Segment<V> segmentFor(String key) {
+		int hash = key.hashCode();
+		return segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
+	}
+
+	public V get(String key) {
+		Segment<V> segment = segmentFor(key);
+		synchronized (segment) {
+			NearCacheEntry<V> entry = segment.get(key);
+			if (entry == null) {
+				return null;
+			}
+			if (entry.expireTimeNanos > 0 && System.nanoTime() - entry.loadTimeNanos > entry.expireTimeNanos) {
+				segment.remove(key);
+				return null;
+			}
+			return entry.value;
+		}
+	}
+
+	public void put(String key, V value) {
+		Segment<V> segment = segmentFor(key);
+		synchronized (segment) {
+			if (value == null) {
+				segment.remove(key);
+			} else {
+				segment.put(key, new NearCacheEntry<V>(value, expireTimeNanos));
+			}
+		}
+	}
+
+	/**
+	 * Put a value loaded from redis, unless the tier was invalidated since
+	 * getGeneration() was read before the load.
+	 */
+	public boolean putIfUnchanged(String key, V value, long loadGeneration) {
+		return putIfUnchanged(key, value, loadGeneration, 0);
+	}
+
+	/**
+	 * putIfUnchanged keeping the value for at most maxExpireTimeMillis, when
+	 * positive, even if the tier keeps entries longer
+	 */
+	public boolean putIfUnchanged(String key, V value, long loadGeneration, long maxExpireTimeMillis) {
+		if (value == null) {
+			return false;
+		}
+		long entryExpireTimeNanos = expireTimeNanos;
+		if (maxExpireTimeMillis > 0) {
+			long maxExpireTimeNanos = TimeUnit.NANOSECONDS.convert(maxExpireTimeMillis, TimeUnit.MILLISECONDS);
+			if (entryExpireTimeNanos <= 0 || maxExpireTimeNanos < entryExpireTimeNanos) {
+				entryExpireTimeNanos = maxExpireTimeNanos;
+			}
+		}
+		Segment<V> segment = segmentFor(key);
+		synchronized (segment) {
+			// checked under the lock remove and clear take after incrementing
+			if (loadGeneration != generation.get()) {
+				return false;
+			}
+			segment.put(key, new NearCacheEntry<V>(value, entryExpireTimeNanos));
+			return true;
+		}
+	}
+
+	public void remove(String key) {
+		generation.incrementAndGet();
+		Segment<V> segment = segmentFor(key);
+		synchronized (segment) {
+			segment.remove(key);
+		}
+	}
+
+	public void removeStartsWith(String prefix) {
+		generation.incrementAndGet();
+		for (Segment<V> segment : segments) {
+			synchronized (segment) {
+				Iterator<String> it = segment.keySet().iterator();
+				while (it.hasNext()) {
+					if (it.next().startsWith(prefix)) {
+						it.remove();
+					}
+				}
+			}
+		}
+	}
+
+	public void clear() {
+		generation.incrementAndGet();
+		for (Segment<V> segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	/** access ordered map of a part of the keys, guarded by itself */
+	private static final class Segment<V> extends LinkedHashMap<String, NearCacheEntry<V>> {
+		private static final long serialVersionUID = 1L;
+
+		private final int maxSize;
+
+		private Segment(int maxSize) {
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, NearCacheEntry<V>> eldest) {
+			return size() > maxSize;
+		}
+	}
+
+	private static final class NearCacheEntry<V> {
+		private final V value;
+		private final long loadTimeNanos;
+		/** 0 for no expiry */
+		private final long expireTimeNanos;
+
+		private NearCacheEntry(V value, long expireTimeNanos) {
+			this.value = value;
+			this.loadTimeNanos = System.nanoTime();
+			this.expireTimeNanos = expireTimeNanos;
+		}
+	}
+}
@@ -0,0 +1,287 @@
+package org.ofbiz.base.cache.redis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ofbiz.base.util.Debug;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+/**
+ * Chooses the node cache reads go to, writes always go to the master.
+ *
+ * The replicas of every master are read from INFO replication on the master
+ * and refreshed periodically. Only replicas in state online whose replication
+ * lag is within maxLag seconds are used; a master whose replicas are unknown,
+ * lagging or unreachable is read directly.
+ *
+ * Policies (entitycache.redis-readPolicy):
+ * master - all reads go to the master (default)
+ * prefer-replica - reads go round robin to the replicas, the master when there is none
+ * nearest - reads go to the master or replica with the lowest measured round trip
+ */
+public class RedisReplicaRouter {
+
+	public static final String module = RedisReplicaRouter.class.getName();
+
+	public enum ReadPolicy {
+		MASTER, PREFER_REPLICA, NEAREST;
+
+		public static ReadPolicy parse(String policy) {
+			if (policy == null || "".equals(policy.trim())) {
+				return MASTER;
+			}
+			try {
+				return valueOf(policy.trim().toUpperCase().replace('-', '_'));
+			} catch (IllegalArgumentException e) {
+				Debug.logWarning("Unknown entity cache read policy [" + policy + "], using master", module);
+				return MASTER;
+			}
+		}
+	}
+
+	private static final class Replica {
+		private final HostAndPort address;
+		private final long roundTripNanos;
+
+		private Replica(HostAndPort address, long roundTripNanos) {
+			this.address = address;
+			this.roundTripNanos = roundTripNanos;
+		}
+	}
+
+	private final RedisManager redisManager;
+
+	private final ReadPolicy policy;
+
+	private final int maxLag;
+
+	private final JedisPoolConfig poolConfig;
+
+	/** host:port -> pool, for every replica ever seen */
+	private final Map<String, JedisPool> pools = new ConcurrentHashMap<String, JedisPool>();
+
+	/** master host:port -> usable replicas, replaced on every refresh */
+	private volatile Map<String, List<Replica>> replicas = Collections.emptyMap();
+
+	/** master host:port -> round trip of the master */
+	private volatile Map<String, Long> masterRoundTrips = Collections.emptyMap();
+
+	/** cluster replicas only serve reads after READONLY, sent once per connection */
+	private final Set<Jedis> readOnlyConnections = Collections.synchronizedSet(Collections
+			.newSetFromMap(new WeakHashMap<Jedis, Boolean>()));
+
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * @param maxLag
+	 *            highest replication lag in seconds of a replica still used
+	 *            for reads, negative for no bound
+	 */
+	public RedisReplicaRouter(RedisManager redisManager, ReadPolicy policy, int maxLag, JedisPoolConfig poolConfig) {
+		this.redisManager = redisManager;
+		this.policy = policy;
+		this.maxLag = maxLag;
+		this.poolConfig = poolConfig;
+	}
+
+	public ReadPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * node to read from for keys served by master
+	 */
+	public HostAndPort getReadAddress(HostAndPort master) {
+		if (policy == ReadPolicy.MASTER) {
+			return master;
+		}
+		List<Replica> candidates = replicas.get(master.toString());
+		if (candidates == null || candidates.isEmpty()) {
+			return master;
+		}
+		if (policy == ReadPolicy.PREFER_REPLICA) {
+			return candidates.get((next.getAndIncrement() & Integer.MAX_VALUE) % candidates.size()).address;
+		}
+		Long masterRoundTrip = masterRoundTrips.get(master.toString());
+		Replica nearest = candidates.get(0);
+		if (masterRoundTrip != null && masterRoundTrip.longValue() < nearest.roundTripNanos) {
+			return master;
+		}
+		return nearest.address;
+	}
+
+	/**
+	 * the replicas currently used for reads, of all masters
+	 */
+	public List<HostAndPort> getReplicaAddresses() {
+		List<HostAndPort> addresses = new ArrayList<HostAndPort>();
+		for (List<Replica> masterReplicas : replicas.values()) {
+			for (Replica replica : masterReplicas) {
+				addresses.add(replica.address);
+			}
+		}
+		return addresses;
+	}
+
+	/**
+	 * pool of a replica, null when address is not a known replica
+	 */
+	public JedisPool getPool(HostAndPort address) {
+		return pools.get(address.toString());
+	}
+
+	/**
+	 * borrow a connection from a replica pool, ready for reads
+	 */
+	Jedis acquireConnection(JedisPool pool) {
+		Jedis jedis = pool.getResource();
+		if (redisManager.isCluster()) {
+			if (!readOnlyConnections.contains(jedis)) {
+				jedis.readonly();
+				readOnlyConnections.add(jedis);
+			}
+		} else if (redisManager.getDatabase() != 0) {
+			jedis.select(redisManager.getDatabase());
+		}
+		return jedis;
+	}
+
+	/**
+	 * Re-reads the replicas of all masters, run periodically in the
+	 * background.
+	 */
+	public void refresh() {
+		Map<String, List<Replica>> newReplicas = new HashMap<String, List<Replica>>();
+		Map<String, Long> newRoundTrips = new HashMap<String, Long>();
+		for (HostAndPort master : redisManager.getMasterAddresses()) {
+			List<HostAndPort> online = new ArrayList<HostAndPort>();
+			Jedis jedis = null;
+			Boolean error = true;
+			try {
+				jedis = redisManager.acquireConnection(master);
+				long start = System.nanoTime();
+				jedis.ping();
+				newRoundTrips.put(master.toString(), System.nanoTime() - start);
+				parseReplicas(jedis.info("replication"), online);
+				error = false;
+			} catch (Exception e) {
+				Debug.logWarning("Unable to read the replicas of redis master " + master + ": " + e.getMessage(),
+						module);
+				continue;
+			} finally {
+				if (jedis != null) {
+					redisManager.returnConnection(jedis, error);
+				}
+			}
+			List<Replica> usable = new ArrayList<Replica>(online.size());
+			for (HostAndPort address : online) {
+				long roundTrip = ping(address);
+				if (roundTrip >= 0) {
+					usable.add(new Replica(address, roundTrip));
+				}
+			}
+			Collections.sort(usable, new Comparator<Replica>() {
+				@Override
+				public int compare(Replica r1, Replica r2) {
+					return Long.compare(r1.roundTripNanos, r2.roundTripNanos);
+				}
+			});
+			newReplicas.put(master.toString(), usable);
+		}
+		replicas = newReplicas;
+		masterRoundTrips = newRoundTrips;
+		if (Debug.verboseOn())
+			Debug.logVerbose("redis read replicas refreshed: " + newReplicas.keySet(), "redis");
+	}
+
+	public void destroy() {
+		replicas = Collections.emptyMap();
+		for (JedisPool pool : pools.values()) {
+			try {
+				pool.destroy();
+			} catch (Exception e) {
+				// Do nothing.
+			}
+		}
+		pools.clear();
+	}
+
+	/**
+	 * parse slaveN:ip=...,port=...,state=online,offset=...,lag=... lines
+	 */
+	private void parseReplicas(String info, List<HostAndPort> online) {
+		for (String line : info.split("\r?\n")) {
+			if (!line.startsWith("slave") || line.indexOf(':') < 0) {
+				continue;
+			}
+			Map<String, String> fields = new HashMap<String, String>();
+			for (String field : line.substring(line.indexOf(':') + 1).split(",")) {
+				int separator = field.indexOf('=');
+				if (separator > 0) {
+					fields.put(field.substring(0, separator), field.substring(separator + 1));
+				}
+			}
+			if (!fields.containsKey("ip") || !fields.containsKey("port") || !"online".equals(fields.get("state"))) {
+				continue;
+			}
+			if (maxLag >= 0) {
+				// lag is only reported by redis 3.0 and later, unknown lag is not within bounds
+				String lag = fields.get("lag");
+				if (lag == null || Integer.parseInt(lag) > maxLag) {
+					continue;
+				}
+			}
+			online.add(new HostAndPort(fields.get("ip"), Integer.parseInt(fields.get("port"))));
+		}
+	}
+
+	/**
+	 * round trip of PING in nanoseconds, -1 when the replica is unreachable
+	 */
+	private long ping(HostAndPort address) {
+		JedisPool pool = pools.get(address.toString());
+		if (pool == null) {
+			synchronized (pools) {
+				pool = pools.get(address.toString());
+				if (pool == null) {
+					pool = new JedisPool(poolConfig, address.getHost(), address.getPort(), redisManager.getTimeout(),
+							redisManager.getPassword());
+					pools.put(address.toString(), pool);
+				}
+			}
+		}
+		Jedis jedis = null;
+		Boolean error = true;
+		try {
+			jedis = acquireConnection(pool);
+			long start = System.nanoTime();
+			jedis.ping();
+			long roundTrip = System.nanoTime() - start;
+			error = false;
+			return roundTrip;
+		} catch (Exception e) {
+			Debug.logWarning("Redis replica " + address + " is not usable for reads: " + e.getMessage(), module);
+			return -1;
+		} finally {
+			if (jedis != null) {
+				if (error) {
+					pool.returnBrokenResource(jedis);
+				} else {
+					pool.returnResource(jedis);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package org.ofbiz.base.cache.redis;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Streaming top-K of the most read keys of one node (space-saving algorithm).
+ *
+ * At most capacity keys are counted. A key not counted yet replaces the key
+ * with the lowest count and inherits that count as its error, so a key read
+ * more often than count/capacity times is always reported and its count is
+ * over-estimated by at most error. Only sampleRate of the reads are offered,
+ * keeping the synchronized update off most reads.
+ */
+public class RedisTopKSketch {
+
+	private static final class Counter {
+		private long count;
+		private long error;
+	}
+
+	private final int capacity;
+
+	private final double sampleRate;
+
+	private final Map<String, Counter> counters;
+
+	public RedisTopKSketch(int capacity, double sampleRate) {
+		this.capacity = capacity;
+		this.sampleRate = sampleRate;
+		this.counters = new HashMap<String, Counter>(capacity * 2);
+	}
+
+	public void offer(String key) {
+		if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+			return;
+		}
+		synchronized (counters) {
+			Counter counter = counters.get(key);
+			if (counter == null) {
+				counter = new Counter();
+				if (counters.size() >= capacity) {
+					// capacity is small and only sampled reads get here, a linear scan is cheap enough
+					Iterator<Map.Entry<String, Counter>> it = counters.entrySet().iterator();
+					Map.Entry<String, Counter> min = it.next();
+					while (it.hasNext()) {
+						Map.Entry<String, Counter> entry = it.next();
+						if (entry.getValue().count < min.getValue().count) {
+							min = entry;
+						}
+					}
+					counters.remove(min.getKey());
+					counter.count = min.getValue().count;
+					counter.error = min.getValue().count;
+				}
+				counters.put(key, counter);
+			}
+			counter.count++;
+		}
+	}
+
+	/**
+	 * The counted keys as "key=count(+-error)", highest estimated count first;
+	 * counts are of sampled reads, divide by the sample rate for all reads.
+	 */
+	public List<String> getTopKeys() {
+		List<Map.Entry<String, long[]>> entries = new ArrayList<Map.Entry<String, long[]>>();
+		synchronized (counters) {
+			for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+				entries.add(new AbstractMap.SimpleEntry<String, long[]>(entry.getKey(), new long[] {
+						entry.getValue().count, entry.getValue().error }));
+			}
+		}
+		Collections.sort(entries, new Comparator<Map.Entry<String, long[]>>() {
+			@Override
+			public int compare(Map.Entry<String, long[]> e1, Map.Entry<String, long[]> e2) {
+				return Long.compare(e2.getValue()[0], e1.getValue()[0]);
+			}
+		});
+		List<String> topKeys = new ArrayList<String>(entries.size());
+		for (Map.Entry<String, long[]> entry : entries) {
+			long[] counts = entry.getValue();
+			topKeys.add(entry.getKey() + "=" + counts[0] + (counts[1] > 0 ? "(+-" + counts[1] + ")" : ""));
+		}
+		return topKeys;
+	}
+
+	public void reset() {
+		synchronized (counters) {
+			counters.clear();
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package org.ofbiz.base.cache.redis;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Carries the single key hash commands of the cache hot path (get, batch get
+ * and plain put). Multi command operations (pipelines with invalidation,
+ * scripts, scans) keep using a pooled Jedis connection of RedisManager.
+ *
+ * Implementations are configured with entitycache.redis-transport:
+ * pool - JedisPoolTransport, one pooled connection per call (default)
+ * async - RedisAsyncTransport, one multiplexed connection shared by all threads
+ */
+public interface RedisTransport {
+
+	// hget, hmget and hmgetAndGet are reads and may be served by a replica (entitycache.redis-readPolicy)
+
+	CompletableFuture<byte[]> hget(byte[] key, byte[] field);
+
+	CompletableFuture<List<byte[]>> hmget(byte[] key, byte[]... fields);
+
+	// hmget of fields and get of stringKey, a key in the same slot, in one round trip;
+	// the value of stringKey follows the values of the fields
+	CompletableFuture<List<byte[]>> hmgetAndGet(byte[] key, byte[] stringKey, byte[]... fields);
+
+	CompletableFuture<Long> hset(byte[] key, byte[] field, byte[] value);
+
+	void close();
+}
@@ -0,0 +1,150 @@
+package org.ofbiz.base.cache.redis;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ofbiz.base.util.Debug;
+
+/**
+ * Asynchronous cache puts (entitycache.redis-writeBehind).
+ *
+ * A put only records the value in the pending writes of its cache and queues
+ * the field; further puts of a field still pending replace the value without
+ * queueing again, so hot keys are written once per flush. One flusher thread
+ * drains the queue and writes each cache's batch with one pipeline, see
+ * UtilRedisCache.flushPendingWrites.
+ *
+ * When the queue is full the overflow policy applies:
+ * block - wait up to the redis timeout for room, then write in the caller
+ * drop - do not cache the value, it is loaded again on the next miss
+ */
+public class RedisWriteBehind {
+
+	public static final String module = RedisWriteBehind.class.getName();
+
+	/** upper bound of fields written with one flush */
+	private static final int MAX_BATCH = 512;
+
+	private static final class QueuedWrite {
+		private final UtilRedisCache<?, ?> cache;
+		private final String field;
+
+		private QueuedWrite(UtilRedisCache<?, ?> cache, String field) {
+			this.cache = cache;
+			this.field = field;
+		}
+	}
+
+	private final ArrayBlockingQueue<QueuedWrite> queue;
+
+	private final boolean block;
+
+	private final long blockTimeout;
+
+	private final AtomicLong overflows = new AtomicLong();
+
+	private Thread flusher = null;
+
+	/**
+	 * @param overflow
+	 *            block or drop
+	 * @param blockTimeout
+	 *            longest wait for room in the queue in milliseconds with the
+	 *            block policy
+	 */
+	public RedisWriteBehind(int queueSize, String overflow, long blockTimeout) {
+		this.queue = new ArrayBlockingQueue<QueuedWrite>(queueSize);
+		this.block = !"drop".equalsIgnoreCase(overflow);
+		this.blockTimeout = blockTimeout;
+	}
+
+	/**
+	 * true when writes that do not fit in the queue are written by the caller,
+	 * false when they are dropped
+	 */
+	public boolean isBlocking() {
+		return block;
+	}
+
+	/** number of puts dropped or written inline because the queue was full */
+	public long getOverflowCount() {
+		return overflows.get();
+	}
+
+	/**
+	 * Queue the pending write of field, returns false when the queue is full.
+	 */
+	boolean submit(UtilRedisCache<?, ?> cache, String field) {
+		QueuedWrite write = new QueuedWrite(cache, field);
+		boolean queued;
+		if (block && blockTimeout > 0) {
+			try {
+				queued = queue.offer(write, blockTimeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				queued = false;
+			}
+		} else {
+			queued = queue.offer(write);
+		}
+		if (!queued && overflows.incrementAndGet() % 1000 == 1) {
+			Debug.logWarning("Entity cache write-behind queue is full, " + overflows.get() + " puts "
+					+ (block ? "written inline" : "dropped") + " so far", module);
+		}
+		return queued;
+	}
+
+	public synchronized void start() {
+		if (flusher != null) {
+			return;
+		}
+		flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flushLoop();
+			}
+		}, "entitycache-redis-write-behind");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	private void flushLoop() {
+		List<QueuedWrite> batch = new ArrayList<QueuedWrite>(MAX_BATCH);
+		Map<UtilRedisCache<?, ?>, List<String>> byCache = new IdentityHashMap<UtilRedisCache<?, ?>, List<String>>();
+		while (true) {
+			try {
+				batch.add(queue.take());
+				queue.drainTo(batch, MAX_BATCH - 1);
+				for (QueuedWrite write : batch) {
+					List<String> fields = byCache.get(write.cache);
+					if (fields == null) {
+						fields = new ArrayList<String>();
+						byCache.put(write.cache, fields);
+					}
+					fields.add(write.field);
+				}
+				for (Map.Entry<UtilRedisCache<?, ?>, List<String>> entry : byCache.entrySet()) {
+					try {
+						entry.getKey().flushPendingWrites(entry.getValue());
+					} catch (Exception e) {
+						// only cache population is lost, the values are loaded again on a miss
+						Debug.logWarning(e, "Error writing " + entry.getValue().size() + " entries of cache ["
+								+ entry.getKey().getName() + "]", module);
+					}
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (Throwable t) {
+				Debug.logError(t, "Unexpected error in entity cache write-behind", module);
+			} finally {
+				batch.clear();
+				byCache.clear();
+			}
+		}
+	}
+}
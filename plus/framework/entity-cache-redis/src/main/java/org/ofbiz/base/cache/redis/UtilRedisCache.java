@@ -1,17 +1,48 @@
 package org.ofbiz.base.cache.redis;
 
+import java.io.Closeable;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import javax.transaction.Synchronization;
 
 import org.ofbiz.base.util.Debug;
 import org.ofbiz.base.util.UtilObject;
 import org.ofbiz.base.util.UtilValidate;
+import org.ofbiz.entity.Delegator;
 import org.ofbiz.entity.GenericPK;
+import org.ofbiz.entity.GenericValue;
 import org.ofbiz.entity.condition.EntityCondition;
+import org.ofbiz.entity.transaction.GenericTransactionException;
+import org.ofbiz.entity.transaction.TransactionUtil;
 
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 
 /**
  * 1-entity:(entityname)->map(pk->entity/view)
@@ -39,8 +70,204 @@ public class UtilRedisCache<K, V>
 	/**
 	 * Specifies the amount of time since initial loading before an element will
 	 * be reported as expired. If set to 0, elements will never expire.
+	 * Expired entries are treated as missing on read and removed from redis by
+	 * the expiry reaper, see reapExpired().
+	 */
+	protected long expireTimeMillis = 0;
+
+	/**
+	 * Time since loading after which an element is refreshed in the
+	 * background when it is read with a refresher, the stale value is returned
+	 * meanwhile. Reads without refresher treat it as missing. 0 disables it,
+	 * expireTime stays the hard limit.
+	 */
+	protected long softExpireTimeMillis = 0;
+
+	/**
+	 * Encoded values of at least this many bytes are stored compressed, 0
+	 * stores everything as encoded. Per cache compressThreshold, default
+	 * entitycache.redis-compressThreshold.
+	 */
+	protected int compressThreshold = DEFAULT_COMPRESS_THRESHOLD;
+
+	private static final int DEFAULT_COMPRESS_THRESHOLD = 16384;
+
+	/**
+	 * Lists of GenericValues with more elements are stored in chunks of this
+	 * many elements plus a RedisListManifest, 0 stores every list as one
+	 * value. Per cache listChunkSize, default entitycache.redis-listChunkSize.
+	 */
+	protected int listChunkSize = DEFAULT_LIST_CHUNK_SIZE;
+
+	private static final int DEFAULT_LIST_CHUNK_SIZE = 1000;
+
+	/**
+	 * Optional in-heap tier in front of redis, configured with
+	 * nearCacheMaxSize/nearCacheExpireTime. null when disabled.
+	 */
+	protected RedisNearCache<V> nearCache = null;
+
+	private RedisCacheInvalidator invalidator = null;
+
+	private RedisCacheCodec codec = null;
+
+	/** carries hget/hmget/plain hset, see RedisTransport */
+	private RedisTransport transport = null;
+
+	/** number of fields per HSCAN/HDEL round when removing many fields */
+	private int scanBatchSize = 500;
+
+	/** samples the reads of this cache, null when hot keys are not recorded */
+	private RedisHotKeyRecorder hotKeys = null;
+
+	/** access statistics exposed over JMX, null when disabled */
+	private RedisCacheStatistics statistics = null;
+
+	/** asynchronous put path, null when puts are written by the caller */
+	private RedisWriteBehind writeBehind = null;
+
+	/** values put but not yet written by writeBehind, by field */
+	private final ConcurrentHashMap<String, PendingWrite> pendingWrites = new ConcurrentHashMap<String, PendingWrite>();
+
+	/**
+	 * held while pending writes are written or cancelled, so no write lands
+	 * after a remove of its field
+	 */
+	private final Object pendingWritesLock = new Object();
+
+	/**
+	 * writes taken by flushPendingWrites and not yet in redis, guarded by
+	 * pendingWritesLock; a cancel marks them, the flusher removes them again
+	 */
+	private final Map<String, PendingWrite> flushingWrites = new HashMap<String, PendingWrite>();
+
+	private static final class PendingWrite {
+		private final Object value;
+		private final long putTime;
+		/** see versionedPut, NO_GENERATION for an unconditional write */
+		private final long generation;
+		/** cancelled while flushPendingWrites was writing it, see flushingWrites */
+		private boolean cancelled;
+
+		private PendingWrite(Object value, long putTime, long generation) {
+			this.value = value;
+			this.putTime = putTime;
+			this.generation = generation;
+		}
+	}
+
+	/** fields with a background refresh queued or running in this JVM */
+	private final Set<String> refreshing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/** loads running in this JVM by field, see getOrLoad */
+	private final ConcurrentHashMap<String, CompletableFuture<V>> loading = new ConcurrentHashMap<String, CompletableFuture<V>>();
+
+	/**
+	 * lifetime of the redis lease of a load in milliseconds, also the longest
+	 * time other nodes wait for it; 0 disables the lease
+	 */
+	private long loadLeaseTime = 5000;
+
+	/**
+	 * lifetime of the stale copy kept of values loaded by getOrLoad, 0 keeps no
+	 * copy
+	 */
+	private long staleCopyTime = 600000;
+
+	/** first pause between the polls of a node waiting for another node's load */
+	private static final long LOAD_POLL_MILLIS = 10;
+
+	private static final long LOAD_POLL_MAX_MILLIS = 100;
+
+	/** wait for a load running in this JVM when there is no lease time */
+	private static final long LOAD_WAIT_MILLIS = 5000;
+
+	/**
+	 * conditions read back from the dependency hash by fingerprint, the
+	 * fingerprint is derived from the condition so entries never change
+	 */
+	private final RedisNearCache<Object> dependencyConditions = new RedisNearCache<Object>(
+			DEPENDENCY_CONDITION_CACHE_SIZE, 0);
+
+	/**
+	 * the fingerprints of the dependency hash as of its version, re-read by
+	 * removeDependent only when the version changed
+	 */
+	private volatile RegisteredConditions registeredConditions = null;
+
+	private static final class RegisteredConditions {
+		private final String version;
+		private final Set<String> fingerprints;
+
+		private RegisteredConditions(String version, Set<String> fingerprints) {
+			this.version = version;
+			this.fingerprints = fingerprints;
+		}
+	}
+
+	private static final int DEPENDENCY_CONDITION_CACHE_SIZE = 10000;
+
+	/**
+	 * lists with more members are registered as depending on every row of the
+	 * entity instead of recording each member
+	 */
+	private static final int DEPENDENCY_MAX_MEMBERS = 1000;
+
+	/** stands for the null condition and for conditions that cannot be read */
+	private static final Object ANY_CONDITION = new Object();
+
+	/**
+	 * Number of rows the bloom filter of primary keys is sized for, 0 keeps no
+	 * filter. Per cache pkFilterExpectedKeys, see isKnownAbsent.
+	 */
+	protected int pkFilterExpectedKeys = 0;
+
+	/** local copy of the primary key filter, null when disabled */
+	private RedisBloomFilter pkFilter = null;
+
+	/** true while pkFilter holds a complete build and answers lookups */
+	private volatile boolean pkFilterReady = false;
+
+	/** marker of the build loaded into pkFilter, null for none */
+	private volatile String pkFilterVersion = null;
+
+	private long pkFilterRebuildInterval = 0;
+
+	/** returns the keys of all rows for a rebuild, null when this node does not build */
+	private volatile Callable<Iterator<String>> pkFilterLoader = null;
+
+	private final AtomicBoolean pkFilterRebuilding = new AtomicBoolean(false);
+
+	/** longest time one node holds the right to rebuild the filter */
+	private static final long PK_FILTER_LEASE_MILLIS = 1800000;
+
+	/**
+	 * A put following a miss is only written while the generation of the
+	 * cache (getGenerationKey, increased by every invalidation) is the one
+	 * read at the miss. Per cache versionedPut, see putField.
 	 */
-	protected long expireTimeNanos = 0;
+	protected boolean versionedPut = false;
+
+	/** generation of the cache read at the misses of this thread, by field */
+	private final ThreadLocal<Map<String, Long>> readGenerations = new ThreadLocal<Map<String, Long>>() {
+		@Override
+		protected Map<String, Long> initialValue() {
+			return new LinkedHashMap<String, Long>() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+					// misses never followed by a put
+					return size() > MAX_READ_GENERATIONS;
+				}
+			};
+		}
+	};
+
+	private static final int MAX_READ_GENERATIONS = 1000;
+
+	/** put written whatever the generation of the cache */
+	private static final long NO_GENERATION = -1;
 
 	UtilRedisCache(String cacheName, String... propNames) {
 		super();
@@ -56,10 +283,103 @@ public class UtilRedisCache<K, V>
 		this.redisManager = redisManager;
 	}
 
+	void setTransport(RedisTransport transport) {
+		this.transport = transport;
+	}
+
+	void setCodec(RedisCacheCodec codec) {
+		this.codec = codec;
+	}
+
+	void setScanBatchSize(int scanBatchSize) {
+		this.scanBatchSize = scanBatchSize;
+	}
+
+	void setHotKeyRecorder(RedisHotKeyRecorder hotKeys) {
+		this.hotKeys = hotKeys;
+	}
+
+	void setStatistics(RedisCacheStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	public RedisCacheStatistics getStatistics() {
+		return statistics;
+	}
+
+	void setWriteBehind(RedisWriteBehind writeBehind) {
+		this.writeBehind = writeBehind;
+	}
+
+	void setLoadLeaseTime(long loadLeaseTime) {
+		this.loadLeaseTime = loadLeaseTime;
+	}
+
+	void setStaleCopyTime(long staleCopyTime) {
+		this.staleCopyTime = staleCopyTime;
+	}
+
+	void setInvalidator(RedisCacheInvalidator invalidator) {
+		this.invalidator = invalidator;
+	}
+
+	void setPkFilter(RedisBloomFilter pkFilter, long pkFilterRebuildInterval) {
+		this.pkFilter = pkFilter;
+		this.pkFilterRebuildInterval = pkFilterRebuildInterval;
+	}
+
+	/**
+	 * Sets what a rebuild of the primary key filter reads the keys of all rows
+	 * from; an iterator implementing Closeable is closed after the rebuild.
+	 */
+	public void setPkFilterLoader(Callable<Iterator<String>> pkFilterLoader) {
+		this.pkFilterLoader = pkFilterLoader;
+	}
+
+	public Callable<Iterator<String>> getPkFilterLoader() {
+		return pkFilterLoader;
+	}
+
+	public int getPkFilterExpectedKeys() {
+		return pkFilterExpectedKeys;
+	}
+
+	public boolean isPkFilterEnabled() {
+		return pkFilter != null;
+	}
+
+	public long getExpireTime() {
+		return expireTimeMillis;
+	}
+
+	public long getSoftExpireTime() {
+		return softExpireTimeMillis;
+	}
+
+	public boolean isVersionedPut() {
+		return versionedPut;
+	}
+
+	public boolean isNearCacheEnabled() {
+		return nearCache != null;
+	}
+
+	public int getNearCacheSize() {
+		return nearCache != null ? nearCache.size() : 0;
+	}
+
 	protected Jedis acquireRedisConnection() {
 		return redisManager.acquireConnection();
 	}
 
+	/**
+	 * connection to the node serving key, all keys of one cache share the
+	 * hash tag of getSessionKey()
+	 */
+	protected Jedis acquireRedisConnection(String key) {
+		return redisManager.acquireConnection(key);
+	}
+
 	protected void returnRedisConnection(Jedis jedis, Boolean error) {
 		redisManager.returnConnection(jedis, error);
 	}
@@ -68,72 +388,1972 @@ public class UtilRedisCache<K, V>
 		returnRedisConnection(jedis, false);
 	}
 
+	/**
+	 * the cache name; in cluster mode as hash tag, so that the hash and the
+	 * derived keys (expiry index, dependencies, trash) of a cache are in one
+	 * cluster slot. Outside of a cluster the key stays the one of earlier
+	 * versions and the cached data survives an upgrade.
+	 */
 	protected String getSessionKey() {
+		if (redisManager != null && redisManager.isCluster()) {
+			return "{" + getName() + "}";
+		}
 		return getName();
 	}
 
-	public void clear() {
-		redisClearMap(getSessionKey());
+	public void clear() {
+		cancelPendingWrites(null);
+		redisClearMap(getSessionKey());
+		incrGenerationAfterCommit();
+		if (nearCache != null) {
+			nearCache.clear();
+		}
+	}
+
+	/**
+	 * Removes the entries of the condition; the fields are scanned and removed
+	 * from redis in the background like the trash keys of clear().
+	 */
+	public void clear(Object conditionKey) {
+		String prefix = getRedisFieldKey(conditionKey, null);
+		cancelPendingWrites(prefix);
+		if (versionedPut) {
+			// here, the fields are only removed after the caller may have committed
+			redisIncrGeneration(getSessionKey());
+			incrGenerationAfterCommit();
+		}
+		if (nearCache != null) {
+			nearCache.removeStartsWith(prefix);
+		}
+		UtilRedisCacheFactory.removeFields(this, prefix);
+	}
+
+	/** the background part of clear(conditionKey) */
+	void removeFields(String prefix) {
+		redisRemoveMapFields(getSessionKey(), prefix);
+		if (nearCache != null) {
+			// entries read again while the fields were scanned
+			nearCache.removeStartsWith(prefix);
+		}
+	}
+
+	public V remove(Object key) {
+		return removeField(getRedisFieldKey(key));
+	}
+
+	/**
+	 * Removes one entry; for an entry of a condition (conditionKey null or an
+	 * EntityCondition) registered with put(EntityCondition, K, V, Collection),
+	 * the condition is dropped from the dependencies together with its other
+	 * entries, they would no longer be found by removeDependent.
+	 */
+	public V remove(Object conditionKey, Object key) {
+		V oldValue = removeField(getRedisFieldKey(conditionKey, key));
+		if (conditionKey == null || conditionKey instanceof EntityCondition) {
+			String fingerprint = EntityConditionFingerprint.fingerprint((EntityCondition) conditionKey);
+			if (redisRemoveConditionIfRegistered(getSessionKey(), fingerprint) && nearCache != null) {
+				nearCache.removeStartsWith(fingerprint + "_");
+			}
+		}
+		return oldValue;
+	}
+
+	public V get(GenericPK pk) {
+		return getField(pk.getPkShortValueString());
+	}
+
+	public V get(Object conditionKey, Object key) {
+		return getField(getRedisFieldKey(conditionKey, key));
+	}
+
+	/**
+	 * Like get(conditionKey, key), but a value past softExpireTime is still
+	 * returned and refresher is run once in the background to put a fresh one.
+	 */
+	public V get(Object conditionKey, Object key, Callable<V> refresher) {
+		return getField(getRedisFieldKey(conditionKey, key), refresher);
+	}
+
+	/**
+	 * Non-blocking lookup, the calling thread does not wait for redis when the
+	 * async transport is configured.
+	 */
+	@SuppressWarnings("unchecked")
+	public CompletableFuture<V> getAsync(GenericPK pk) {
+		final String field = pk.getPkShortValueString();
+		if (writeBehind != null) {
+			PendingWrite pending = pendingWrites.get(field);
+			if (pending != null) {
+				recordRead(field, pending.value, true);
+				return CompletableFuture.completedFuture((V) pending.value);
+			}
+		}
+		V value = nearCache != null ? nearCache.get(field) : null;
+		if (value != null) {
+			if (statistics != null) {
+				statistics.recordNearHit(field);
+			}
+			return CompletableFuture.completedFuture(value);
+		}
+		final long generation = nearCache != null ? nearCache.getGeneration() : 0;
+		final long start = System.nanoTime();
+		return transport.hget(getSessionKey().getBytes(), field.getBytes()).thenApply(new Function<byte[], V>() {
+			@Override
+			@SuppressWarnings("unchecked")
+			public V apply(byte[] bytes) {
+				if (statistics != null) {
+					statistics.recordRead(System.nanoTime() - start);
+				}
+				V value = (V) deserialize(bytes);
+				recordRead(field, value, false);
+				if (nearCache != null) {
+					keepRead(field, value, generation);
+				}
+				return value;
+			}
+		});
+	}
+
+	/**
+	 * Keeps a value read from redis in the near cache. A replica may not have
+	 * applied yet an invalidation this node already received, so with reads
+	 * from replicas values are kept for at most readMaxLag, and not at all
+	 * when the lag is unbounded.
+	 */
+	private void keepRead(String field, V value, long generation) {
+		if (!redisManager.isReadFromReplica()) {
+			nearCache.putIfUnchanged(field, value, generation);
+			return;
+		}
+		int maxLag = redisManager.getReadMaxLag();
+		if (maxLag >= 0) {
+			nearCache.putIfUnchanged(field, value, generation, Math.max(1, maxLag) * 1000L);
+		}
+	}
+
+	/**
+	 * Batch lookup, all misses of the near cache are read with a single HMGET.
+	 * Keys not found in the cache are not in the returned map.
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<GenericPK, V> getAll(Collection<GenericPK> pks) {
+		Map<GenericPK, V> result = new LinkedHashMap<GenericPK, V>();
+		List<GenericPK> missPks = new ArrayList<GenericPK>(pks.size());
+		List<String> missFields = new ArrayList<String>(pks.size());
+		for (GenericPK pk : pks) {
+			String field = pk.getPkShortValueString();
+			PendingWrite pending = writeBehind != null ? pendingWrites.get(field) : null;
+			V value = pending != null ? (V) pending.value : nearCache != null ? nearCache.get(field) : null;
+			if (value != null) {
+				result.put(pk, value);
+				recordRead(field, value, true);
+			} else {
+				missPks.add(pk);
+				missFields.add(field);
+			}
+		}
+		if (missFields.isEmpty()) {
+			return result;
+		}
+		long generation = nearCache != null ? nearCache.getGeneration() : 0;
+		List<byte[]> read = redisReadFields(getSessionKey(), missFields);
+		List<String> notFound = new ArrayList<String>();
+		for (int i = 0; i < missFields.size(); i++) {
+			V value = (V) deserialize(read.get(i));
+			recordRead(missFields.get(i), value, false);
+			if (value != null) {
+				result.put(missPks.get(i), value);
+				if (nearCache != null) {
+					keepRead(missFields.get(i), value, generation);
+				}
+			} else {
+				notFound.add(missFields.get(i));
+			}
+		}
+		rememberGeneration(notFound, read.get(missFields.size()));
+		return result;
+	}
+
+	public V put(K key, V value) {
+		return putField(getRedisFieldKey(key), value);
+	}
+
+	/**
+	 * Puts a list/object entry of condition and records the condition
+	 * together with the keys of the rows it holds (memberKeys may be null),
+	 * so removeDependent can later find the entries a change of one row
+	 * affects. The entry and its condition are written by one script: a
+	 * removeDependent sees both or neither, and one registering the condition
+	 * while it runs sees the version of the dependencies change (see
+	 * getDependencyVersionKey). With write-behind the condition is recorded
+	 * before the entry is queued, a removeDependent in between cancels it.
+	 */
+	public V put(EntityCondition condition, K key, V value, Collection<String> memberKeys) {
+		return putField(getRedisFieldKey(condition, key), value, new ConditionDependency(condition, memberKeys));
+	}
+
+	/** the arguments of the dependency of an entry, see put(EntityCondition, K, V, Collection) */
+	private static final class ConditionDependency {
+		private final List<byte[]> args;
+
+		private ConditionDependency(EntityCondition condition, Collection<String> memberKeys) {
+			byte[] conditionBytes = null;
+			if (condition != null && (memberKeys == null || memberKeys.size() <= DEPENDENCY_MAX_MEMBERS)) {
+				conditionBytes = UtilObject.getBytes(condition);
+			}
+			args = new ArrayList<byte[]>(3 + (memberKeys != null ? memberKeys.size() : 0));
+			args.add(EntityConditionFingerprint.fingerprint(condition).getBytes());
+			// an empty condition is evaluated as matching every row
+			args.add(conditionBytes != null ? conditionBytes : new byte[0]);
+			args.add(UUID.randomUUID().toString().getBytes());
+			if (conditionBytes != null && memberKeys != null) {
+				for (String memberKey : memberKeys) {
+					args.add(memberKey.getBytes());
+				}
+			}
+		}
+	}
+
+	private List<byte[]> getDependencyKeys(String key) {
+		return Arrays.asList(getDependencyKey(key).getBytes(), getMemberKey(key).getBytes(),
+				getDependencyMemberKey(key).getBytes(), getDependencyVersionKey(key).getBytes());
+	}
+
+	/** records the dependency alone, for an entry written behind */
+	private void redisPutDependency(String key, ConditionDependency dependency) {
+		Jedis jedis = null;
+		Boolean error = true;
+		try {
+			jedis = acquireRedisConnection(key);
+			jedis.eval(PUT_DEPENDENCY_SCRIPT, getDependencyKeys(key), dependency.args);
+			error = false;
+		} finally {
+			if (jedis != null) {
+				returnRedisConnection(jedis, error);
+			}
+		}
+	}
+
+	/**
+	 * Writes field and records its dependency with PUT_WITH_DEPENDENCY_SCRIPT,
+	 * returns false when generation is outdated and nothing was written.
+	 */
+	private boolean redisPutWithDependency(Jedis jedis, String key, byte[] field, byte[] bytes, long generation,
+			long expireAt, ConditionDependency dependency) {
+		List<byte[]> keys = new ArrayList<byte[]>(7);
+		keys.add(key.getBytes());
+		keys.add(getExpiryKey(key).getBytes());
+		keys.add(getGenerationKey(key).getBytes());
+		keys.addAll(getDependencyKeys(key));
+		List<byte[]> args = new ArrayList<byte[]>(4 + dependency.args.size());
+		addPut(args, field, bytes, generation, expireAt);
+		args.addAll(dependency.args);
+		return Long.valueOf(1).equals(jedis.eval(PUT_WITH_DEPENDENCY_SCRIPT, keys, args));
+	}
+
+	/**
+	 * Drops the condition of fingerprint with its entries when it is
+	 * registered, returns whether it was.
+	 */
+	private boolean redisRemoveConditionIfRegistered(String key, String fingerprint) {
+		Jedis jedis = null;
+		Boolean error = true;
+		try {
+			jedis = acquireRedisConnection(key);
+			boolean registered = jedis.hexists(getDependencyKey(key), fingerprint);
+			if (registered) {
+				cancelPendingConditionWrites(Collections.singleton(fingerprint));
+				redisRemoveConditions(jedis, key, Collections.singleton(fingerprint), UUID.randomUUID().toString());
+			}
+			error = false;
+			return registered;
+		} finally {
+			if (jedis != null) {
+				returnRedisConnection(jedis, error);
+			}
+		}
+	}
+
+	/**
+	 * Removes the entries of every condition a change of one row may affect:
+	 * the conditions whose entries hold the row (memberKey) and the ones
+	 * matching the row before (oldValue) or after (newValue) the change, both
+	 * values may be null. Returns the number of conditions removed.
+	 */
+	public int removeDependent(Delegator delegator, String memberKey, Map<String, ? extends Object> newValue,
+			Map<String, ? extends Object> oldValue) {
+		String key = getSessionKey();
+		Set<String> fingerprints = new HashSet<String>();
+		Set<String> registered;
+		Jedis jedis = null;
+		Boolean error = true;
+		try {
+			jedis = acquireRedisConnection(key);
+			Pipeline pipeline = jedis.pipelined();
+			if (versionedPut) {
+				// also when no registered condition is affected, a list being loaded may hold the row
+				pipeline.incr(getGenerationKey(key));
+			}
+			Response<String> version = pipeline.get(getDependencyVersionKey(key));
+			Response<String> members = memberKey != null ? pipeline.hget(getMemberKey(key), memberKey) : null;
+			pipeline.sync();
+			RegisteredConditions known = registeredConditions;
+			if (known == null || known.version == null || !known.version.equals(version.get())) {
+				known = readRegisteredConditions(jedis, key);
+			}
+			registered = known.fingerprints;
+			String memberOf = members != null ? members.get() : null;
+			if (memberOf != null) {
+				int length = EntityConditionFingerprint.LENGTH;
+				for (int i = 0; i + length <= memberOf.length(); i += length) {
+					fingerprints.add(memberOf.substring(i, i + length));
+				}
+			}
+			Set<String> checked = new HashSet<String>(fingerprints);
+			Set<String> affected = new HashSet<String>(fingerprints);
+			while (true) {
+				addAffected(jedis, key, registered, checked, affected, delegator, newValue, oldValue);
+				if (affected.isEmpty()) {
+					break;
+				}
+				// before the fields are removed, a pending list written after the scan would stay
+				cancelPendingConditionWrites(affected);
+				String newVersion = UUID.randomUUID().toString();
+				String previousVersion = redisRemoveConditions(jedis, key, affected, newVersion);
+				fingerprints.addAll(affected);
+				if (known.version != null && known.version.equals(previousVersion)) {
+					// no other change of the hash since it was read
+					Set<String> remaining = new HashSet<String>(registered);
+					remaining.removeAll(fingerprints);
+					registeredConditions = new RegisteredConditions(newVersion, Collections.unmodifiableSet(remaining));
+					break;
+				}
+				// conditions were registered since the hash was read, one of them may be affected too
+				known = readRegisteredConditions(jedis, key);
+				registered = known.fingerprints;
+				affected = new HashSet<String>();
+			}
+			error = false;
+			if (Debug.verboseOn())
+				Debug.logVerbose("redis remove dependent of [" + memberKey + "] in [" + key + "], removed "
+						+ fingerprints.size() + " of " + registered.size() + " conditions", "redis");
+		} finally {
+			if (jedis != null) {
+				returnRedisConnection(jedis, error);
+			}
+		}
+		if (nearCache != null) {
+			for (String fingerprint : fingerprints) {
+				nearCache.removeStartsWith(fingerprint + "_");
+			}
+		}
+		incrGenerationAfterCommit();
+		return fingerprints.size();
+	}
+
+	/**
+	 * adds the fingerprints of registered not checked yet whose condition a
+	 * change from oldValue to newValue affects to affected, reading the
+	 * conditions unknown to this node with one HMGET
+	 */
+	private void addAffected(Jedis jedis, String key, Set<String> registered, Set<String> checked,
+			Set<String> affected, Delegator delegator, Map<String, ? extends Object> newValue,
+			Map<String, ? extends Object> oldValue) {
+		List<String> unknown = new ArrayList<String>();
+		for (String fingerprint : registered) {
+			if (!checked.add(fingerprint)) {
+				continue;
+			}
+			Object condition = dependencyConditions.get(fingerprint);
+			if (condition == null) {
+				unknown.add(fingerprint);
+			} else if (isAffected(condition, delegator, newValue, oldValue)) {
+				affected.add(fingerprint);
+			}
+		}
+		if (unknown.isEmpty()) {
+			return;
+		}
+		byte[][] fields = new byte[unknown.size()][];
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = unknown.get(i).getBytes();
+		}
+		List<byte[]> conditionBytes = jedis.hmget(getDependencyKey(key).getBytes(), fields);
+		for (int i = 0; i < fields.length; i++) {
+			byte[] bytes = conditionBytes.get(i);
+			Object condition = bytes != null && bytes.length > 0 ? UtilObject.getObject(bytes) : null;
+			if (!(condition instanceof EntityCondition)) {
+				condition = ANY_CONDITION;
+			}
+			dependencyConditions.put(unknown.get(i), condition);
+			if (isAffected(condition, delegator, newValue, oldValue)) {
+				affected.add(unknown.get(i));
+			}
+		}
+	}
+
+	/**
+	 * reads the fingerprints of the dependency hash, with the version read
+	 * before them: a change in between only makes the next call read again
+	 */
+	private RegisteredConditions readRegisteredConditions(Jedis jedis, String key) {
+		Pipeline pipeline = jedis.pipelined();
+		Response<String> version = pipeline.get(getDependencyVersionKey(key));
+		Response<Set<String>> fingerprints = pipeline.hkeys(getDependencyKey(key));
+		pipeline.sync();
+		RegisteredConditions registered = new RegisteredConditions(version.get(),
+				Collections.unmodifiableSet(fingerprints.get()));
+		registeredConditions = registered;
+		return registered;
+	}
+
+	private static boolean isAffected(Object condition, Delegator delegator, Map<String, ? extends Object> newValue,
+			Map<String, ? extends Object> oldValue) {
+		if (!(condition instanceof EntityCondition)) {
+			return true;
+		}
+		try {
+			EntityCondition entityCondition = (EntityCondition) condition;
+			return (newValue != null && entityCondition.mapMatches(delegator, newValue))
+					|| (oldValue != null && entityCondition.mapMatches(delegator, oldValue));
+		} catch (Exception e) {
+			// conditions that cannot be evaluated in memory (where strings, functions, ...)
+			return true;
+		}
+	}
+
+	public V put(Object conditionKey, K key, V value) {
+		return putField(getRedisFieldKey(conditionKey, key), value);
+	}
+
+	/**
+	 * Returns the cached value, on a miss runs loader once for all concurrent
+	 * callers: threads of this JVM wait for the load already running here,
+	 * other nodes are kept out by a short redis lease (SET NX PX). A node that
+	 * does not get the lease serves the stale copy of the last load when there
+	 * is one, or polls for the value of the lease holder up to loadLeaseTime
+	 * and then loads itself. A thread waiting for a load of this JVM gives up
+	 * after loadLeaseTime as well and serves the stale copy or loads itself.
+	 * loader must put the value in the cache.
+	 */
+	public V getOrLoad(Object conditionKey, Object key, Callable<V> loader) throws Exception {
+		String field = getRedisFieldKey(conditionKey, key);
+		V value = getField(field);
+		if (value != null) {
+			return value;
+		}
+		CompletableFuture<V> load = new CompletableFuture<V>();
+		CompletableFuture<V> running = loading.putIfAbsent(field, load);
+		if (running != null) {
+			try {
+				return running.get(loadLeaseTime > 0 ? loadLeaseTime : LOAD_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				V stale = getStaleCopy(field);
+				if (stale != null) {
+					return stale;
+				}
+				Debug.logWarning("redis load of [" + field + "] in cache [" + getName()
+						+ "] did not finish in time, loading again", module);
+				return loadAndKeepStale(field, loader);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Exception) {
+					throw (Exception) e.getCause();
+				}
+				throw e;
+			}
+		}
+		try {
+			value = loadOnce(field, loader);
+			load.complete(value);
+			return value;
+		} catch (Exception e) {
+			load.completeExceptionally(e);
+			throw e;
+		} catch (Error e) {
+			load.completeExceptionally(e);
+			throw e;
+		} finally {
+			loading.remove(field, load);
+		}
+	}
+
+	private V loadOnce(String field, Callable<V> loader) throws Exception {
+		if (loadLeaseTime <= 0) {
+			return loadAndKeepStale(field, loader);
+		}
+		String token = UUID.randomUUID().toString();
+		long deadline = System.currentTimeMillis() + loadLeaseTime;
+		long pause = LOAD_POLL_MILLIS;
+		boolean triedStale = false;
+		while (true) {
+			Boolean leased = redisAcquireLease(getSessionKey(), field, token, loadLeaseTime);
+			if (leased == null || leased.booleanValue()) {
+				// no redis or lease granted
+				try {
+					return loadAndKeepStale(field, loader);
+				} finally {
+					if (leased != null) {
+						redisReleaseLease(getSessionKey(), field, token);
+					}
+				}
+			}
+			if (!triedStale) {
+				triedStale = true;
+				V stale = getStaleCopy(field);
+				if (stale != null) {
+					if (Debug.verboseOn())
+						Debug.logVerbose("redis load of [" + field + "] running on another node, serving stale copy",
+								"redis");
+					return stale;
+				}
+			}
+			if (System.currentTimeMillis() + pause > deadline) {
+				// the lease holder did not finish in time
+				return loadAndKeepStale(field, loader);
+			}
+			Thread.sleep(pause);
+			pause = Math.min(pause * 2, LOAD_POLL_MAX_MILLIS);
+			V value = getField(field);
+			if (value != null) {
+				return value;
+			}
+		}
+	}
+
+	private V loadAndKeepStale(String field, Callable<V> loader) throws Exception {
+		V value = loader.call();
+		// a chunked list would be written to the stale hash as one value again
+		if (value != null && staleCopyTime > 0 && !isChunked(value)) {
+			try {
+				redisSetStale(getSessionKey(), field, value);
+			} catch (Exception e) {
+				Debug.logWarning("Unable to keep stale copy of [" + field + "] in cache [" + getName() + "]: "
+						+ e.getMessage(), module);
+			}
+		}
+		return value;
+	}
+
+	@SuppressWarnings("unchecked")
+	private V getStaleCopy(String field) {
+		if (staleCopyTime <= 0) {
+			return null;
+		}
+		try {
+			return (V) redisGet(getStaleKey(getSessionKey()), field);
+		} catch (Exception e) {
+			Debug.logWarning("Unable to read stale copy of [" + field + "] in cache [" + getName() + "]: "
+					+ e.getMessage(), module);
+			return null;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	protected V getField(String field) {
+		return (V) resolveChunks(field, getStored(field));
+	}
+
+	/**
+	 * the value of field as stored, for a chunked list its RedisListManifest,
+	 * which is never kept in the near cache
+	 */
+	@SuppressWarnings("unchecked")
+	private Object getStored(String field) {
+		if (hotKeys != null) {
+			hotKeys.record(getName(), field);
+		}
+		if (writeBehind != null) {
+			PendingWrite pending = pendingWrites.get(field);
+			if (pending != null) {
+				recordRead(field, pending.value, true);
+				return pending.value;
+			}
+		}
+		if (nearCache == null) {
+			Object value = redisGetMiss(getSessionKey(), field);
+			recordRead(field, value, false);
+			return value;
+		}
+		Object value = nearCache.get(field);
+		if (value == null) {
+			long generation = nearCache.getGeneration();
+			value = redisGetMiss(getSessionKey(), field);
+			recordRead(field, value, false);
+			if (value != null && !(value instanceof RedisListManifest)) {
+				keepRead(field, (V) value, generation);
+			}
+		} else {
+			recordRead(field, value, true);
+		}
+		return value;
+	}
+
+	/**
+	 * Elements offset to offset + limit - 1 of a cached list, all from offset
+	 * when limit is negative; of a chunked list only the chunks holding them
+	 * are read. The returned list is a copy, null on a miss.
+	 */
+	@SuppressWarnings("unchecked")
+	public <E> List<E> getRange(Object conditionKey, Object key, int offset, int limit) {
+		String field = getRedisFieldKey(conditionKey, key);
+		Object value = getStored(field);
+		if (value == null) {
+			return null;
+		}
+		if (!(value instanceof RedisListManifest)) {
+			List<E> list = (List<E>) value;
+			int from = Math.min(offset, list.size());
+			int to = limit < 0 ? list.size() : (int) Math.min((long) from + limit, list.size());
+			return new ArrayList<E>(list.subList(from, to));
+		}
+		RedisListManifest manifest = (RedisListManifest) value;
+		int from = Math.min(offset, manifest.size);
+		int to = limit < 0 ? manifest.size : (int) Math.min((long) from + limit, manifest.size);
+		List<E> range = new ArrayList<E>(to - from);
+		if (from == to) {
+			return range;
+		}
+		int firstChunk = manifest.getChunk(from);
+		List<List<E>> chunks = readChunks(field, manifest, firstChunk, manifest.getChunk(to - 1) + 1);
+		if (chunks == null) {
+			return null;
+		}
+		int index = firstChunk * manifest.chunkSize;
+		for (List<E> chunk : chunks) {
+			int chunkFrom = Math.max(from - index, 0);
+			int chunkTo = Math.min(to - index, chunk.size());
+			range.addAll(chunk.subList(chunkFrom, chunkTo));
+			index += chunk.size();
+		}
+		return range;
+	}
+
+	/**
+	 * The cached list, for a chunked list a view that reads each chunk from
+	 * redis on first access (see RedisChunkedList); null on a miss.
+	 */
+	@SuppressWarnings("unchecked")
+	public <E> List<E> getView(Object conditionKey, Object key) {
+		String field = getRedisFieldKey(conditionKey, key);
+		Object value = getStored(field);
+		if (value instanceof RedisListManifest) {
+			return new RedisChunkedList<E>(this, field, (RedisListManifest) value);
+		}
+		return (List<E>) value;
+	}
+
+	/**
+	 * The list of a manifest put together from all its chunks, value itself
+	 * when it is no manifest; null when a chunk is missing.
+	 */
+	private Object resolveChunks(String field, Object value) {
+		if (!(value instanceof RedisListManifest)) {
+			return value;
+		}
+		RedisListManifest manifest = (RedisListManifest) value;
+		List<List<Object>> chunks = readChunks(field, manifest, 0, manifest.getChunkCount());
+		if (chunks == null) {
+			return null;
+		}
+		List<Object> list = new ArrayList<Object>(manifest.size);
+		for (List<Object> chunk : chunks) {
+			list.addAll(chunk);
+		}
+		return list;
+	}
+
+	/**
+	 * Reads chunks fromChunk to toChunk - 1 of the list of field with one
+	 * HMGET, null when one of them is missing (replaced, removed or expired).
+	 */
+	@SuppressWarnings("unchecked")
+	<E> List<List<E>> readChunks(String field, RedisListManifest manifest, int fromChunk, int toChunk) {
+		List<String> fields = new ArrayList<String>(toChunk - fromChunk);
+		for (int chunk = fromChunk; chunk < toChunk; chunk++) {
+			fields.add(manifest.getChunkField(field, chunk));
+		}
+		List<Object> values = redisGetAll(getSessionKey(), fields);
+		List<List<E>> chunks = new ArrayList<List<E>>(values.size());
+		for (int i = 0; i < values.size(); i++) {
+			Object value = values.get(i);
+			if (!(value instanceof List)) {
+				if (Debug.verboseOn())
+					Debug.logVerbose("redis chunk [" + fields.get(i) + "] of cache [" + getName() + "] is missing",
+							"redis");
+				return null;
+			}
+			chunks.add((List<E>) value);
+		}
+		return chunks;
+	}
+
+	/** lists of GenericValues longer than listChunkSize */
+	private boolean isChunked(Object value) {
+		if (listChunkSize <= 0 || !(value instanceof List)) {
+			return false;
+		}
+		List<?> list = (List<?>) value;
+		return list.size() > listChunkSize && list.get(0) instanceof GenericValue;
+	}
+
+	private void recordRead(String field, Object value, boolean near) {
+		if (statistics == null) {
+			return;
+		}
+		if (value == null) {
+			statistics.recordMiss(field);
+		} else if (near) {
+			statistics.recordNearHit(field);
+		} else {
+			statistics.recordHit(field);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	protected V getField(String field, Callable<V> refresher) {
+		if (softExpireTimeMillis <= 0 || refresher == null) {
+			return getField(field);
+		}
+		if (hotKeys != null) {
+			hotKeys.record(getName(), field);
+		}
+		if (writeBehind != null) {
+			PendingWrite pending = pendingWrites.get(field);
+			if (pending != null) {
+				recordRead(field, pending.value, true);
+				return (V) pending.value;
+			}
+		}
+		// the near cache never holds a value longer than softExpireTime
+		V value = nearCache != null ? nearCache.get(field) : null;
+		if (value != null) {
+			recordRead(field, value, true);
+			return value;
+		}
+		long generation = nearCache != null ? nearCache.getGeneration() : 0;
+		List<byte[]> read = redisReadFields(getSessionKey(), Collections.singletonList(field));
+		byte[] bytes = read.get(0);
+		RedisCacheEnvelope envelope = bytes != null ? RedisCacheEnvelope.unwrap(bytes) : null;
+		long now = System.currentTimeMillis();
+		if (envelope == null || envelope.isExpired(now)) {
+			recordRead(field, null, false);
+			rememberGeneration(Collections.singletonList(field), read.get(1));
+			return null;
+		}
+		if (envelope.chunked) {
+			value = (V) resolveChunks(field, RedisListManifest.decode(envelope.payload));
+		} else {
+			value = (V) decode(envelope.payload, bytes.length);
+		}
+		recordRead(field, value, false);
+		if (envelope.isSoftExpired(now)) {
+			refreshInBackground(field, refresher);
+		} else if (nearCache != null && !envelope.chunked) {
+			keepRead(field, value, generation);
+		}
+		return value;
+	}
+
+	/**
+	 * Queues refresher unless a refresh of field is already queued here or
+	 * running on another node (load lease of getOrLoad).
+	 */
+	private void refreshInBackground(final String field, final Callable<V> refresher) {
+		if (!refreshing.add(field)) {
+			return;
+		}
+		boolean queued = UtilRedisCacheFactory.refresh(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					String token = UUID.randomUUID().toString();
+					Boolean leased = loadLeaseTime > 0
+							? redisAcquireLease(getSessionKey(), field, token, loadLeaseTime) : null;
+					if (leased != null && !leased.booleanValue()) {
+						return;
+					}
+					try {
+						// the put of the refresher runs on this thread
+						rememberGeneration(Collections.singletonList(field));
+						refresher.call();
+						if (Debug.verboseOn())
+							Debug.logVerbose("redis refreshed [" + field + "] of cache [" + getName() + "]", "redis");
+					} finally {
+						if (leased != null) {
+							redisReleaseLease(getSessionKey(), field, token);
+						}
+					}
+				} catch (Exception e) {
+					Debug.logWarning(e, "Error refreshing [" + field + "] of cache [" + getName() + "]", module);
+				} finally {
+					refreshing.remove(field);
+				}
+			}
+		});
+		if (!queued) {
+			// the next read tries again
+			refreshing.remove(field);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	protected V putField(String field, V value) {
+		return putField(field, value, null);
+	}
+
+	private V putField(String field, V value, ConditionDependency dependency) {
+		if (statistics != null) {
+			statistics.recordPut();
+		}
+		long readGeneration = takeGeneration(field);
+		if (isChunked(value)) {
+			// written by the caller, a pending write and a local copy would keep the whole list in memory
+			cancelPendingWrite(field);
+			redisSetChunks(getSessionKey(), field, (List<?>) value, expireTimeMillis, readGeneration, dependency);
+			if (nearCache != null) {
+				nearCache.remove(field);
+			}
+			return value;
+		}
+		if (writeBehind != null && value != null) {
+			if (dependency != null) {
+				redisPutDependency(getSessionKey(), dependency);
+			}
+			return putFieldBehind(field, value, readGeneration);
+		}
+		if (nearCache == null) {
+			redisSet(getSessionKey(), field, value, expireTimeMillis, readGeneration, dependency);
+			return value;
+		}
+		long generation = nearCache.getGeneration();
+		if (redisSet(getSessionKey(), field, value, expireTimeMillis, readGeneration, dependency)) {
+			nearCache.putIfUnchanged(field, value, generation);
+		}
+		return value;
+	}
+
+	/**
+	 * With versionedPut, reads the generation of the cache for the puts of
+	 * fields, which missed on this thread. The read comes after the miss and
+	 * before the caller reads the database, so every invalidation the loaded
+	 * value may not reflect increases the generation after it. A miss of a
+	 * read reads the generation with the fields, see redisReadFields.
+	 */
+	private void rememberGeneration(List<String> fields) {
+		if (!versionedPut || fields.isEmpty()) {
+			return;
+		}
+		rememberGeneration(fields, redisGetGeneration(getSessionKey()));
+	}
+
+	/** rememberGeneration with the generation read by redisReadFields */
+	private void rememberGeneration(List<String> fields, byte[] generation) {
+		if (!versionedPut || fields.isEmpty()) {
+			return;
+		}
+		rememberGeneration(fields, generation != null ? Long.parseLong(new String(generation)) : 0);
+	}
+
+	private void rememberGeneration(List<String> fields, long generation) {
+		Map<String, Long> generations = readGenerations.get();
+		for (String field : fields) {
+			generations.put(field, generation);
+		}
+	}
+
+	/**
+	 * With versionedPut and a transaction in place, increases the generation
+	 * of the cache once more when the transaction completes. The invalidation
+	 * increased it before the commit, a miss reading the database in between
+	 * still loads the old rows and its put has to be dropped too.
+	 */
+	private void incrGenerationAfterCommit() {
+		if (!versionedPut) {
+			return;
+		}
+		try {
+			if (!TransactionUtil.isTransactionInPlace()) {
+				return;
+			}
+			GenerationAfterCommit sync = generationAfterCommit.get();
+			if (sync == null || !sync.add(this)) {
+				sync = new GenerationAfterCommit();
+				sync.add(this);
+				TransactionUtil.registerSynchronization(sync);
+				generationAfterCommit.set(sync);
+			}
+		} catch (GenericTransactionException e) {
+			Debug.logWarning(e, "Unable to increase the generation of cache [" + getName()
+					+ "] after the commit", module);
+		}
+	}
+
+	/** the caches invalidated by the transaction of this thread, see incrGenerationAfterCommit */
+	private static final ThreadLocal<GenerationAfterCommit> generationAfterCommit = new ThreadLocal<GenerationAfterCommit>();
+
+	private static final class GenerationAfterCommit implements Synchronization {
+		private final Set<UtilRedisCache<?, ?>> caches = new LinkedHashSet<UtilRedisCache<?, ?>>();
+		private boolean completed = false;
+
+		/** false once the transaction completed, a new one needs its own */
+		private synchronized boolean add(UtilRedisCache<?, ?> cache) {
+			if (completed) {
+				return false;
+			}
+			caches.add(cache);
+			return true;
+		}
+
+		@Override
+		public void beforeCompletion() {
+		}
+
+		@Override
+		public void afterCompletion(int status) {
+			List<UtilRedisCache<?, ?>> completedCaches;
+			synchronized (this) {
+				completed = true;
+				completedCaches = new ArrayList<UtilRedisCache<?, ?>>(caches);
+			}
+			if (generationAfterCommit.get() == this) {
+				generationAfterCommit.remove();
+			}
+			for (UtilRedisCache<?, ?> cache : completedCaches) {
+				try {
+					cache.redisIncrGeneration(cache.getSessionKey());
+				} catch (Exception e) {
+					Debug.logWarning(e, "Unable to increase the generation of cache [" + cache.getName() + "]",
+							module);
+				}
+			}
+		}
+	}
+
+	/**
+	 * the generation remembered for the put of field on this thread,
+	 * NO_GENERATION when there was no miss (or versionedPut is off) and the
+	 * put is written unconditionally
+	 */
+	private long takeGeneration(String field) {
+		if (!versionedPut) {
+			return NO_GENERATION;
+		}
+		Long generation = readGenerations.get().remove(field);
+		return generation != null ? generation : NO_GENERATION;
+	}
+
+	/**
+	 * Reads fields from redis in batches of scanBatchSize and keeps them in
+	 * the near cache, returns the fields not found in redis.
+	 */
+	public List<String> warm(List<String> fields) {
+		List<String> missing = new ArrayList<String>();
+		for (int from = 0; from < fields.size(); from += scanBatchSize) {
+			List<String> batch = fields.subList(from, Math.min(fields.size(), from + scanBatchSize));
+			long generation = nearCache != null ? nearCache.getGeneration() : 0;
+			List<Object> values = redisGetAll(getSessionKey(), batch);
+			for (int i = 0; i < batch.size(); i++) {
+				@SuppressWarnings("unchecked")
+				V value = (V) values.get(i);
+				if (value == null) {
+					missing.add(batch.get(i));
+				} else if (nearCache != null && !(value instanceof RedisListManifest)) {
+					keepRead(batch.get(i), value, generation);
+				}
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * The condition of the entries whose fields start with fingerprint, as
+	 * recorded by putDependency; null when unknown or registered as matching
+	 * any row.
+	 */
+	public EntityCondition getDependencyCondition(String fingerprint) {
+		String key = getSessionKey();
+		Jedis jedis = null;
+		Boolean error = true;
+		try {
+			jedis = acquireRedisConnection(key);
+			byte[] bytes = jedis.hget(getDependencyKey(key).getBytes(), fingerprint.getBytes());
+			error = false;
+			return bytes != null && bytes.length > 0 ? (EntityCondition) UtilObject.getObject(bytes) : null;
+		} finally {
+			if (jedis != null) {
+				returnRedisConnection(jedis, error);
+			}
+		}
+	}
+
+	/**
+	 * Records the put for the write-behind flusher, a field already pending
+	 * only gets its value replaced.
+	 */
+	private V putFieldBehind(String field, V value, long readGeneration) {
+		long generation = nearCache != null ? nearCache.getGeneration() : 0;
+		if (pendingWrites.put(field, new PendingWrite(value, System.currentTimeMillis(), readGeneration)) == null
+				&& !writeBehind.submit(this, field)) {
+			// queue full: take back whatever is pending now, a later put queues itself again
+			PendingWrite pending = pendingWrites.remove(field);
+			if (pending != null && writeBehind.isBlocking()
+					&& !redisSet(getSessionKey(), field, pending.value, expireTimeMillis, pending.generation)) {
+				return value;
+			}
+		}
+		if (nearCache != null) {
+			nearCache.putIfUnchanged(field, value, generation);
+		}
+		return value;
+	}
+
+	/**
+	 * Writes the pending values of fields with one pipeline, called by the
+	 * write-behind flusher. Fields no longer pending were written with an
+	 * earlier batch or cancelled by a remove. The values are serialized and
+	 * written outside of pendingWritesLock; a field cancelled meanwhile is
+	 * removed from redis again once the batch is written.
+	 */
+	void flushPendingWrites(List<String> fields) {
+		String key = getSessionKey();
+		List<String> flushFields = new ArrayList<String>(fields.size());
+		List<PendingWrite> flushValues = new ArrayList<PendingWrite>(fields.size());
+		synchronized (pendingWritesLock) {
+			for (String field : fields) {
+				PendingWrite pending = pendingWrites.remove(field);
+				if (pending != null) {
+					flushFields.add(field);
+					flushValues.add(pending);
+					flushingWrites.put(field, pending);
+				}
+			}
+		}
+		if (flushFields.isEmpty()) {
+			return;
+		}
+		try {
+			writePendingWrites(key, flushFields, flushValues);
+		} finally {
+			List<String> cancelled = new ArrayList<String>();
+			synchronized (pendingWritesLock) {
+				for (int i = 0; i < flushFields.size(); i++) {
+					PendingWrite pending = flushValues.get(i);
+					flushingWrites.remove(flushFields.get(i));
+					if (pending.cancelled) {
+						cancelled.add(flushFields.get(i));
+					}
+				}
+			}
+			if (!cancelled.isEmpty()) {
+				redisRemoveFields(key, cancelled);
+			}
+		}
+	}
+
+	private void writePendingWrites(String key, List<String> flushFields, List<PendingWrite> flushValues) {
+		boolean publish = isPublishing();
+		boolean versioned = false;
+		for (PendingWrite pending : flushValues) {
+			versioned |= pending.generation != NO_GENERATION;
+		}
+		byte[] binaryKey = key.getBytes();
+		byte[] binaryExpiryKey = getExpiryKey(key).getBytes();
+		Jedis jedis = null;
+		Boolean error = true;
+		long start = System.nanoTime();
+		try {
+			jedis = acquireRedisConnection(key);
+			List<byte[]> puts = new ArrayList<byte[]>(flushFields.size() * 4);
+			for (int i = 0; i < flushFields.size(); i++) {
+				PendingWrite pending = flushValues.get(i);
+				long expireAt = expireTimeMillis > 0 ? pending.putTime + expireTimeMillis : 0;
+				long softExpireAt = softExpireTimeMillis > 0 ? pending.putTime + softExpireTimeMillis : 0;
+				addPut(puts, flushFields.get(i).getBytes(), serialize(pending.value, expireAt, softExpireAt),
+						pending.generation, expireAt);
+			}
+			if (versioned) {
+				// the whole batch with one script, the pipeline only publishes
+				boolean[] written = redisPutIfGeneration(jedis, key, puts);
+				for (int i = 0; i < written.length; i++) {
+					if (!written[i]) {
+						rejectStalePut(flushFields.get(i));
+					}
+				}
+			}
+			Pipeline pipeline = jedis.pipelined();
+			for (int i = 0; i < flushFields.size(); i++) {
+				if (!versioned) {
+					byte[] field = puts.get(i * 4);
+					long expireAt = expireTimeMillis > 0 ? flushValues.get(i).putTime + expireTimeMillis : 0;
+					pipeline.hset(binaryKey, field, puts.get(i * 4 + 1));
+					if (expireAt > 0) {
+						pipeline.zadd(binaryExpiryKey, expireAt, field);
+					}
+				}
+				if (publish) {
+					invalidator.publish(pipeline, RedisCacheInvalidator.OP_REMOVE, getName(), flushFields.get(i));
+				}
+			}
+			pipeline.sync();
+			error = false;
+			if (statistics != null) {
+				statistics.recordWrite(System.nanoTime() - start);
+			}
+			if (Debug.verboseOn())
+				Debug.logVerbose("redis write-behind of [" + flushFields.size() + "] fields of key [" + key + "]",
+						"redis");
+		} finally {
+			if (jedis != null) {
+				returnRedisConnection(jedis, error);
+			}
+		}
+	}
+
+	/**
+	 * removes fields whose write-behind was cancelled while it was written,
+	 * other nodes drop them from their near cache
+	 */
+	private void redisRemoveFields(String key, List<String> fields) {
+		byte[][] binaryFields = new byte[fields.size()][];
+		for (int i = 0; i < binaryFields.length; i++) {
+			binaryFields[i] = fields.get(i).getBytes();
+		}
+		Jedis jedis = null;
+		Boolean error = true;
+		try {
+			jedis = acquireRedisConnection(key);
+			Pipeline pipeline = jedis.pipelined();
+			pipeline.hdel(key.getBytes(), binaryFields);
+			if (expireTimeMillis > 0) {
+				pipeline.zrem(getExpiryKey(key).getBytes(), binaryFields);
+			}
+			if (isPublishing()) {
+				for (String field : fields) {
+					invalidator.publish(pipeline, RedisCacheInvalidator.OP_REMOVE, getName(), field);
+				}
+			}
+			pipeline.sync();
+			error = false;
+		} finally {
+			if (jedis != null) {
+				returnRedisConnection(jedis, error);
+			}
+		}
+		if (nearCache != null) {
+			for (String field : fields) {
+				nearCache.remove(field);
+			}
+		}
+	}
+
+	/**
+	 * Drops pending writes of fields starting with prefix, all when prefix is
+	 * null; once this returns none of them is left in redis: a write already
+	 * being flushed is removed again by the flusher.
+	 */
+	private void cancelPendingWrites(String prefix) {
+		if (writeBehind == null) {
+			return;
+		}
+		synchronized (pendingWritesLock) {
+			if (prefix == null) {
+				pendingWrites.clear();
+			} else {
+				for (String field : pendingWrites.keySet()) {
+					if (field.startsWith(prefix)) {
+						pendingWrites.remove(field);
+					}
+				}
+			}
+			for (Map.Entry<String, PendingWrite> entry : flushingWrites.entrySet()) {
+				if (prefix == null || entry.getKey().startsWith(prefix)) {
+					entry.getValue().cancelled = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * cancelPendingWrites of the entries of the given condition fingerprints
+	 * with one pass over the pending writes
+	 */
+	private void cancelPendingConditionWrites(Set<String> fingerprints) {
+		if (writeBehind == null) {
+			return;
+		}
+		synchronized (pendingWritesLock) {
+			for (String field : pendingWrites.keySet()) {
+				if (isConditionField(field, fingerprints)) {
+					pendingWrites.remove(field);
+				}
+			}
+			for (Map.Entry<String, PendingWrite> entry : flushingWrites.entrySet()) {
+				if (isConditionField(entry.getKey(), fingerprints)) {
+					entry.getValue().cancelled = true;
+				}
+			}
+		}
+	}
+
+	private static boolean isConditionField(String field, Set<String> fingerprints) {
+		int length = EntityConditionFingerprint.LENGTH;
+		return field.length() > length && field.charAt(length) == '_'
+				&& fingerprints.contains(field.substring(0, length));
+	}
+
+	private void cancelPendingWrite(String field) {
+		if (writeBehind == null) {
+			return;
+		}
+		synchronized (pendingWritesLock) {
+			pendingWrites.remove(field);
+			PendingWrite flushing = flushingWrites.get(field);
+			if (flushing != null) {
+				flushing.cancelled = true;
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	protected V removeField(String field) {
+		if (statistics != null) {
+			statistics.recordRemove();
+		}
+		cancelPendingWrite(field);
+		V oldValue = (V) redisDel(getSessionKey(), field);
+		if (nearCache != null) {
+			nearCache.remove(field);
+		}
+		incrGenerationAfterCommit();
+		return oldValue;
+	}
+
+	/**
+	 * Drop local entries on behalf of another node, see
+	 * RedisCacheInvalidator.
+	 */
+	void invalidateNearCache(char op, String field) {
+		// pending writes read before the change would write the old value back
+		switch (op) {
+		case RedisCacheInvalidator.OP_REMOVE:
+			cancelPendingWrite(field);
+			if (nearCache != null) {
+				nearCache.remove(field);
+			}
+			break;
+		case RedisCacheInvalidator.OP_REMOVE_PREFIX:
+			cancelPendingWrites(field);
+			if (nearCache != null) {
+				nearCache.removeStartsWith(field);
+			}
+			break;
+		default:
+			cancelPendingWrites(null);
+			if (nearCache != null) {
+				nearCache.clear();
+			}
+		}
+	}
+
+	/**
+	 * true when changes are published for other nodes: to drop their near
+	 * cache entries and to cancel their pending writes of the fields
+	 */
+	private boolean isPublishing() {
+		return invalidator != null && (nearCache != null || writeBehind != null);
+	}
+
+	void clearNearCache() {
+		if (nearCache != null) {
+			nearCache.clear();
+		}
+		if (pkFilter != null) {
+			// keys added on other nodes may be missing, read the whole filter again
+			pkFilterReady = false;
+			pkFilterVersion = null;
+		}
+	}
+
+	/**
+	 * true when the primary key filter shows that no row has key, without
+	 * any I/O; false when the row may exist or the filter is disabled or not
+	 * built yet.
+	 *
+	 * The filter holds the keys of all rows as of its last build from the
+	 * database (pkFilterLoader, every redis-pkFilterRebuildInterval) plus
+	 * every key passed to addToPkFilter since, on any node. Rows deleted since
+	 * the last build keep their bits until the next build.
+	 */
+	public boolean isKnownAbsent(String key) {
+		if (pkFilter == null || !pkFilterReady || pkFilter.mightContain(key)) {
+			return false;
+		}
+		if (statistics != null) {
+			statistics.recordPkFilterReject();
+		}
+		return true;
+	}
+
+	/**
+	 * Records a key that may be new, in the redis filter, the filter being
+	 * built if a rebuild is running, and the local copy of every node.
+	 */
+	public void addToPkFilter(String key) {
+		if (pkFilter == null) {
+			return;
+		}
+		long[] positions = pkFilter.positions(key);
+		pkFilter.add(positions);
+		String sessionKey = getSessionKey();
+		String filterKey = getPkFilterKey(sessionKey);
+		List<String> args = new ArrayList<String>(positions.length);
+		for (long position : positions) {
+			args.add(Long.toString(position));
+		}
+		Jedis jedis = null;
+		Boolean error = true;
+		try {
+			jedis = acquireRedisConnection(sessionKey);
+			Pipeline pipeline = jedis.pipelined();
+			pipeline.eval(ADD_PK_SCRIPT, Arrays.asList(filterKey, filterKey + ":next"), args);
+			if (invalidator != null) {
+				invalidator.publish(pipeline, RedisCacheInvalidator.OP_PK_ADDED, getName(), key);
+			}
+			pipeline.sync();
+			error = false;
+		} finally {
+			if (jedis != null) {
+				returnRedisConnection(jedis, error);
+			}
+		}
+	}
+
+	/**
+	 * addToPkFilter for keys the local copy does not hold yet, for rows read
+	 * from the database which the filter normally knows already
+	 */
+	public void addToPkFilterIfAbsent(String key) {
+		if (pkFilter != null && !pkFilter.mightContain(key)) {
+			addToPkFilter(key);
+		}
+	}
+
+	/** key added to the filter on another node, see RedisCacheInvalidator */
+	void pkFilterAdded(String key) {
+		if (pkFilter != null) {
+			pkFilter.add(pkFilter.positions(key));
+		}
+	}
+
+	/**
+	 * Loads the redis filter into the local copy when it was built again, and
+	 * starts a rebuild when there is no build or the build is older than
+	 * pkFilterRebuildInterval. Run every redis-pkFilterSyncInterval.
+	 */
+	void syncPkFilter() {
+		if (pkFilter == null) {
+			return;
+		}
+		String sessionKey = getSessionKey();
+		String filterKey = getPkFilterKey(sessionKey);
+		Jedis jedis = null;
+		Boolean error = true;
+		String marker;
+		try {
+			jedis = acquireRedisConnection(sessionKey);
+			marker = jedis.get(filterKey + ":built");
+			if (marker != null && !marker.equals(pkFilterVersion) && matchesPkFilter(marker)) {
+				pkFilter.beginLoad();
+				byte[] bitmap = null;
+				try {
+					bitmap = jedis.get(filterKey.getBytes());
+				} finally {
+					pkFilter.load(bitmap);
+				}
+				if (bitmap != null) {
+					pkFilterVersion = marker;
+					pkFilterReady = true;
+					if (Debug.verboseOn())
+						Debug.logVerbose("redis loaded pk filter of cache [" + getName() + "], built [" + marker + "]",
+								"redis");
+				}
+			}
+			error = false;
+		} finally {
+			if (jedis != null) {
+				returnRedisConnection(jedis, error);
+			}
+		}
+		if (marker == null) {
+			pkFilterReady = false;
+			rebuildPkFilterInBackground();
+		} else if (pkFilterRebuildInterval > 0
+				&& Long.parseLong(marker.substring(0, marker.indexOf(':'))) + pkFilterRebuildInterval < System
+						.currentTimeMillis()) {
+			rebuildPkFilterInBackground();
+		}
+	}
+
+	/** marker is builtAt:bits:hashes, other sizes cannot be read */
+	private boolean matchesPkFilter(String marker) {
+		if (marker.endsWith(":" + pkFilter.getBits() + ":" + pkFilter.getHashes())) {
+			return true;
+		}
+		if (pkFilterReady || pkFilterVersion == null) {
+			Debug.logWarning("Primary key filter of cache [" + getName() + "] was built with another size ["
+					+ marker + "], check pkFilterExpectedKeys of all nodes; not used until built again", module);
+		}
+		pkFilterReady = false;
+		pkFilterVersion = marker;
+		return false;
+	}
+
+	private void rebuildPkFilterInBackground() {
+		if (pkFilterLoader == null || !pkFilterRebuilding.compareAndSet(false, true)) {
+			return;
+		}
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					rebuildPkFilter();
+				} catch (Exception e) {
+					Debug.logWarning(e, "Error building the primary key filter of cache [" + getName() + "]", module);
+				} finally {
+					pkFilterRebuilding.set(false);
+				}
+			}
+		}, "entitycache-redis-pkfilter");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Builds the filter from the keys of pkFilterLoader, on one node at a
+	 * time. Keys added meanwhile go to the new filter as well, the new filter
+	 * replaces the old one atomically.
+	 */
+	protected void rebuildPkFilter() throws Exception {
+		String sessionKey = getSessionKey();
+		String filterKey = getPkFilterKey(sessionKey);
+		String leaseKey = filterKey + ":lease";
+		String nextKey = filterKey + ":next";
+		String token = UUID.randomUUID().toString();
+		Jedis jedis = null;
+		Boolean error = true;
+		try {
+			jedis = acquireRedisConnection(sessionKey);
+			if (!"OK".equals(jedis.set(leaseKey, token, "NX", "PX", PK_FILTER_LEASE_MILLIS))) {
+				// built on another node
+				error = false;
+				return;
+			}
+			Pipeline pipeline = jedis.pipelined();
+			pipeline.del(nextKey);
+			pipeline.setbit(nextKey, pkFilter.getBits() - 1, false);
+			pipeline.pexpire(nextKey, PK_FILTER_LEASE_MILLIS);
+			pipeline.sync();
+			error = false;
+		} finally {
+			if (jedis != null) {
+				returnRedisConnection(jedis, error);
+			}
+		}
+		try {
+			long start = System.currentTimeMillis();
+			RedisBloomFilter built = new RedisBloomFilter(pkFilter.getBits(), pkFilter.getHashes());
+			long count = 0;
+			Iterator<String> keys = pkFilterLoader.call();
+			try {
+				while (keys.hasNext()) {
+					built.add(built.positions(keys.next()));
+					count++;
+				}
+			} finally {
+				if (keys instanceof Closeable) {
+					((Closeable) keys).close();
+				}
+			}
+			String marker = System.currentTimeMillis() + ":" + built.getBits() + ":" + built.getHashes();
+			List<byte[]> scriptKeys = new ArrayList<byte[]>(4);
+			scriptKeys.add(filterKey.getBytes());
+			scriptKeys.add(nextKey.getBytes());
+			scriptKeys.add((filterKey + ":scan").getBytes());
+			scriptKeys.add((filterKey + ":built").getBytes());
+			List<byte[]> args = new ArrayList<byte[]>(2);
+			args.add(built.toBytes());
+			args.add(marker.getBytes());
+			Object swapped;
+			error = true;
+			jedis = acquireRedisConnection(sessionKey);
+			try {
+				swapped = jedis.eval(SWAP_PK_FILTER_SCRIPT, scriptKeys, args);
+				error = false;
+			} finally {
+				returnRedisConnection(jedis, error);
+			}
+			if (!Long.valueOf(1).equals(swapped)) {
+				Debug.logWarning("Primary key filter of cache [" + getName() + "] not replaced, the build took longer than "
+						+ PK_FILTER_LEASE_MILLIS + " milliseconds", module);
+				return;
+			}
+			Debug.logInfo("Built primary key filter of cache [" + getName() + "] with [" + count + "] keys in ["
+					+ (System.currentTimeMillis() - start) + "] milliseconds", module);
+		} finally {
+			releasePkFilterLease(leaseKey, token);
+		}
+		syncPkFilter();
+	}
+
+	private void releasePkFilterLease(String leaseKey, String token) {
+		Jedis jedis = null;
+		Boolean error = true;
+		try {
+			jedis = acquireRedisConnection(leaseKey);
+			jedis.eval(RELEASE_LEASE_SCRIPT, Collections.singletonList(leaseKey), Collections.singletonList(token));
+			error = false;
+		} finally {
+			if (jedis != null) {
+				returnRedisConnection(jedis, error);
+			}
+		}
+	}
+
+	protected void publishInvalidation(Jedis jedis, char op, String field) {
+		if (isPublishing()) {
+			invalidator.publish(jedis, op, getName(), field);
+		}
+	}
+
+	protected Object redisGet(String key) {
+		Jedis jedis = null;
+		Boolean error = true;
+		try {
+			jedis = acquireRedisConnection(key);
+			error = false;
+			Object value = deserialize(jedis.get(key.getBytes()));
+			if (Debug.verboseOn())
+				Debug.logVerbose("redis get with key [" + key + "], result is [" + value + "]", "redis");
+			return value;
+		} finally {
+			if (jedis != null) {
+				returnRedisConnection(jedis, error);
+			}
+		}
+	}
+
+	protected Object redisGet(String key, String field) {
+		long start = System.nanoTime();
+		byte[] bytes = await(transport.hget(key.getBytes(), field.getBytes()));
+		if (statistics != null) {
+			statistics.recordRead(System.nanoTime() - start);
+		}
+		Object value = deserialize(bytes);
+		if (Debug.verboseOn())
+			Debug.logVerbose("redis get with  key [" + key + "], field [" + field + "],result is [" + value + "]",
+					"redis");
+		return value;
+	}
+
+	protected List<Object> redisGetAll(String key, List<String> fields) {
+		byte[][] binaryFields = new byte[fields.size()][];
+		for (int i = 0; i < binaryFields.length; i++) {
+			binaryFields[i] = fields.get(i).getBytes();
+		}
+		long start = System.nanoTime();
+		List<byte[]> rawValues = await(transport.hmget(key.getBytes(), binaryFields));
+		if (statistics != null) {
+			statistics.recordRead(System.nanoTime() - start);
+		}
+		List<Object> values = new ArrayList<Object>(rawValues.size());
+		for (byte[] rawValue : rawValues) {
+			values.add(deserialize(rawValue));
+		}
+		if (Debug.verboseOn())
+			Debug.logVerbose("redis hmget with key [" + key + "], fields " + fields + ", found ["
+					+ (values.size() - Collections.frequency(values, null)) + "]", "redis");
+		return values;
+	}
+
+	/**
+	 * Waits for a transport reply, up to the redis timeout.
+	 */
+	protected <T> T await(CompletableFuture<T> future) {
+		try {
+			int timeout = redisManager.getTimeout();
+			return timeout > 0 ? future.get(timeout, TimeUnit.MILLISECONDS) : future.get();
+		} catch (ExecutionException e) {
+			String message = e.getCause().getMessage();
+			if (message != null && (message.startsWith("MOVED ") || message.startsWith("ASK "))) {
+				redisManager.refreshClusterSlots();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new JedisConnectionException(e.getCause());
+		} catch (TimeoutException e) {
+			throw new JedisConnectionException("Timed out waiting for redis reply", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new JedisConnectionException(e);
+		}
+	}
+
+	protected Object redisSet(String key, Object value, int seconds) {
+		Jedis jedis = null;
+		Boolean error = true;
+		try {
+			jedis = acquireRedisConnection(key);
+			error = false;
+			if (seconds > 0) {
+				jedis.setex(key.getBytes(), seconds, serialize(value));
+			} else {
+				jedis.set(key.getBytes(), serialize(value));
+			}
+			if (Debug.verboseOn())
+				Debug.logVerbose("redis set with key [" + key + "], value is [" + value + "]"
+						+ (seconds > 0 ? ", expire [" + seconds + "] seconds" : ""), "redis");
+			return value;
+		} finally {
+			if (jedis != null) {
+				returnRedisConnection(jedis, error);
+			}
+		}
+	}
+
+	protected Object redisSet(String key, String field, Object value, long expireTime) {
+		redisSet(key, field, value, expireTime, NO_GENERATION);
+		return value;
+	}
+
+	/**
+	 * Writes value to field, unless generation is not NO_GENERATION and the
+	 * generation of the cache changed since it was read (see versionedPut);
+	 * returns false when the value was not written for that reason.
+	 */
+	protected boolean redisSet(String key, String field, Object value, long expireTime, long generation) {
+		return redisSet(key, field, value, expireTime, generation, null);
+	}
+
+	private boolean redisSet(String key, String field, Object value, long expireTime, long generation,
+			ConditionDependency dependency) {
+		long now = System.currentTimeMillis();
+		long expireAt = expireTime > 0 ? now + expireTime : 0;
+		byte[] bytes = serialize(value, expireAt, softExpireTimeMillis > 0 ? now + softExpireTimeMillis : 0);
+		boolean publish = isPublishing();
+		long start = System.nanoTime();
+		if ((generation != NO_GENERATION || dependency != null) && bytes != null) {
+			Jedis jedis = null;
+			Boolean error = true;
+			try {
+				jedis = acquireRedisConnection(key);
+				boolean written;
+				if (dependency != null) {
+					written = redisPutWithDependency(jedis, key, field.getBytes(), bytes, generation, expireAt,
+							dependency);
+				} else {
+					List<byte[]> puts = new ArrayList<byte[]>(4);
+					addPut(puts, field.getBytes(), bytes, generation, expireAt);
+					written = redisPutIfGeneration(jedis, key, puts)[0];
+				}
+				if (written) {
+					publishInvalidation(jedis, RedisCacheInvalidator.OP_REMOVE, field);
+				}
+				error = false;
+				if (!written) {
+					rejectStalePut(field);
+					return false;
+				}
+			} finally {
+				if (jedis != null) {
+					returnRedisConnection(jedis, error);
+				}
+			}
+		} else if (expireAt > 0 || publish) {
+			Jedis jedis = null;
+			Boolean error = true;
+			try {
+				jedis = acquireRedisConnection(key);
+				Pipeline pipeline = jedis.pipelined();
+				pipeline.hset(key.getBytes(), field.getBytes(), bytes);
+				if (expireAt > 0) {
+					pipeline.zadd(getExpiryKey(key).getBytes(), expireAt, field.getBytes());
+				}
+				if (publish) {
+					invalidator.publish(pipeline, RedisCacheInvalidator.OP_REMOVE, getName(), field);
+				}
+				pipeline.sync();
+				error = false;
+			} finally {
+				if (jedis != null) {
+					returnRedisConnection(jedis, error);
+				}
+			}
+		} else {
+			await(transport.hset(key.getBytes(), field.getBytes(), bytes));
+		}
+		if (statistics != null) {
+			statistics.recordWrite(System.nanoTime() - start);
+		}
+		if (Debug.verboseOn())
+			Debug.logVerbose("redis set with key [" + key + "], field [" + field + "], value is [" + value + "]"
+					+ (expireTime > 0 ? ", expire [" + expireTime + "] milliseconds" : ""), "redis");
+		return true;
+	}
+
+	/**
+	 * Runs PUT_IF_GENERATION_SCRIPT for puts, four arguments each as added by
+	 * addPut, and returns which of them were written.
+	 */
+	private boolean[] redisPutIfGeneration(Jedis jedis, String key, List<byte[]> puts) {
+		List<byte[]> keys = Arrays.asList(key.getBytes(), getExpiryKey(key).getBytes(),
+				getGenerationKey(key).getBytes());
+		Object reply = jedis.eval(PUT_IF_GENERATION_SCRIPT, keys, puts);
+		boolean[] written = new boolean[puts.size() / 4];
+		if (reply instanceof List) {
+			List<?> replies = (List<?>) reply;
+			for (int i = 0; i < written.length && i < replies.size(); i++) {
+				written[i] = Long.valueOf(1).equals(replies.get(i));
+			}
+		}
+		return written;
+	}
+
+	private static void addPut(List<byte[]> puts, byte[] field, byte[] bytes, long generation, long expireAt) {
+		puts.add(field);
+		puts.add(bytes);
+		puts.add(Long.toString(generation).getBytes());
+		puts.add(Long.toString(expireAt).getBytes());
 	}
 
-	public void clear(Object conditionKey) {
-		redisRemoveMapFields(getSessionKey(), getRedisFieldKey(conditionKey, null));
+	/**
+	 * a put of field was read before an invalidation of the cache, its value
+	 * may be outdated and is dropped
+	 */
+	private void rejectStalePut(String field) {
+		if (statistics != null) {
+			statistics.recordStalePutReject();
+		}
+		if (nearCache != null) {
+			nearCache.remove(field);
+		}
+		if (Debug.verboseOn())
+			Debug.logVerbose("redis put of [" + field + "] in cache [" + getName()
+					+ "] dropped, the cache was invalidated since its miss", "redis");
 	}
 
-	public V remove(Object key) {
-		return (V) redisDel(getSessionKey(), getRedisFieldKey(key));
+	protected void redisIncrGeneration(String key) {
+		Jedis jedis = null;
+		Boolean error = true;
+		try {
+			jedis = acquireRedisConnection(key);
+			jedis.incr(getGenerationKey(key));
+			error = false;
+		} finally {
+			if (jedis != null) {
+				returnRedisConnection(jedis, error);
+			}
+		}
 	}
 
-	public V remove(Object conditionKey, Object key) {
-		return (V) redisDel(getSessionKey(), getRedisFieldKey(conditionKey, key));
+	/**
+	 * The raw values of fields followed by the generation of the cache, read
+	 * in the same round trip with versionedPut and null otherwise, see
+	 * rememberGeneration.
+	 */
+	private List<byte[]> redisReadFields(String key, List<String> fields) {
+		byte[][] binaryFields = new byte[fields.size()][];
+		for (int i = 0; i < binaryFields.length; i++) {
+			binaryFields[i] = fields.get(i).getBytes();
+		}
+		long start = System.nanoTime();
+		List<byte[]> values;
+		if (versionedPut) {
+			values = await(transport.hmgetAndGet(key.getBytes(), getGenerationKey(key).getBytes(), binaryFields));
+		} else {
+			values = new ArrayList<byte[]>(binaryFields.length + 1);
+			if (binaryFields.length == 1) {
+				values.add(await(transport.hget(key.getBytes(), binaryFields[0])));
+			} else {
+				values.addAll(await(transport.hmget(key.getBytes(), binaryFields)));
+			}
+			values.add(null);
+		}
+		if (statistics != null) {
+			statistics.recordRead(System.nanoTime() - start);
+		}
+		return values;
 	}
 
-	public V get(GenericPK pk) {
-		V value = (V) redisGet(getSessionKey(), pk.getPkShortValueString());
+	/**
+	 * redisGet of a field missing in the near cache, remembering the
+	 * generation when it is missing in redis too
+	 */
+	private Object redisGetMiss(String key, String field) {
+		List<String> fields = Collections.singletonList(field);
+		List<byte[]> read = redisReadFields(key, fields);
+		Object value = deserialize(read.get(0));
+		if (value == null) {
+			rememberGeneration(fields, read.get(1));
+		}
+		if (Debug.verboseOn())
+			Debug.logVerbose("redis get with  key [" + key + "], field [" + field + "],result is [" + value + "]",
+					"redis");
 		return value;
 	}
 
-	public V get(Object conditionKey, Object key) {
-		V value = (V) redisGet(getSessionKey(), getRedisFieldKey(conditionKey, key));
-		return value;
+	/**
+	 * the generation of the cache at key, 0 before the first invalidation
+	 */
+	protected long redisGetGeneration(String key) {
+		Jedis jedis = null;
+		Boolean error = true;
+		try {
+			jedis = acquireRedisConnection(key);
+			String generation = jedis.get(getGenerationKey(key));
+			error = false;
+			return generation != null ? Long.parseLong(generation) : 0;
+		} finally {
+			if (jedis != null) {
+				returnRedisConnection(jedis, error);
+			}
+		}
 	}
 
-	public V put(K key, V value) {
-		return (V) redisSet(getSessionKey(), getRedisFieldKey(key), value, (int) expireTimeNanos);
+	/**
+	 * Writes values as chunks of listChunkSize elements and then the manifest
+	 * to field with one pipeline, so redis handles one chunk per command and a
+	 * reader finding the manifest finds its chunks. The chunks of the value
+	 * replaced are removed afterwards; chunks left behind by concurrent puts
+	 * go with the expiry reaper or the next clear of the condition.
+	 */
+	protected void redisSetChunks(String key, String field, List<?> values, long expireTime) {
+		redisSetChunks(key, field, values, expireTime, NO_GENERATION);
 	}
 
-	public V put(Object conditionKey, K key, V value) {
-		return (V) redisSet(getSessionKey(), getRedisFieldKey(conditionKey, key), value, (int) expireTimeNanos);
+	/**
+	 * redisSetChunks writing the manifest as redisSet does with generation,
+	 * the chunks of a manifest not written are removed again
+	 */
+	protected void redisSetChunks(String key, String field, List<?> values, long expireTime, long generation) {
+		redisSetChunks(key, field, values, expireTime, generation, null);
 	}
 
-	protected Object redisGet(String key) {
+	private void redisSetChunks(String key, String field, List<?> values, long expireTime, long generation,
+			ConditionDependency dependency) {
+		long now = System.currentTimeMillis();
+		long expireAt = expireTime > 0 ? now + expireTime : 0;
+		long softExpireAt = softExpireTimeMillis > 0 ? now + softExpireTimeMillis : 0;
+		RedisListManifest manifest = RedisListManifest.create(values.size(), listChunkSize);
+		byte[] binaryKey = key.getBytes();
+		byte[] binaryExpiryKey = getExpiryKey(key).getBytes();
+		byte[] binaryField = field.getBytes();
 		Jedis jedis = null;
 		Boolean error = true;
+		long start = System.nanoTime();
 		try {
-			jedis = acquireRedisConnection();
+			jedis = acquireRedisConnection(key);
+			Pipeline pipeline = jedis.pipelined();
+			Response<byte[]> oldBytes = pipeline.hget(binaryKey, binaryField);
+			for (int chunk = 0; chunk < manifest.getChunkCount(); chunk++) {
+				int from = chunk * listChunkSize;
+				List<Object> chunkValues = new ArrayList<Object>(values.subList(from,
+						Math.min(from + listChunkSize, values.size())));
+				byte[] chunkField = manifest.getChunkField(field, chunk).getBytes();
+				pipeline.hset(binaryKey, chunkField, serialize(chunkValues, expireAt));
+				if (expireAt > 0) {
+					pipeline.zadd(binaryExpiryKey, expireAt, chunkField);
+				}
+			}
+			byte[] manifestBytes = RedisCacheEnvelope.wrapManifest(manifest.encode(), expireAt, softExpireAt);
+			boolean scripted = generation != NO_GENERATION || dependency != null;
+			if (!scripted) {
+				pipeline.hset(binaryKey, binaryField, manifestBytes);
+				if (expireAt > 0) {
+					pipeline.zadd(binaryExpiryKey, expireAt, binaryField);
+				}
+				if (isPublishing()) {
+					invalidator.publish(pipeline, RedisCacheInvalidator.OP_REMOVE, getName(), field);
+				}
+			}
+			pipeline.sync();
+			if (scripted) {
+				boolean written;
+				if (dependency != null) {
+					written = redisPutWithDependency(jedis, key, binaryField, manifestBytes, generation, expireAt,
+							dependency);
+				} else {
+					List<byte[]> puts = new ArrayList<byte[]>(4);
+					addPut(puts, binaryField, manifestBytes, generation, expireAt);
+					written = redisPutIfGeneration(jedis, key, puts)[0];
+				}
+				if (!written) {
+					redisDelChunks(jedis, key, field, manifest);
+					error = false;
+					rejectStalePut(field);
+					return;
+				}
+				publishInvalidation(jedis, RedisCacheInvalidator.OP_REMOVE, field);
+			}
+			redisDelChunks(jedis, key, field, oldBytes.get());
 			error = false;
-			Object value = deserialize(jedis.get(key.getBytes()));
-			if (Debug.verboseOn())
-				Debug.logVerbose("redis get with key [" + key + "], result is [" + value + "]", "redis");
-			return value;
 		} finally {
 			if (jedis != null) {
 				returnRedisConnection(jedis, error);
 			}
 		}
+		if (statistics != null) {
+			statistics.recordWrite(System.nanoTime() - start);
+		}
+		if (Debug.verboseOn())
+			Debug.logVerbose("redis set with key [" + key + "], field [" + field + "], [" + values.size()
+					+ "] elements in [" + manifest.getChunkCount() + "] chunks"
+					+ (expireTime > 0 ? ", expire [" + expireTime + "] milliseconds" : ""), "redis");
 	}
 
-	protected Object redisGet(String key, String field) {
+	/**
+	 * removes the chunks of the manifest in oldBytes, the former value of
+	 * field; nothing when it was no chunked list
+	 */
+	private void redisDelChunks(Jedis jedis, String key, String field, byte[] oldBytes) {
+		if (!RedisCacheEnvelope.isChunked(oldBytes)) {
+			return;
+		}
+		RedisListManifest manifest = RedisListManifest.decode(RedisCacheEnvelope.unwrap(oldBytes).payload);
+		if (manifest != null) {
+			redisDelChunks(jedis, key, field, manifest);
+		}
+	}
+
+	private void redisDelChunks(Jedis jedis, String key, String field, RedisListManifest manifest) {
+		byte[][] chunkFields = new byte[manifest.getChunkCount()][];
+		for (int chunk = 0; chunk < chunkFields.length; chunk++) {
+			chunkFields[chunk] = manifest.getChunkField(field, chunk).getBytes();
+		}
+		Pipeline pipeline = jedis.pipelined();
+		pipeline.hdel(key.getBytes(), chunkFields);
+		if (expireTimeMillis > 0) {
+			pipeline.zrem(getExpiryKey(key).getBytes(), chunkFields);
+		}
+		pipeline.sync();
+	}
+
+	/**
+	 * true when the lease of field was granted, false when another load holds
+	 * it, null when redis is not reachable
+	 */
+	protected Boolean redisAcquireLease(String key, String field, String token, long leaseMillis) {
 		Jedis jedis = null;
 		Boolean error = true;
 		try {
-			jedis = acquireRedisConnection();
+			jedis = acquireRedisConnection(key);
+			String reply = jedis.set(getLeaseKey(key, field), token, "NX", "PX", leaseMillis);
 			error = false;
-			Object value = deserialize(jedis.hget(key.getBytes(), field.getBytes()));
-			if (Debug.verboseOn())
-				Debug.logVerbose("redis get with  key [" + key + "], field [" + field + "],result is [" + value + "]",
-						"redis");
-			return value;
+			return "OK".equals(reply);
+		} catch (JedisConnectionException e) {
+			Debug.logWarning("Unable to take load lease of [" + field + "] in cache [" + getName() + "]: "
+					+ e.getMessage(), module);
+			return null;
 		} finally {
 			if (jedis != null) {
 				returnRedisConnection(jedis, error);
@@ -141,21 +2361,21 @@ public class UtilRedisCache<K, V>
 		}
 	}
 
-	protected Object redisSet(String key, Object value, int seconds) {
+	/**
+	 * deletes the lease of field if it is still the one taken with token
+	 */
+	protected void redisReleaseLease(String key, String field, String token) {
 		Jedis jedis = null;
 		Boolean error = true;
 		try {
-			jedis = acquireRedisConnection();
+			jedis = acquireRedisConnection(key);
+			jedis.eval(RELEASE_LEASE_SCRIPT, Collections.singletonList(getLeaseKey(key, field)),
+					Collections.singletonList(token));
 			error = false;
-			if (seconds > 0) {
-				jedis.setex(key.getBytes(), seconds, serialize(value));
-			} else {
-				jedis.set(key.getBytes(), serialize(value));
-			}
-			if (Debug.verboseOn())
-				Debug.logVerbose("redis set with key [" + key + "], value is [" + value + "]"
-						+ (seconds > 0 ? ", expire [" + seconds + "] seconds" : ""), "redis");
-			return value;
+		} catch (JedisConnectionException e) {
+			// the lease expires by itself
+			Debug.logWarning("Unable to release load lease of [" + field + "] in cache [" + getName() + "]: "
+					+ e.getMessage(), module);
 		} finally {
 			if (jedis != null) {
 				returnRedisConnection(jedis, error);
@@ -163,20 +2383,21 @@ public class UtilRedisCache<K, V>
 		}
 	}
 
-	protected Object redisSet(String key, String field, Object value, int seconds) {
+	/**
+	 * keeps a copy of value in the stale hash, the copy expires after
+	 * staleCopyTime and the hash itself when no copy was written for that long
+	 */
+	protected void redisSetStale(String key, String field, Object value) {
 		Jedis jedis = null;
 		Boolean error = true;
 		try {
-			jedis = acquireRedisConnection();
+			jedis = acquireRedisConnection(key);
+			byte[] staleKey = getStaleKey(key).getBytes();
+			Pipeline pipeline = jedis.pipelined();
+			pipeline.hset(staleKey, field.getBytes(), serialize(value, System.currentTimeMillis() + staleCopyTime));
+			pipeline.pexpire(staleKey, staleCopyTime);
+			pipeline.sync();
 			error = false;
-			jedis.hset(key.getBytes(), field.getBytes(), serialize(value));
-			if (seconds > 0) {
-				// TOODO
-			}
-			if (Debug.verboseOn())
-				Debug.logVerbose("redis set with key [" + key + "], field [" + seconds + "], value is [" + value + "]"
-						+ (seconds > 0 ? ", expire [" + seconds + "] seconds" : ""), "redis");
-			return value;
 		} finally {
 			if (jedis != null) {
 				returnRedisConnection(jedis, error);
@@ -188,7 +2409,7 @@ public class UtilRedisCache<K, V>
 		Jedis jedis = null;
 		Boolean error = true;
 		try {
-			jedis = acquireRedisConnection();
+			jedis = acquireRedisConnection(key);
 			error = false;
 			Object oldValue = deserialize(jedis.get(key.getBytes()));
 			jedis.del(key.getBytes());
@@ -206,10 +2427,28 @@ public class UtilRedisCache<K, V>
 		Jedis jedis = null;
 		Boolean error = true;
 		try {
-			jedis = acquireRedisConnection();
+			jedis = acquireRedisConnection(key);
 			error = false;
-			Object oldValue = deserialize(jedis.hget(key.getBytes(), field.getBytes()));
-			jedis.hdel(key.getBytes(), field.getBytes());
+			long start = System.nanoTime();
+			Pipeline pipeline = jedis.pipelined();
+			if (versionedPut) {
+				// first, so no put read before the remove is written after it
+				pipeline.incr(getGenerationKey(key));
+			}
+			Response<byte[]> oldBytes = pipeline.hget(key.getBytes(), field.getBytes());
+			pipeline.hdel(key.getBytes(), field.getBytes());
+			if (expireTimeMillis > 0) {
+				pipeline.zrem(getExpiryKey(key).getBytes(), field.getBytes());
+			}
+			if (isPublishing()) {
+				invalidator.publish(pipeline, RedisCacheInvalidator.OP_REMOVE, getName(), field);
+			}
+			pipeline.sync();
+			redisDelChunks(jedis, key, field, oldBytes.get());
+			if (statistics != null) {
+				statistics.recordWrite(System.nanoTime() - start);
+			}
+			Object oldValue = RedisCacheEnvelope.isChunked(oldBytes.get()) ? null : deserialize(oldBytes.get());
 			if (Debug.verboseOn())
 				Debug.logVerbose("redis del with key [" + key + "], field [" + field + "]", "redis");
 			return oldValue;
@@ -237,17 +2476,45 @@ public class UtilRedisCache<K, V>
 		}
 	}
 
+	/**
+	 * Clears the hash in O(1): the hash, its expiry index, the condition
+	 * dependencies and the stale copies are renamed to trash keys, which are drained in the
+	 * background by drainTrash.
+	 */
 	protected void redisClearMap(String sessionKey) {
 		Jedis jedis = null;
 		Boolean error = true;
 		try {
-			jedis = acquireRedisConnection();
-			Set<byte[]> keySet = jedis.hkeys(sessionKey.getBytes());
+			jedis = acquireRedisConnection(sessionKey);
+			String trashSuffix = ":trash:" + UUID.randomUUID().toString();
+			String[] sourceKeys = new String[] { sessionKey, getExpiryKey(sessionKey), getDependencyKey(sessionKey),
+					getMemberKey(sessionKey), getStaleKey(sessionKey), getDependencyMemberKey(sessionKey) };
+			List<byte[]> keys = new ArrayList<byte[]>(sourceKeys.length * 2);
+			for (String sourceKey : sourceKeys) {
+				keys.add(sourceKey.getBytes());
+			}
+			for (String sourceKey : sourceKeys) {
+				keys.add((sourceKey + trashSuffix).getBytes());
+			}
+			List<byte[]> args = new ArrayList<byte[]>(1);
+			args.add(Integer.toString(TRASH_EXPIRE_SECONDS).getBytes());
+			if (versionedPut) {
+				// kept by the clear, which must not bring back older generations
+				jedis.incr(getGenerationKey(sessionKey));
+			}
+			Object renamed = jedis.eval(RENAME_TO_TRASH_SCRIPT, keys, args);
+			jedis.set(getDependencyVersionKey(sessionKey), UUID.randomUUID().toString());
+			publishInvalidation(jedis, RedisCacheInvalidator.OP_CLEAR, null);
 			error = false;
 			if (Debug.verboseOn())
-				Debug.logVerbose("redis clear hashtable  with key [" + sessionKey + "]", "redis");
-			for (byte[] kk : keySet) {
-				jedis.del(kk);
+				Debug.logVerbose("redis clear hashtable  with key [" + sessionKey + "], moved to [" + sessionKey
+						+ trashSuffix + "]", "redis");
+			long moved = renamed instanceof Long ? (Long) renamed : 0;
+			for (int i = 0; i < sourceKeys.length; i++) {
+				if ((moved & (1 << i)) != 0) {
+					// the expiry index is the only sorted set
+					UtilRedisCacheFactory.drainTrash(this, sourceKeys[i] + trashSuffix, i == 1);
+				}
 			}
 		} finally {
 			if (jedis != null) {
@@ -255,21 +2522,343 @@ public class UtilRedisCache<K, V>
 			}
 		}
 	}
-	
+
+	/**
+	 * Removes all fields starting with startwith using HSCAN ... MATCH and one
+	 * pipelined HDEL per batch, so no single command touches more than
+	 * scanBatchSize fields.
+	 */
 	protected void redisRemoveMapFields(String sessionKey, String startwith) {
 		Jedis jedis = null;
 		Boolean error = true;
 		try {
-			jedis = acquireRedisConnection();
-			Set<byte[]> keySet = jedis.hkeys(sessionKey.getBytes());
+			jedis = acquireRedisConnection(sessionKey);
+			byte[] binaryKey = sessionKey.getBytes();
+			byte[] binaryExpiryKey = getExpiryKey(sessionKey).getBytes();
+			ScanParams params = new ScanParams().match(escapeGlob(startwith) + "*").count(scanBatchSize);
+			byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
+			int removed = 0;
+			do {
+				ScanResult<Map.Entry<byte[], byte[]>> scan = jedis.hscan(binaryKey, cursor, params);
+				List<Map.Entry<byte[], byte[]>> entries = scan.getResult();
+				if (!entries.isEmpty()) {
+					byte[][] fields = new byte[entries.size()][];
+					for (int i = 0; i < fields.length; i++) {
+						fields[i] = entries.get(i).getKey();
+					}
+					Pipeline pipeline = jedis.pipelined();
+					pipeline.hdel(binaryKey, fields);
+					if (expireTimeMillis > 0) {
+						pipeline.zrem(binaryExpiryKey, fields);
+					}
+					pipeline.sync();
+					removed += fields.length;
+				}
+				cursor = scan.getCursorAsBytes();
+			} while (!isScanFinished(cursor));
+			publishInvalidation(jedis, RedisCacheInvalidator.OP_REMOVE_PREFIX, startwith);
+			error = false;
+			if (Debug.verboseOn())
+				Debug.logVerbose("redis clear hashtable  with key [" + sessionKey + "], start with [" + startwith
+						+ "], removed [" + removed + "]", "redis");
+		} finally {
+			if (jedis != null) {
+				returnRedisConnection(jedis, error);
+			}
+		}
+	}
+
+	/**
+	 * Drops the given condition fingerprints from the dependency hash and from
+	 * the member entries of their rows, then removes their fields with one
+	 * HSCAN ... MATCH per fingerprint. The conditions go first: an entry put
+	 * while the fields are scanned registers its condition again afterwards.
+	 * Returns the version of the dependency hash replaced by newVersion.
+	 */
+	protected String redisRemoveConditions(Jedis jedis, String sessionKey, Set<String> fingerprints,
+			String newVersion) {
+		List<String> keys = Arrays.asList(getDependencyKey(sessionKey), getMemberKey(sessionKey),
+				getDependencyMemberKey(sessionKey), getDependencyVersionKey(sessionKey));
+		List<String> args = new ArrayList<String>(fingerprints.size() + 1);
+		args.add(newVersion);
+		args.addAll(fingerprints);
+		Object previousVersion = jedis.eval(REMOVE_DEPENDENCY_SCRIPT, keys, args);
+		byte[] binaryKey = sessionKey.getBytes();
+		byte[] binaryExpiryKey = getExpiryKey(sessionKey).getBytes();
+		for (String fingerprint : fingerprints) {
+			ScanParams params = new ScanParams().match(escapeGlob(fingerprint + "_") + "*").count(scanBatchSize);
+			byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
+			do {
+				ScanResult<Map.Entry<byte[], byte[]>> scan = jedis.hscan(binaryKey, cursor, params);
+				List<Map.Entry<byte[], byte[]>> entries = scan.getResult();
+				if (!entries.isEmpty()) {
+					byte[][] fields = new byte[entries.size()][];
+					for (int i = 0; i < fields.length; i++) {
+						fields[i] = entries.get(i).getKey();
+					}
+					Pipeline pipeline = jedis.pipelined();
+					pipeline.hdel(binaryKey, fields);
+					if (expireTimeMillis > 0) {
+						pipeline.zrem(binaryExpiryKey, fields);
+					}
+					pipeline.sync();
+				}
+				cursor = scan.getCursorAsBytes();
+			} while (!isScanFinished(cursor));
+		}
+		if (isPublishing()) {
+			Pipeline pipeline = jedis.pipelined();
+			for (String fingerprint : fingerprints) {
+				invalidator.publish(pipeline, RedisCacheInvalidator.OP_REMOVE_PREFIX, getName(), fingerprint + "_");
+			}
+			pipeline.sync();
+		}
+		return previousVersion instanceof byte[] ? new String((byte[]) previousVersion) : (String) previousVersion;
+	}
+
+	/**
+	 * Deletes a key moved aside by redisClearMap in batches of scanBatchSize.
+	 */
+	void drainTrash(String trashKey, boolean sortedSet) {
+		Jedis jedis = null;
+		Boolean error = true;
+		try {
+			jedis = acquireRedisConnection(trashKey);
+			byte[] binaryKey = trashKey.getBytes();
+			if (sortedSet) {
+				while (jedis.zremrangeByRank(binaryKey, 0, scanBatchSize - 1) >= scanBatchSize) {
+					// next batch
+				}
+			} else {
+				ScanParams params = new ScanParams().count(scanBatchSize);
+				byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
+				do {
+					ScanResult<Map.Entry<byte[], byte[]>> scan = jedis.hscan(binaryKey, cursor, params);
+					List<Map.Entry<byte[], byte[]>> entries = scan.getResult();
+					if (!entries.isEmpty()) {
+						byte[][] fields = new byte[entries.size()][];
+						for (int i = 0; i < fields.length; i++) {
+							fields[i] = entries.get(i).getKey();
+						}
+						jedis.hdel(binaryKey, fields);
+					}
+					cursor = scan.getCursorAsBytes();
+				} while (!isScanFinished(cursor));
+			}
+			jedis.del(binaryKey);
 			error = false;
 			if (Debug.verboseOn())
-				Debug.logVerbose("redis clear hashtable  with key [" + sessionKey + "], start with ["+startwith+"]", "redis");
-			for (byte[] kk : keySet) {
-				if(new String(kk).startsWith(startwith)){
-					jedis.del(kk);
-				}			
+				Debug.logVerbose("redis drained [" + trashKey + "]", "redis");
+		} finally {
+			if (jedis != null) {
+				returnRedisConnection(jedis, error);
+			}
+		}
+	}
+
+	private static boolean isScanFinished(byte[] cursor) {
+		return cursor.length == 1 && cursor[0] == '0';
+	}
+
+	/** escapes the glob characters of HSCAN MATCH */
+	protected static String escapeGlob(String value) {
+		StringBuilder sb = new StringBuilder(value.length() + 8);
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '*' || c == '?' || c == '[' || c == ']' || c == '\\') {
+				sb.append('\\');
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * KEYS[1..n] source keys, KEYS[n+1..2n] their trash names; ARGV[1] trash
+	 * ttl in seconds as safety net. Returns a bit mask of the source keys that
+	 * existed and were renamed.
+	 */
+	private static final byte[] RENAME_TO_TRASH_SCRIPT = ("local n = #KEYS / 2 local moved = 0 "
+			+ "for i = 1, n do "
+			+ "if redis.call('EXISTS', KEYS[i]) == 1 then "
+			+ "redis.call('RENAME', KEYS[i], KEYS[n + i]) redis.call('EXPIRE', KEYS[n + i], ARGV[1]) "
+			+ "moved = moved + 2 ^ (i - 1) "
+			+ "end "
+			+ "end "
+			+ "return moved").getBytes();
+
+	private static final int TRASH_EXPIRE_SECONDS = 3600;
+
+	/**
+	 * KEYS[1] filter bitmap, KEYS[2] bitmap being built; ARGV bit positions of
+	 * one key
+	 */
+	private static final String ADD_PK_SCRIPT = "for i = 1, #ARGV do redis.call('SETBIT', KEYS[1], ARGV[i], 1) end "
+			+ "if redis.call('EXISTS', KEYS[2]) == 1 then "
+			+ "for i = 1, #ARGV do redis.call('SETBIT', KEYS[2], ARGV[i], 1) end "
+			+ "end "
+			+ "return #ARGV";
+
+	/**
+	 * KEYS[1] filter bitmap, KEYS[2] bitmap of the keys added during the
+	 * build, KEYS[3] scratch key, KEYS[4] build marker; ARGV[1] bitmap of the
+	 * rows read, ARGV[2] marker. Returns 0 when KEYS[2] expired meanwhile.
+	 */
+	private static final byte[] SWAP_PK_FILTER_SCRIPT = ("if redis.call('EXISTS', KEYS[2]) == 0 then return 0 end "
+			+ "redis.call('SET', KEYS[3], ARGV[1]) "
+			+ "redis.call('BITOP', 'OR', KEYS[2], KEYS[2], KEYS[3]) "
+			+ "redis.call('DEL', KEYS[3]) "
+			+ "redis.call('PERSIST', KEYS[2]) "
+			+ "redis.call('RENAME', KEYS[2], KEYS[1]) "
+			+ "redis.call('SET', KEYS[4], ARGV[2]) "
+			+ "return 1").getBytes();
+
+	/**
+	 * KEYS[1] hash, KEYS[2] expiry index, KEYS[3] generation; ARGV field,
+	 * value, generation (-1 for any), expireAt (0 for none) per put. Writes
+	 * the puts whose generation is -1 or the current one, returns 1 for each
+	 * put written and 0 for each put dropped.
+	 */
+	private static final byte[] PUT_IF_GENERATION_SCRIPT = ("local current = redis.call('GET', KEYS[3]) or '0' "
+			+ "local written = {} "
+			+ "for i = 1, #ARGV, 4 do "
+			+ "if ARGV[i + 2] == '-1' or ARGV[i + 2] == current then "
+			+ "redis.call('HSET', KEYS[1], ARGV[i], ARGV[i + 1]) "
+			+ "if ARGV[i + 3] ~= '0' then redis.call('ZADD', KEYS[2], ARGV[i + 3], ARGV[i]) end "
+			+ "written[#written + 1] = 1 "
+			+ "else written[#written + 1] = 0 end "
+			+ "end "
+			+ "return written").getBytes();
+
+	/** KEYS[1] lease; ARGV[1] token of the holder */
+	private static final String RELEASE_LEASE_SCRIPT = "if redis.call('GET', KEYS[1]) == ARGV[1] then "
+			+ "return redis.call('DEL', KEYS[1]) end return 0";
+
+	/**
+	 * register(k, a) with KEYS[k + 1] dependency hash (fingerprint ->
+	 * condition), KEYS[k + 2] member hash (row key -> concatenated
+	 * fingerprints), KEYS[k + 3] members of each condition, KEYS[k + 4]
+	 * version; ARGV[a + 1] fingerprint, ARGV[a + 2] condition, ARGV[a + 3]
+	 * version set when the condition is new, ARGV[a + 4..] row keys.
+	 */
+	private static final String REGISTER_DEPENDENCY_FUNCTION = "local function register(k, a) "
+			+ "local fingerprint = ARGV[a + 1] "
+			+ "if redis.call('HSETNX', KEYS[k + 1], fingerprint, ARGV[a + 2]) == 1 then "
+			+ "redis.call('SET', KEYS[k + 4], ARGV[a + 3]) "
+			+ "end "
+			+ "local length = string.len(fingerprint) "
+			+ "local added = {} "
+			+ "for i = a + 4, #ARGV do "
+			+ "local v = redis.call('HGET', KEYS[k + 2], ARGV[i]) or '' "
+			+ "local found = false "
+			+ "for p = 1, string.len(v), length do "
+			+ "if string.sub(v, p, p + length - 1) == fingerprint then found = true break end "
+			+ "end "
+			+ "if not found then redis.call('HSET', KEYS[k + 2], ARGV[i], v .. fingerprint) added[#added + 1] = ARGV[i] end "
+			+ "end "
+			+ "if #added > 0 then "
+			+ "local joined = table.concat(added, '\\0') "
+			+ "local m = redis.call('HGET', KEYS[k + 3], fingerprint) "
+			+ "if m then joined = m .. '\\0' .. joined end "
+			+ "redis.call('HSET', KEYS[k + 3], fingerprint, joined) "
+			+ "end "
+			+ "end ";
+
+	/** KEYS and ARGV of REGISTER_DEPENDENCY_FUNCTION with k = a = 0 */
+	private static final byte[] PUT_DEPENDENCY_SCRIPT = (REGISTER_DEPENDENCY_FUNCTION
+			+ "register(0, 0) "
+			+ "return #ARGV - 3").getBytes();
+
+	/**
+	 * KEYS[1] hash, KEYS[2] expiry index, KEYS[3] generation, KEYS[4..7] as
+	 * PUT_DEPENDENCY_SCRIPT; ARGV[1..4] field, value, generation (-1 for
+	 * any), expireAt (0 for none) as for PUT_IF_GENERATION_SCRIPT, ARGV[5..]
+	 * as PUT_DEPENDENCY_SCRIPT. Writes the field and records its condition,
+	 * returns 1, or 0 when the generation changed and nothing was written.
+	 */
+	private static final byte[] PUT_WITH_DEPENDENCY_SCRIPT = (REGISTER_DEPENDENCY_FUNCTION
+			+ "if ARGV[3] ~= '-1' and ARGV[3] ~= (redis.call('GET', KEYS[3]) or '0') then return 0 end "
+			+ "redis.call('HSET', KEYS[1], ARGV[1], ARGV[2]) "
+			+ "if ARGV[4] ~= '0' then redis.call('ZADD', KEYS[2], ARGV[4], ARGV[1]) end "
+			+ "register(3, 4) "
+			+ "return 1").getBytes();
+
+	/**
+	 * KEYS[1] dependency hash, KEYS[2] member hash, KEYS[3] members of each
+	 * condition, KEYS[4] version; ARGV[1] new version, ARGV[2..] fingerprints.
+	 * Removes the fingerprints from the member entries of their rows and
+	 * returns the version it replaced.
+	 */
+	private static final String REMOVE_DEPENDENCY_SCRIPT = "for i = 2, #ARGV do "
+			+ "local fingerprint = ARGV[i] "
+			+ "local length = string.len(fingerprint) "
+			+ "local m = redis.call('HGET', KEYS[3], fingerprint) "
+			+ "if m then "
+			+ "for member in string.gmatch(m, '[^%z]+') do "
+			+ "local v = redis.call('HGET', KEYS[2], member) "
+			+ "if v then "
+			+ "local kept = {} "
+			+ "for p = 1, string.len(v), length do "
+			+ "local f = string.sub(v, p, p + length - 1) "
+			+ "if f ~= fingerprint then kept[#kept + 1] = f end "
+			+ "end "
+			+ "if #kept == 0 then redis.call('HDEL', KEYS[2], member) "
+			+ "else redis.call('HSET', KEYS[2], member, table.concat(kept)) end "
+			+ "end "
+			+ "end "
+			+ "redis.call('HDEL', KEYS[3], fingerprint) "
+			+ "end "
+			+ "redis.call('HDEL', KEYS[1], fingerprint) "
+			+ "end "
+			+ "local previous = redis.call('GET', KEYS[4]) "
+			+ "redis.call('SET', KEYS[4], ARGV[1]) "
+			+ "return previous";
+
+	/**
+	 * Removes up to batchSize expired fields of this cache from redis,
+	 * returns the number of fields removed. The registered conditions of the
+	 * fields removed are dropped from the dependencies with their remaining
+	 * entries, see redisRemoveConditions.
+	 */
+	public int reapExpired(int batchSize) {
+		if (expireTimeMillis <= 0) {
+			return 0;
+		}
+		String key = getSessionKey();
+		Jedis jedis = null;
+		Boolean error = true;
+		try {
+			jedis = acquireRedisConnection(key);
+			List<byte[]> keys = new ArrayList<byte[]>(3);
+			keys.add(key.getBytes());
+			keys.add(getExpiryKey(key).getBytes());
+			keys.add(getDependencyKey(key).getBytes());
+			List<byte[]> args = new ArrayList<byte[]>(3);
+			args.add(Long.toString(System.currentTimeMillis()).getBytes());
+			args.add(Integer.toString(batchSize).getBytes());
+			args.add(Integer.toString(EntityConditionFingerprint.LENGTH).getBytes());
+			Object reply = jedis.eval(REAP_EXPIRED_SCRIPT, keys, args);
+			List<?> replies = reply instanceof List ? (List<?>) reply : Collections.emptyList();
+			int count = !replies.isEmpty() && replies.get(0) instanceof Long ? ((Long) replies.get(0)).intValue() : 0;
+			Set<String> fingerprints = new HashSet<String>();
+			for (int i = 1; i < replies.size(); i++) {
+				Object fingerprint = replies.get(i);
+				fingerprints.add(fingerprint instanceof byte[] ? new String((byte[]) fingerprint)
+						: String.valueOf(fingerprint));
 			}
+			if (!fingerprints.isEmpty()) {
+				cancelPendingConditionWrites(fingerprints);
+				redisRemoveConditions(jedis, key, fingerprints, UUID.randomUUID().toString());
+				if (nearCache != null) {
+					for (String fingerprint : fingerprints) {
+						nearCache.removeStartsWith(fingerprint + "_");
+					}
+				}
+			}
+			error = false;
+			if (Debug.verboseOn() && count > 0)
+				Debug.logVerbose("redis reaped [" + count + "] expired fields of key [" + key + "]", "redis");
+			return count;
 		} finally {
 			if (jedis != null) {
 				returnRedisConnection(jedis, error);
@@ -277,25 +2866,141 @@ public class UtilRedisCache<K, V>
 		}
 	}
 
+	/**
+	 * KEYS[1] hash, KEYS[2] expiry index, KEYS[3] dependency hash; ARGV[1]
+	 * now, ARGV[2] batch size, ARGV[3] fingerprint length. Runs atomically, a
+	 * field put again after it expired has a new score and is not picked up.
+	 * The fields are removed in slices of 1000, unpack fails past the Lua
+	 * stack limit (about 8000 values). Returns the number of fields removed
+	 * followed by the registered fingerprints of their conditions.
+	 */
+	private static final byte[] REAP_EXPIRED_SCRIPT = ("local fields = redis.call('ZRANGEBYSCORE', KEYS[2], '-inf', ARGV[1], 'LIMIT', 0, ARGV[2]) "
+			+ "for i = 1, #fields, 1000 do "
+			+ "local last = math.min(i + 999, #fields) "
+			+ "redis.call('HDEL', KEYS[1], unpack(fields, i, last)) "
+			+ "redis.call('ZREM', KEYS[2], unpack(fields, i, last)) "
+			+ "end "
+			+ "local length = tonumber(ARGV[3]) "
+			+ "local result = { #fields } "
+			+ "local seen = {} "
+			+ "for i = 1, #fields do "
+			+ "local f = fields[i] "
+			+ "if string.sub(f, length + 1, length + 1) == '_' then "
+			+ "local fingerprint = string.sub(f, 1, length) "
+			+ "if not seen[fingerprint] then "
+			+ "seen[fingerprint] = true "
+			+ "if redis.call('HEXISTS', KEYS[3], fingerprint) == 1 then result[#result + 1] = fingerprint end "
+			+ "end "
+			+ "end "
+			+ "end "
+			+ "return result").getBytes();
+
 	////////////////////////////////////////////////////////////////////
 
+	/**
+	 * sorted set of field -> expire time (millis) for the hash stored at key
+	 */
+	protected String getExpiryKey(String key) {
+		return key + ":expiry";
+	}
+
+	/**
+	 * hash of condition fingerprint -> serialized condition of the condition
+	 * entries stored at key
+	 */
+	protected String getDependencyKey(String key) {
+		return key + ":deps";
+	}
+
+	/**
+	 * hash of row key -> fingerprints of the conditions whose entries hold the
+	 * row
+	 */
+	protected String getMemberKey(String key) {
+		return key + ":members";
+	}
+
+	/**
+	 * hash of condition fingerprint -> NUL separated row keys it was added to
+	 * in the member hash, to prune them when the condition is removed
+	 */
+	protected String getDependencyMemberKey(String key) {
+		return key + ":depmembers";
+	}
+
+	/**
+	 * token replaced whenever a condition is added to or removed from the
+	 * dependency hash, or the hash is cleared
+	 */
+	protected String getDependencyVersionKey(String key) {
+		return key + ":depsver";
+	}
+
+	/**
+	 * hash of field -> copy of the last value loaded by getOrLoad, kept after
+	 * the field is invalidated
+	 */
+	protected String getStaleKey(String key) {
+		return key + ":stale";
+	}
+
+	/**
+	 * bitmap of the bloom filter of primary keys, with :built (marker of the
+	 * build), :next (build running) and :lease
+	 */
+	protected String getPkFilterKey(String key) {
+		return key + ":pkfilter";
+	}
+
+	/**
+	 * counter of the invalidations of the hash stored at key, see
+	 * versionedPut; not removed by clear
+	 */
+	protected String getGenerationKey(String key) {
+		return key + ":gen";
+	}
+
+	/**
+	 * lock of the running load of field, see getOrLoad
+	 */
+	protected String getLeaseKey(String key, String field) {
+		return key + ":lease:" + field;
+	}
+
 	protected String getRedisFieldKey(Object key) {
-		StringBuffer sb = new StringBuffer();
 		if (key instanceof GenericPK) { // PK
-			sb.append(((GenericPK) key).getPkShortValueString());
+			return ((GenericPK) key).getPkShortValueString();
 		} else if (key instanceof EntityCondition) { // conditionKey
-			sb.append(((EntityCondition) key).toString()); // where
-		} else {
-			sb.append(key);
+			return EntityConditionFingerprint.fingerprint((EntityCondition) key); // where
+		} else if (key instanceof List) { // orderBy
+			return join((List<?>) key);
 		}
-		return sb.toString();
+		return String.valueOf(key);
 	}
 
+	/**
+	 * conditionFingerprint_key, or conditionFingerprint_ as prefix of all keys
+	 * of the condition when key is null.
+	 */
 	protected String getRedisFieldKey(Object conditionKey, Object key) {
-		StringBuffer sb = new StringBuffer();
-		sb.append(conditionKey);
-		if(key!=null){
-			sb.append("_").append(key);
+		String conditionField = conditionKey == null || conditionKey instanceof EntityCondition
+				? EntityConditionFingerprint.fingerprint((EntityCondition) conditionKey)
+				: getRedisFieldKey(conditionKey);
+		if (key == null) {
+			return conditionField + "_";
+		}
+		String keyField = getRedisFieldKey(key);
+		StringBuilder sb = new StringBuilder(conditionField.length() + 1 + keyField.length());
+		return sb.append(conditionField).append('_').append(keyField).toString();
+	}
+
+	private static String join(List<?> values) {
+		StringBuilder sb = new StringBuilder();
+		for (Object value : values) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(value);
 		}
 		return sb.toString();
 	}
@@ -309,22 +3014,97 @@ public class UtilRedisCache<K, V>
 		if (res != null) {
 			String value = UtilRedisCacheFactory.getPropertyParam(res, propNames, "expireTime");
 			if (UtilValidate.isNotEmpty(value)) {
-				this.expireTimeNanos = TimeUnit.NANOSECONDS.convert(Long.parseLong(value), TimeUnit.MILLISECONDS);
+				this.expireTimeMillis = Long.parseLong(value);
+			}
+			value = UtilRedisCacheFactory.getPropertyParam(res, propNames, "softExpireTime");
+			if (UtilValidate.isNotEmpty(value)) {
+				this.softExpireTimeMillis = Long.parseLong(value);
+				if (expireTimeMillis > 0 && softExpireTimeMillis >= expireTimeMillis) {
+					Debug.logWarning("softExpireTime of cache [" + getName() + "] is not below its expireTime, ignored",
+							module);
+					this.softExpireTimeMillis = 0;
+				}
+			}
+			this.compressThreshold = UtilRedisCacheFactory.getPropertyParam(res, propNames, "compressThreshold",
+					UtilRedisCacheFactory.getPropertyParam(res, new String[] { "entitycache" }, "redis-compressThreshold",
+							DEFAULT_COMPRESS_THRESHOLD));
+			this.pkFilterExpectedKeys = UtilRedisCacheFactory.getPropertyParam(res, propNames, "pkFilterExpectedKeys", 0);
+			this.versionedPut = UtilRedisCacheFactory.isVersionedPutConfigured(propNames);
+			this.listChunkSize = UtilRedisCacheFactory.getPropertyParam(res, propNames, "listChunkSize",
+					UtilRedisCacheFactory.getPropertyParam(res, new String[] { "entitycache" }, "redis-listChunkSize",
+							DEFAULT_LIST_CHUNK_SIZE));
+			int nearCacheMaxSize = UtilRedisCacheFactory.getPropertyParam(res, propNames, "nearCacheMaxSize", 0);
+			if (nearCacheMaxSize > 0) {
+				long nearCacheExpireTime = UtilRedisCacheFactory.getPropertyParam(res, propNames, "nearCacheExpireTime", 0);
+				if (expireTimeMillis > 0 && (nearCacheExpireTime <= 0 || nearCacheExpireTime > expireTimeMillis)) {
+					// a local copy must not outlive the redis entry
+					nearCacheExpireTime = expireTimeMillis;
+				}
+				if (softExpireTimeMillis > 0
+						&& (nearCacheExpireTime <= 0 || nearCacheExpireTime > softExpireTimeMillis)) {
+					// nor be served past the point a refresh is due
+					nearCacheExpireTime = softExpireTimeMillis;
+				}
+				this.nearCache = new RedisNearCache<V>(nearCacheMaxSize, nearCacheExpireTime);
 			}
 		}
 	}
 
 	///////////////////////////////////////////////////////////////////////////////////////////
-	protected static byte[] serialize(Object object) {
+	protected byte[] serialize(Object object) {
+		return serialize(object, 0);
+	}
+
+	protected byte[] serialize(Object object, long expireAt) {
+		return serialize(object, expireAt, 0);
+	}
+
+	protected byte[] serialize(Object object, long expireAt, long softExpireAt) {
 		if (object == null)
 			return null;
-		return UtilObject.getBytes(object);
+		if (statistics == null) {
+			return RedisCacheEnvelope.wrap(codec.encode(object), expireAt, softExpireAt, compressThreshold);
+		}
+		long start = System.nanoTime();
+		byte[] bytes = RedisCacheEnvelope.wrap(codec.encode(object), expireAt, softExpireAt, compressThreshold);
+		statistics.recordSerialize(System.nanoTime() - start, bytes.length);
+		return bytes;
 	}
 
-	protected static Object deserialize(byte[] bytes) {
+	/**
+	 * decodes a stored value, null when it is past its expireTime or, as
+	 * there is no refresher here, its softExpireTime; the RedisListManifest
+	 * for a chunked list
+	 */
+	protected Object deserialize(byte[] bytes) {
 		if (bytes == null)
 			return null;
-		return UtilObject.getObject(bytes);
+		RedisCacheEnvelope envelope = RedisCacheEnvelope.unwrap(bytes);
+		long now = System.currentTimeMillis();
+		if (envelope.isExpired(now) || envelope.isSoftExpired(now)) {
+			return null;
+		}
+		if (envelope.chunked) {
+			return RedisListManifest.decode(envelope.payload);
+		}
+		return decode(envelope.payload, bytes.length);
+	}
+
+	/**
+	 * codec.decode, timed when statistics are enabled; size is the stored
+	 * size counted as bytes read
+	 */
+	private Object decode(byte[] payload, int size) {
+		if (payload == null) {
+			return null;
+		}
+		if (statistics == null) {
+			return codec.decode(payload);
+		}
+		long start = System.nanoTime();
+		Object value = codec.decode(payload);
+		statistics.recordDeserialize(System.nanoTime() - start, size);
+		return value;
 	}
 
 }
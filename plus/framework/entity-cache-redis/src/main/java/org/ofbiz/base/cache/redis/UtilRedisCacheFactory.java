@@ -1,11 +1,23 @@
 package org.ofbiz.base.cache.redis;
 
+import java.lang.management.ManagementFactory;
+import java.util.List;
 import java.util.Map;
 import java.util.MissingResourceException;
 import java.util.ResourceBundle;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.ofbiz.base.util.Debug;
 import org.ofbiz.base.util.UtilObject;
 
@@ -24,6 +36,59 @@ public class UtilRedisCacheFactory {
 
 	private static RedisManager redisManager = null;
 
+	private static RedisCacheInvalidator invalidator = null;
+
+	private static RedisCacheCodec codec = null;
+
+	private static RedisTransport transport = null;
+
+	private static RedisWriteBehind writeBehind = null;
+
+	private static RedisHotKeyRecorder hotKeyRecorder = null;
+
+	/** runs the expiry reaper and the drain of cleared caches */
+	private static ScheduledExecutorService backgroundExecutor = null;
+
+	/** runs the background refreshes of values past their softExpireTime */
+	private static ThreadPoolExecutor refreshExecutor = null;
+
+	private static int refreshThreads = 2;
+
+	/** refreshes waiting for a thread, further ones are dropped */
+	private static final int REFRESH_QUEUE_SIZE = 1000;
+
+	private static boolean expiryReaperStarted = false;
+
+	private static int expiryReaperInterval = 60000;
+
+	private static int expiryReaperBatchSize = 500;
+
+	private static int scanBatchSize = 500;
+
+	private static int loadLeaseTime = 5000;
+
+	private static int staleCopyTime = 600000;
+
+	private static boolean statisticsEnabled = true;
+
+	private static int topKSize = 100;
+
+	private static double topKSampleRate = 0.01;
+
+	private static double pkFilterFalsePositiveRate = 0.01;
+
+	/** age in milliseconds after which a primary key filter is built again, 0 never */
+	private static int pkFilterRebuildInterval = 86400000;
+
+	/** pause in milliseconds between the checks of a node for a new build of its filters */
+	private static int pkFilterSyncInterval = 60000;
+
+	/** domain of the RedisCacheStatisticsMBean of each cache */
+	public static final String JMX_DOMAIN = "org.ofbiz.entitycache.redis";
+
+	/** upper bound of batches removed per cache in one reaper run */
+	private static final int EXPIRY_REAPER_MAX_BATCHES = 100;
+
 	private UtilRedisCacheFactory() {
 	}
 
@@ -64,9 +129,274 @@ public class UtilRedisCacheFactory {
 				if (sentinelMaster != null && !"".equals(sentinelMaster.trim())) {
 					redisManager.setSentinelMaster(sentinelMaster);
 				}
+				String clusterNodes = getPropertyParam(res, propNames, "redis-clusterNodes", null);
+				if (clusterNodes != null && !"".equals(clusterNodes.trim())) {
+					redisManager.setClusterNodes(clusterNodes);
+				}
+				redisManager.setReadPolicy(getPropertyParam(res, propNames, "redis-readPolicy", null));
+				redisManager.setReadMaxLag(getPropertyParam(res, propNames, "redis-readMaxLag", redisManager.getReadMaxLag()));
 			}
 			redisManager.initializeDatabaseConnection();
+			if (redisManager.isReadFromReplica()) {
+				int replicaRefreshInterval = Math.max(1000,
+						getPropertyParam(res, propNames, "redis-replicaRefreshInterval", 5000));
+				getBackgroundExecutor().scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							redisManager.refreshReplicas();
+							if (transport instanceof RedisAsyncTransport) {
+								((RedisAsyncTransport) transport).closeRemovedNodes();
+							}
+						} catch (Exception e) {
+							Debug.logWarning(e, "Error refreshing redis read replicas", "redis");
+						}
+					}
+				}, replicaRefreshInterval, replicaRefreshInterval, TimeUnit.MILLISECONDS);
+			}
+			String invalidationChannel = res != null
+					? getPropertyParam(res, propNames, "redis-invalidationChannel", null) : null;
+			invalidator = new RedisCacheInvalidator(redisManager, invalidationChannel);
+			String codecClass = res != null ? getPropertyParam(res, propNames, "redis-codec", null) : null;
+			codec = createCodec(codecClass);
+			String transportType = res != null ? getPropertyParam(res, propNames, "redis-transport", null) : null;
+			transport = createTransport(transportType);
+			double hotKeySampleRate = 0;
+			try {
+				hotKeySampleRate = res != null
+						? Double.parseDouble(getPropertyParam(res, propNames, "redis-hotKeySampleRate", "0")) : 0;
+			} catch (NumberFormatException e) {
+				Debug.logWarning("Invalid entitycache.redis-hotKeySampleRate, hot keys are not recorded", "redis");
+			}
+			if (hotKeySampleRate > 0) {
+				hotKeyRecorder = new RedisHotKeyRecorder(redisManager, hotKeySampleRate,
+						Math.max(1, getPropertyParam(res, propNames, "redis-hotKeyMax", 10000)));
+				int hotKeyFlushInterval = Math.max(1000, getPropertyParam(res, propNames, "redis-hotKeyFlushInterval", 60000));
+				getBackgroundExecutor().scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							hotKeyRecorder.flush();
+						} catch (Exception e) {
+							Debug.logWarning(e, "Error recording entity cache hot keys", "redis");
+						}
+					}
+				}, hotKeyFlushInterval, hotKeyFlushInterval, TimeUnit.MILLISECONDS);
+			}
+			if (res != null && "true".equalsIgnoreCase(getPropertyParam(res, propNames, "redis-writeBehind", "false"))) {
+				writeBehind = new RedisWriteBehind(
+						Math.max(1, getPropertyParam(res, propNames, "redis-writeBehindQueueSize", 10000)),
+						getPropertyParam(res, propNames, "redis-writeBehindOverflow", "block"), redisManager.getTimeout());
+				writeBehind.start();
+			}
+			if (res != null) {
+				expiryReaperInterval = getPropertyParam(res, propNames, "redis-expiryReaperInterval", expiryReaperInterval);
+				expiryReaperBatchSize = getPropertyParam(res, propNames, "redis-expiryReaperBatchSize", expiryReaperBatchSize);
+				scanBatchSize = Math.max(1, getPropertyParam(res, propNames, "redis-scanBatchSize", scanBatchSize));
+				loadLeaseTime = getPropertyParam(res, propNames, "redis-loadLeaseTime", loadLeaseTime);
+				staleCopyTime = getPropertyParam(res, propNames, "redis-staleCopyTime", staleCopyTime);
+				refreshThreads = Math.max(1, getPropertyParam(res, propNames, "redis-refreshThreads", refreshThreads));
+				statisticsEnabled = !"false".equalsIgnoreCase(getPropertyParam(res, propNames, "redis-statistics", "true"));
+				topKSize = Math.max(0, getPropertyParam(res, propNames, "redis-topKSize", topKSize));
+				try {
+					topKSampleRate = Double.parseDouble(getPropertyParam(res, propNames, "redis-topKSampleRate",
+							String.valueOf(topKSampleRate)));
+				} catch (NumberFormatException e) {
+					Debug.logWarning("Invalid entitycache.redis-topKSampleRate, using " + topKSampleRate, "redis");
+				}
+				try {
+					pkFilterFalsePositiveRate = Double.parseDouble(getPropertyParam(res, propNames,
+							"redis-pkFilterFalsePositiveRate", String.valueOf(pkFilterFalsePositiveRate)));
+				} catch (NumberFormatException e) {
+					Debug.logWarning("Invalid entitycache.redis-pkFilterFalsePositiveRate, using "
+							+ pkFilterFalsePositiveRate, "redis");
+				}
+				if (pkFilterFalsePositiveRate <= 0 || pkFilterFalsePositiveRate >= 1) {
+					Debug.logWarning("entitycache.redis-pkFilterFalsePositiveRate must be between 0 and 1, using 0.01",
+							"redis");
+					pkFilterFalsePositiveRate = 0.01;
+				}
+				pkFilterRebuildInterval = getPropertyParam(res, propNames, "redis-pkFilterRebuildInterval",
+						pkFilterRebuildInterval);
+				pkFilterSyncInterval = Math.max(1000,
+						getPropertyParam(res, propNames, "redis-pkFilterSyncInterval", pkFilterSyncInterval));
+				EntityConditionFingerprint.setMemoMaxSize(getPropertyParam(res, propNames, "redis-conditionKeyCacheSize", 10000));
+			}
+		}
+	}
+
+	/**
+	 * Start the background thread removing expired entries of caches with an
+	 * expireTime, a no-op when already running.
+	 */
+	private synchronized static void startExpiryReaper() {
+		if (expiryReaperStarted || expiryReaperInterval <= 0) {
+			return;
+		}
+		expiryReaperStarted = true;
+		getBackgroundExecutor().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				reapExpired();
+			}
+		}, expiryReaperInterval, expiryReaperInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Loads the primary key filter of cache now and checks for new builds
+	 * every pkFilterSyncInterval.
+	 */
+	private static void startPkFilterSync(final UtilRedisCache<?, ?> cache) {
+		getBackgroundExecutor().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					cache.syncPkFilter();
+				} catch (Exception e) {
+					Debug.logWarning(e, "Error reading the primary key filter of cache [" + cache.getName() + "]",
+							"redis");
+				}
+			}
+		}, 0, pkFilterSyncInterval, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized static ScheduledExecutorService getBackgroundExecutor() {
+		if (backgroundExecutor == null) {
+			backgroundExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "entitycache-redis-background");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return backgroundExecutor;
+	}
+
+	private synchronized static ThreadPoolExecutor getRefreshExecutor() {
+		if (refreshExecutor == null) {
+			final AtomicInteger threadCount = new AtomicInteger();
+			refreshExecutor = new ThreadPoolExecutor(refreshThreads, refreshThreads, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(REFRESH_QUEUE_SIZE), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "entitycache-redis-refresh-" + threadCount.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			refreshExecutor.allowCoreThreadTimeOut(true);
+		}
+		return refreshExecutor;
+	}
+
+	/**
+	 * Run a refresh of a stale value in the background, returns false when
+	 * too many refreshes are waiting already.
+	 */
+	static boolean refresh(Runnable refresh) {
+		try {
+			getRefreshExecutor().execute(refresh);
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Delete a key renamed aside by UtilRedisCache.clear() in the background,
+	 * batch by batch so redis is never blocked by one large DEL.
+	 */
+	static void drainTrash(final UtilRedisCache<?, ?> cache, final String trashKey, final boolean sortedSet) {
+		getBackgroundExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					cache.drainTrash(trashKey, sortedSet);
+				} catch (Exception e) {
+					// the trash key has an expire set, redis removes it eventually
+					Debug.logWarning(e, "Error draining [" + trashKey + "] of cache [" + cache.getName() + "]", "redis");
+				}
+			}
+		});
+	}
+
+	/**
+	 * Remove the fields of UtilRedisCache.clear(conditionKey) in the
+	 * background, one HSCAN batch at a time.
+	 */
+	static void removeFields(final UtilRedisCache<?, ?> cache, final String prefix) {
+		getBackgroundExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					cache.removeFields(prefix);
+				} catch (Exception e) {
+					Debug.logWarning(e, "Error removing [" + prefix + "*] of cache [" + cache.getName() + "]", "redis");
+				}
+			}
+		});
+	}
+
+	private static void reapExpired() {
+		for (UtilRedisCache<?, ?> cache : utilCacheTable.values()) {
+			if (cache.getExpireTime() <= 0) {
+				continue;
+			}
+			try {
+				int batches = 0;
+				while (cache.reapExpired(expiryReaperBatchSize) >= expiryReaperBatchSize
+						&& ++batches < EXPIRY_REAPER_MAX_BATCHES) {
+					// keep going while full batches come back
+				}
+			} catch (Exception e) {
+				Debug.logWarning(e, "Error removing expired entries of cache [" + cache.getName() + "]", "redis");
+			}
+		}
+	}
+
+	private static RedisTransport createTransport(String transportType) {
+		if ("async".equalsIgnoreCase(transportType)) {
+			return new RedisAsyncTransport(redisManager);
+		}
+		if (transportType != null && !"".equals(transportType.trim()) && !"pool".equalsIgnoreCase(transportType)) {
+			Debug.logWarning("Unknown entity cache transport [" + transportType + "], using pool", "redis");
+		}
+		return new JedisPoolTransport(redisManager);
+	}
+
+	private static RedisTransport getTransport() {
+		if (transport == null) {
+			initRedis();
+		}
+		return transport;
+	}
+
+	private static RedisCacheCodec createCodec(String codecClass) {
+		if (codecClass != null && !"".equals(codecClass.trim())) {
+			try {
+				return (RedisCacheCodec) Class.forName(codecClass.trim()).newInstance();
+			} catch (Exception e) {
+				Debug.logError(e, "Unable to load entity cache codec [" + codecClass + "], using "
+						+ GenericValueCodec.class.getName(), "redis");
+			}
+		}
+		return new GenericValueCodec();
+	}
+
+	private static RedisCacheCodec getCodec() {
+		if (codec == null) {
+			initRedis();
+		}
+		return codec;
+	}
+
+	private static RedisCacheInvalidator getInvalidator() {
+		if (invalidator == null) {
+			initRedis();
 		}
+		return invalidator;
 	}
 
 	@SuppressWarnings("unchecked")
@@ -76,10 +406,56 @@ public class UtilRedisCacheFactory {
 			return existingCache;
 		UtilRedisCache<K, V> newCache = new UtilRedisCache<K, V>(name + getNextDefaultIndex(name), propNames);
 		newCache.setRedisManager(getRedisManager());
-		utilCacheTable.putIfAbsent(name, newCache);
+		newCache.setCodec(getCodec());
+		newCache.setTransport(getTransport());
+		newCache.setWriteBehind(writeBehind);
+		newCache.setHotKeyRecorder(hotKeyRecorder);
+		newCache.setScanBatchSize(scanBatchSize);
+		newCache.setLoadLeaseTime(loadLeaseTime);
+		newCache.setStaleCopyTime(staleCopyTime);
+		if (newCache.getExpireTime() > 0) {
+			startExpiryReaper();
+		}
+		if (newCache.getPkFilterExpectedKeys() > 0) {
+			newCache.setPkFilter(RedisBloomFilter.create(newCache.getPkFilterExpectedKeys(), pkFilterFalsePositiveRate),
+					pkFilterRebuildInterval);
+		}
+		if (newCache.isNearCacheEnabled() || newCache.isPkFilterEnabled() || writeBehind != null) {
+			RedisCacheInvalidator cacheInvalidator = getInvalidator();
+			newCache.setInvalidator(cacheInvalidator);
+			cacheInvalidator.start();
+		}
+		if (statisticsEnabled) {
+			newCache.setStatistics(new RedisCacheStatistics(newCache, topKSize, topKSampleRate));
+		}
+		if (utilCacheTable.putIfAbsent(name, newCache) == null) {
+			if (newCache.getStatistics() != null) {
+				registerStatistics(newCache);
+			}
+			if (newCache.isPkFilterEnabled()) {
+				startPkFilterSync(newCache);
+			}
+		}
 		return (UtilRedisCache<K, V>) utilCacheTable.get(name);
 	}
 
+	/**
+	 * Expose the statistics of cache as
+	 * org.ofbiz.entitycache.redis:type=UtilRedisCache,name=(cache name).
+	 */
+	private static void registerStatistics(UtilRedisCache<?, ?> cache) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=UtilRedisCache,name="
+					+ ObjectName.quote(cache.getName()));
+			if (!server.isRegistered(objectName)) {
+				server.registerMBean(cache.getStatistics(), objectName);
+			}
+		} catch (Exception e) {
+			Debug.logWarning(e, "Unable to register the JMX statistics of cache [" + cache.getName() + "]", "redis");
+		}
+	}
+
 	@SuppressWarnings("unchecked")
 	public static <K, V> UtilRedisCache<K, V> findCache(String name) {
 		// UtilCache
@@ -105,6 +481,44 @@ public class UtilRedisCacheFactory {
 
 	}
 
+	/**
+	 * true when a cache named with one of propNames keeps a primary key
+	 * filter, whether or not it exists on this node yet
+	 */
+	public static boolean isPkFilterConfigured(String... propNames) {
+		ResourceBundle res = getCacheResource();
+		return res != null && getPropertyParam(res, propNames, "pkFilterExpectedKeys", 0) > 0;
+	}
+
+	/**
+	 * true when a cache named with one of propNames only writes puts not
+	 * outdated by an invalidation (versionedPut or entitycache.redis-versionedPut)
+	 */
+	public static boolean isVersionedPutConfigured(String... propNames) {
+		ResourceBundle res = getCacheResource();
+		return res != null && "true".equals(getPropertyParam(res, propNames, "versionedPut",
+				getPropertyParam(res, new String[] { "entitycache" }, "redis-versionedPut", "false")));
+	}
+
+	/**
+	 * The max most read cache entries recorded by all nodes, as cache name ->
+	 * fields, see RedisHotKeyRecorder.
+	 */
+	public static Map<String, List<String>> getHotKeys(int max) {
+		return RedisHotKeyRecorder.getHotKeys(getRedisManager(), max);
+	}
+
+	/**
+	 * Drop every near cache entry of this node and stop answering from the
+	 * primary key filters until they are read again, used when invalidation
+	 * messages may have been missed.
+	 */
+	public static void clearNearCaches() {
+		for (UtilRedisCache<?, ?> cache : utilCacheTable.values()) {
+			cache.clearNearCache();
+		}
+	}
+
 	/////////////////////////////////////////////////////////////////////////////////
 
 	private static String getNextDefaultIndex(String cacheName) {
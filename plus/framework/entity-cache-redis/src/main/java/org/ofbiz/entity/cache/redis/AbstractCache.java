@@ -38,7 +38,10 @@ public abstract class AbstractCache<K, V> {
 	}
 
 	public void remove(String entityName) {
-		UtilRedisCacheFactory.clearCache(getCacheName(entityName));
+		UtilRedisCache<K, V> cache = getCacheToInvalidate(entityName);
+		if (cache != null) {
+			cache.clear();
+		}
 	}
 
 	public void clear() {
@@ -78,4 +81,17 @@ public abstract class AbstractCache<K, V> {
 	protected UtilRedisCache<K, V> getOrCreateCache(String entityName) {
 		return UtilRedisCacheFactory.getOrCreateUtilCache(getCacheName(entityName), getCacheNames(entityName));
 	}
+
+	/**
+	 * The cache of entityName to invalidate on a change of its rows, null when
+	 * there is none. With versionedPut it is created when missing on this
+	 * node, other nodes may be loading values the change outdates.
+	 */
+	protected UtilRedisCache<K, V> getCacheToInvalidate(String entityName) {
+		UtilRedisCache<K, V> cache = getCache(entityName);
+		if (cache == null && UtilRedisCacheFactory.isVersionedPutConfigured(getCacheNames(entityName))) {
+			cache = getOrCreateCache(entityName);
+		}
+		return cache;
+	}
 }
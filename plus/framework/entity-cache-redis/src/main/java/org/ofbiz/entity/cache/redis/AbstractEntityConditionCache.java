@@ -18,14 +18,18 @@
  *******************************************************************************/
 package org.ofbiz.entity.cache.redis;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import org.ofbiz.base.cache.redis.UtilRedisCache;
-import org.ofbiz.base.cache.redis.UtilRedisCacheFactory;
 import org.ofbiz.base.util.Debug;
 //import org.ofbiz.base.util.cache.UtilCache;
 import org.ofbiz.entity.GenericEntity;
+import org.ofbiz.entity.GenericPK;
 import org.ofbiz.entity.GenericValue;
 import org.ofbiz.entity.condition.EntityCondition;
 import org.ofbiz.entity.model.ModelEntity;
@@ -49,6 +53,17 @@ public abstract class AbstractEntityConditionCache<K, V> extends AbstractCache<K
 		return cache.get(getConditionKey(condition), key);
 	}
 
+	/**
+	 * get that serves values past softExpireTime while refresher puts a fresh
+	 * one in the background
+	 */
+	protected V get(String entityName, EntityCondition condition, K key, Callable<V> refresher) {
+		UtilRedisCache<K, V> cache = getCache(entityName);
+		if (cache == null)
+			return null;
+		return cache.get(getConditionKey(condition), key, refresher);
+	}
+
 	protected V put(String entityName, EntityCondition condition, K key, V value) {
 		ModelEntity entity = this.getDelegator().getModelEntity(entityName);
 		if (entity.getNeverCache()) {
@@ -61,20 +76,71 @@ public abstract class AbstractEntityConditionCache<K, V> extends AbstractCache<K
 		if (cache == null)
 			return null;
 
-		return cache.put(condition, key, value);
+		return put(cache, condition, key, value, null);
+	}
+
+	/**
+	 * Puts the value and records its condition and, when isMemberTracked(),
+	 * its rows (members) so that remove(GenericEntity, GenericValue) only
+	 * drops affected entries.
+	 */
+	protected V put(UtilRedisCache<K, V> cache, EntityCondition condition, K key, V value,
+			Collection<GenericValue> members) {
+		List<String> memberKeys = null;
+		if (members != null) {
+			memberKeys = new ArrayList<String>(members.size());
+			for (GenericValue member : members) {
+				memberKeys.add(member.getPkShortValueString());
+			}
+		}
+		return cache.put(condition, key, value, memberKeys);
+	}
+
+	/**
+	 * true when the cached values are lists of rows that are recorded with
+	 * their condition, so a change of a row can be tracked without its old value
+	 */
+	protected boolean isMemberTracked() {
+		return false;
 	}
 
 	/**
 	 * Removes all condition caches that include the specified entity.
 	 */
 	public void remove(GenericEntity entity) {
-		UtilRedisCacheFactory.clearCache(getCacheName(entity.getEntityName()));
+		remove(entity.getEntityName());
+		removeViews(entity);
+	}
+
+	/**
+	 * Removes the condition caches the change of entity may affect: entries
+	 * holding the row and entries whose condition matches the new value or
+	 * oldValue. oldValue is the value before the change, GenericValue.NULL_VALUE
+	 * when the row did not exist and null when unknown, in that case caches not
+	 * tracking their rows are cleared completely. Condition caches of view
+	 * entities including the entity are always cleared completely.
+	 */
+	public void remove(GenericEntity entity, GenericValue oldValue) {
+		UtilRedisCache<K, V> cache = getCacheToInvalidate(entity.getEntityName());
+		if (cache != null) {
+			if (oldValue == null && !isMemberTracked()) {
+				cache.clear();
+			} else {
+				Map<String, ? extends Object> newValue = entity instanceof GenericPK ? null : entity;
+				Map<String, ? extends Object> previousValue = oldValue instanceof GenericEntity.NULL ? null : oldValue;
+				cache.removeDependent(getDelegator(), entity.getPkShortValueString(), newValue, previousValue);
+			}
+		}
+		removeViews(entity);
+	}
+
+	protected void removeViews(GenericEntity entity) {
 		ModelEntity model = entity.getModelEntity();
 		if (model != null) {
 			Iterator<String> it = model.getViewConvertorsIterator();
 			while (it.hasNext()) {
 				String targetEntityName = it.next();
-				UtilRedisCacheFactory.clearCache(getCacheName(targetEntityName));
+				remove(targetEntityName);
 			}
 		}
 	}
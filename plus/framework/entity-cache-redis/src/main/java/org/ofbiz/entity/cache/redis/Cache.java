@@ -19,11 +19,15 @@
 package org.ofbiz.entity.cache.redis;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 import org.ofbiz.base.util.Debug;
 import org.ofbiz.base.util.UtilGenerics;
 import org.ofbiz.entity.GenericEntity;
+import org.ofbiz.entity.GenericEntityException;
 import org.ofbiz.entity.GenericPK;
 import org.ofbiz.entity.GenericValue;
 import org.ofbiz.entity.condition.EntityCondition;
@@ -65,14 +69,37 @@ public class Cache implements Serializable {
 		return entityCache.get(pk);
 	}
 
+	/**
+	 * Batch primary key lookup, see EntityCache.getAll
+	 */
+	public Map<GenericPK, GenericValue> get(Collection<GenericPK> pks) {
+		return entityCache.getAll(pks);
+	}
+
 	public List<GenericValue> get(String entityName, EntityCondition condition, List<String> orderBy) {
 		return entityListCache.get(entityName, condition, orderBy);
 	}
 
+	/**
+	 * Get-or-load of a list, concurrent misses share one load of loader, see
+	 * EntityListCache.getOrLoad
+	 */
+	public List<GenericValue> getOrLoad(String entityName, EntityCondition condition, List<String> orderBy,
+			Callable<List<GenericValue>> loader) throws GenericEntityException {
+		return entityListCache.getOrLoad(entityName, condition, orderBy, loader);
+	}
+
 	public <T> T get(String entityName, EntityCondition condition, String name) {
 		return UtilGenerics.<T> cast(entityObjectCache.get(entityName, condition, name));
 	}
 
+	/**
+	 * see EntityObjectCache.get(String, EntityCondition, String, Callable)
+	 */
+	public <T> T get(String entityName, EntityCondition condition, String name, Callable<Object> refresher) {
+		return UtilGenerics.<T> cast(entityObjectCache.get(entityName, condition, name, refresher));
+	}
+
 	public List<GenericValue> put(String entityName, EntityCondition condition, List<String> orderBy,
 			List<GenericValue> entities) {
 		return entityListCache.put(entityName, condition, orderBy, entities);
@@ -108,10 +135,9 @@ public class Cache implements Serializable {
 		if (Debug.verboseOn())
 			Debug.logVerbose("Cache remove GenericEntity: " + entity, module);
 		GenericValue oldEntity = entityCache.remove(entity.getPrimaryKey());
-		// Workaround because AbstractEntityConditionCache.storeHook doesn't
-		// work.
-		entityListCache.remove(entity);
-		entityObjectCache.remove(entity);
+		// only the condition caches the change may affect
+		entityListCache.remove(entity, oldEntity);
+		entityObjectCache.remove(entity, oldEntity);
 		return oldEntity;
 	}
 
@@ -119,10 +145,9 @@ public class Cache implements Serializable {
 		if (Debug.verboseOn())
 			Debug.logVerbose("Cache remove GenericPK: " + pk, module);
 		GenericValue oldEntity = entityCache.remove(pk);
-		// Workaround because AbstractEntityConditionCache.storeHook doesn't
-		// work.
-		entityListCache.remove(pk);
-		entityObjectCache.remove(pk);
+		// only the condition caches the change may affect
+		entityListCache.remove(pk, oldEntity);
+		entityObjectCache.remove(pk, oldEntity);
 		return oldEntity;
 	}
 }
@@ -18,20 +18,38 @@
  *******************************************************************************/
 package org.ofbiz.entity.cache.redis;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
 
 import org.ofbiz.base.cache.redis.UtilRedisCache;
 import org.ofbiz.base.cache.redis.UtilRedisCacheFactory;
 import org.ofbiz.base.util.Debug;
+import org.ofbiz.entity.Delegator;
 import org.ofbiz.entity.GenericEntity.NULL;
+import org.ofbiz.entity.GenericEntityException;
 //import org.ofbiz.base.util.cache.UtilCache;
 import org.ofbiz.entity.GenericPK;
 import org.ofbiz.entity.GenericValue;
 import org.ofbiz.entity.model.ModelEntity;
+import org.ofbiz.entity.transaction.TransactionUtil;
+import org.ofbiz.entity.util.EntityFindOptions;
+import org.ofbiz.entity.util.EntityListIterator;
 
 public class EntityCache extends AbstractCache<GenericPK, GenericValue> {
     public static final String module = EntityCache.class.getName();
 
+    /** seconds the transaction reading all primary keys for the filter may take */
+    private static final int PK_FILTER_TRANSACTION_TIMEOUT = 1800;
+
     public EntityCache(String delegatorName) {
         super(delegatorName, "entity");
     }
@@ -39,6 +57,10 @@ public class EntityCache extends AbstractCache<GenericPK, GenericValue> {
     public GenericValue get(GenericPK pk) {
         UtilRedisCache<GenericPK, GenericValue> entityCache = getCache(pk.getEntityName());
         if (entityCache == null) return null;
+        if (entityCache.isKnownAbsent(pk.getPkShortValueString())) {
+            // no such row according to the primary key filter, no redis or database lookup
+            return GenericValue.NULL_VALUE;
+        }
         GenericValue value= entityCache.get(pk);
         if(value!=null && value instanceof NULL){
         	value = GenericValue.NULL_VALUE;
@@ -46,6 +68,46 @@ public class EntityCache extends AbstractCache<GenericPK, GenericValue> {
         return value;
     }
 
+    /**
+     * Looks up a batch of primary keys with one redis round trip per entity,
+     * PKs that are not in the cache are left out of the result.
+     */
+    public Map<GenericPK, GenericValue> getAll(Collection<GenericPK> pks) {
+        Map<String, List<GenericPK>> pksByEntity = new LinkedHashMap<String, List<GenericPK>>();
+        for (GenericPK pk : pks) {
+            List<GenericPK> entityPks = pksByEntity.get(pk.getEntityName());
+            if (entityPks == null) {
+                entityPks = new ArrayList<GenericPK>();
+                pksByEntity.put(pk.getEntityName(), entityPks);
+            }
+            entityPks.add(pk);
+        }
+        Map<GenericPK, GenericValue> result = new LinkedHashMap<GenericPK, GenericValue>();
+        for (Map.Entry<String, List<GenericPK>> entry : pksByEntity.entrySet()) {
+            UtilRedisCache<GenericPK, GenericValue> entityCache = getCache(entry.getKey());
+            if (entityCache == null) continue;
+            List<GenericPK> lookupPks = entry.getValue();
+            if (entityCache.isPkFilterEnabled()) {
+                lookupPks = new ArrayList<GenericPK>(entry.getValue().size());
+                for (GenericPK pk : entry.getValue()) {
+                    if (entityCache.isKnownAbsent(pk.getPkShortValueString())) {
+                        result.put(pk, GenericValue.NULL_VALUE);
+                    } else {
+                        lookupPks.add(pk);
+                    }
+                }
+            }
+            for (Map.Entry<GenericPK, GenericValue> found : entityCache.getAll(lookupPks).entrySet()) {
+                GenericValue value = found.getValue();
+                if (value instanceof NULL) {
+                    value = GenericValue.NULL_VALUE;
+                }
+                result.put(found.getKey(), value);
+            }
+        }
+        return result;
+    }
+
     public GenericValue put(GenericValue entity) {
         if (entity == null) return null;
         return put(entity.getPrimaryKey(), entity);
@@ -64,6 +126,9 @@ public class EntityCache extends AbstractCache<GenericPK, GenericValue> {
             entity.setImmutable();
         }
         UtilRedisCache<GenericPK, GenericValue> entityCache = getOrCreateCache(pk.getEntityName());
+        if (!(entity instanceof NULL)) {
+            entityCache.addToPkFilterIfAbsent(pk.getPkShortValueString());
+        }
         return entityCache.put(pk, entity);
     }
 
@@ -72,7 +137,14 @@ public class EntityCache extends AbstractCache<GenericPK, GenericValue> {
     }
 
     public GenericValue remove(GenericPK pk) {
-    	UtilRedisCache<GenericPK, GenericValue> entityCache = getCache(pk.getEntityName());
+    	UtilRedisCache<GenericPK, GenericValue> entityCache = getCacheToInvalidate(pk.getEntityName());
+        if (entityCache == null && UtilRedisCacheFactory.isPkFilterConfigured(getCacheNames(pk.getEntityName()))) {
+            // the row may have been created, the filters of the other nodes must learn its key
+            entityCache = getOrCreateCache(pk.getEntityName());
+        }
+        if (entityCache != null) {
+            entityCache.addToPkFilter(pk.getPkShortValueString());
+        }
         if (Debug.verboseOn()) Debug.logVerbose("Removing from EntityCache with PK [" + pk + "], will remove from this cache: " + (entityCache == null ? "[No cache found to remove from]" : entityCache.getName()), module);
         if (entityCache == null) return null;
         GenericValue retVal = entityCache.remove(pk);
@@ -81,10 +153,85 @@ public class EntityCache extends AbstractCache<GenericPK, GenericValue> {
             Iterator<String> it = model.getViewConvertorsIterator();
             while (it.hasNext()) {
                 String targetEntityName = it.next();
-                UtilRedisCacheFactory.clearCache(getCacheName(targetEntityName));
+                remove(targetEntityName);
             }
         }
         if (Debug.verboseOn()) Debug.logVerbose("Removing from EntityCache with PK [" + pk + "], found this in the cache: " + retVal, module);
         return retVal;
     }
+
+    /**
+     * Also sets the loader of the primary key filter (pkFilterExpectedKeys),
+     * which reads the keys of all rows of the entity from the delegator.
+     */
+    @Override
+    protected UtilRedisCache<GenericPK, GenericValue> getOrCreateCache(final String entityName) {
+        UtilRedisCache<GenericPK, GenericValue> entityCache = super.getOrCreateCache(entityName);
+        if (entityCache.isPkFilterEnabled() && entityCache.getPkFilterLoader() == null) {
+            entityCache.setPkFilterLoader(new Callable<Iterator<String>>() {
+                @Override
+                public Iterator<String> call() throws Exception {
+                    Delegator delegator = getDelegator();
+                    return new PkIterator(delegator, delegator.getModelEntity(entityName));
+                }
+            });
+        }
+        return entityCache;
+    }
+
+    /**
+     * The primary keys of all rows of an entity, read with one
+     * EntityListIterator in its own transaction, which close ends.
+     */
+    private static class PkIterator implements Iterator<String>, Closeable {
+        private final boolean beganTransaction;
+        private final EntityListIterator rows;
+        private GenericValue next;
+
+        PkIterator(Delegator delegator, ModelEntity model) throws GenericEntityException {
+            beganTransaction = TransactionUtil.begin(PK_FILTER_TRANSACTION_TIMEOUT);
+            try {
+                EntityFindOptions options = new EntityFindOptions();
+                options.setFetchSize(1000);
+                rows = delegator.find(model.getEntityName(), null, null, new HashSet<String>(model.getPkFieldNames()), null, options);
+                next = rows.next();
+            } catch (GenericEntityException e) {
+                TransactionUtil.rollback(beganTransaction, "Error reading the primary keys of " + model.getEntityName(), e);
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public String next() {
+            if (next == null) throw new NoSuchElementException();
+            String key = next.getPkShortValueString();
+            next = rows.next();
+            return key;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                rows.close();
+            } catch (GenericEntityException e) {
+                throw new IOException(e);
+            } finally {
+                try {
+                    TransactionUtil.commit(beganTransaction);
+                } catch (GenericEntityException e) {
+                    Debug.logWarning(e, "Error ending the transaction reading primary keys", module);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.entity.cache.redis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ofbiz.base.cache.redis.EntityConditionFingerprint;
+import org.ofbiz.base.cache.redis.UtilRedisCache;
+import org.ofbiz.base.cache.redis.UtilRedisCacheFactory;
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.condition.EntityCondition;
+import org.ofbiz.entity.model.ModelEntity;
+import org.ofbiz.entity.util.EntityFindOptions;
+
+/**
+ * Fills the entity caches of a delegator before a node takes traffic.
+ *
+ * Two sources, loaded in parallel:
+ * 1. the entries listed in entitycache.properties as
+ *    entitycache.warmup.N=EntityName[|field=value,field=value[|orderBy,orderBy]]
+ *    without condition all rows (up to redis-warmupMaxRows) go to the entity
+ *    cache, with a condition the list goes to the entity-list cache as well;
+ * 2. the hot keys recorded from live traffic (redis-hotKeySampleRate), they
+ *    are read from redis into the near cache, list entries missing in redis
+ *    are loaded again from the delegator.
+ */
+public class EntityCacheWarmup {
+
+	public static final String module = EntityCacheWarmup.class.getName();
+
+	protected final String delegatorName;
+
+	protected final Cache cache;
+
+	protected final AtomicInteger loaded = new AtomicInteger();
+
+	public EntityCacheWarmup(String delegatorName) {
+		this.delegatorName = delegatorName;
+		this.cache = new Cache(delegatorName);
+	}
+
+	/**
+	 * Runs the warm-up with threads threads, waits at most timeoutMillis.
+	 * Returns the number of cache entries loaded.
+	 */
+	public int run(int threads, long timeoutMillis) {
+		ResourceBundle res = ResourceBundle.getBundle("entitycache");
+		int maxRows = getInt(res, "entitycache.redis-warmupMaxRows", 10000);
+		int hotKeyCount = getInt(res, "entitycache.redis-warmupHotKeys", 10000);
+		final AtomicInteger threadCount = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "entitycache-warmup-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		long start = System.currentTimeMillis();
+		try {
+			for (int i = 1; res.containsKey("entitycache.warmup." + i); i++) {
+				final String entry = res.getString("entitycache.warmup." + i).trim();
+				final int rows = maxRows;
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							warmEntry(entry, rows);
+						} catch (Exception e) {
+							Debug.logWarning(e, "Entity cache warm-up of [" + entry + "] failed", module);
+						}
+					}
+				});
+			}
+			if (hotKeyCount > 0) {
+				Map<String, List<String>> hotKeys = UtilRedisCacheFactory.getHotKeys(hotKeyCount);
+				for (final Map.Entry<String, List<String>> hotCache : hotKeys.entrySet()) {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								warmHotKeys(hotCache.getKey(), hotCache.getValue());
+							} catch (Exception e) {
+								Debug.logWarning(e, "Entity cache warm-up of hot keys of [" + hotCache.getKey()
+										+ "] failed", module);
+							}
+						}
+					});
+				}
+			}
+			executor.shutdown();
+			if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+				Debug.logWarning("Entity cache warm-up did not finish within " + timeoutMillis
+						+ " milliseconds, continuing startup", module);
+				executor.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			executor.shutdownNow();
+		} catch (Exception e) {
+			// a cold cache is no reason to stop the node
+			Debug.logWarning(e, "Entity cache warm-up failed", module);
+			executor.shutdownNow();
+		}
+		Debug.logInfo("Entity cache warm-up of delegator [" + delegatorName + "] loaded " + loaded.get()
+				+ " entries in " + (System.currentTimeMillis() - start) + " milliseconds", module);
+		return loaded.get();
+	}
+
+	/**
+	 * EntityName[|field=value,field=value[|orderBy,orderBy]]
+	 */
+	protected void warmEntry(String entry, int maxRows) throws Exception {
+		String[] parts = entry.split("\\|");
+		String entityName = parts[0].trim();
+		EntityCondition condition = null;
+		if (parts.length > 1 && parts[1].trim().length() > 0) {
+			Map<String, Object> fields = new LinkedHashMap<String, Object>();
+			for (String field : parts[1].split(",")) {
+				int separator = field.indexOf('=');
+				if (separator > 0) {
+					fields.put(field.substring(0, separator).trim(), field.substring(separator + 1).trim());
+				}
+			}
+			condition = EntityCondition.makeCondition(fields);
+		}
+		List<String> orderBy = null;
+		if (parts.length > 2 && parts[2].trim().length() > 0) {
+			orderBy = new ArrayList<String>();
+			for (String field : parts[2].split(",")) {
+				orderBy.add(field.trim());
+			}
+		}
+		ModelEntity model = cache.entityListCache.getDelegator().getModelEntity(entityName);
+		if (model == null || model.getNeverCache()) {
+			Debug.logWarning("Entity cache warm-up skips [" + entityName + "], unknown or never-cache", module);
+			return;
+		}
+		EntityFindOptions findOptions = new EntityFindOptions();
+		findOptions.setMaxRows(maxRows);
+		List<GenericValue> values = cache.entityListCache.getDelegator().findList(entityName, condition, null,
+				orderBy, findOptions, false);
+		for (GenericValue value : values) {
+			cache.put(value);
+		}
+		loaded.addAndGet(values.size());
+		if (condition != null) {
+			cache.put(entityName, condition, orderBy, values);
+			loaded.incrementAndGet();
+		}
+		if (Debug.infoOn())
+			Debug.logInfo("Entity cache warm-up of [" + entry + "] loaded " + values.size() + " rows", module);
+	}
+
+	/**
+	 * Reads the recorded hot fields of a cache into the near cache, list
+	 * entries no longer in redis are loaded from the delegator.
+	 */
+	protected void warmHotKeys(String cacheName, List<String> fields) throws Exception {
+		AbstractCache<?, ?> owner = null;
+		for (AbstractCache<?, ?> candidate : Arrays.<AbstractCache<?, ?>> asList(cache.entityCache,
+				cache.entityListCache, cache.entityObjectCache)) {
+			if (cacheName.startsWith(candidate.getCacheNamePrefix())) {
+				owner = candidate;
+				break;
+			}
+		}
+		if (owner == null) {
+			// cache of another delegator
+			return;
+		}
+		String entityName = cacheName.substring(owner.getCacheNamePrefix().length());
+		UtilRedisCache<?, ?> redisCache = owner.getOrCreateCache(entityName);
+		List<String> missing = redisCache.warm(fields);
+		loaded.addAndGet(fields.size() - missing.size());
+		if (owner != cache.entityListCache || missing.isEmpty()) {
+			return;
+		}
+		int length = EntityConditionFingerprint.LENGTH;
+		for (String field : missing) {
+			if (field.length() <= length || field.charAt(length) != '_') {
+				continue;
+			}
+			EntityCondition condition = redisCache.getDependencyCondition(field.substring(0, length));
+			if (condition == null) {
+				// registered as matching any row, the condition itself is not kept
+				continue;
+			}
+			String orderByKey = field.substring(length + 1);
+			List<String> orderBy = null;
+			if (!EntityListCache.getOrderByKey(null).equals(orderByKey)) {
+				orderBy = orderByKey.length() > 0 ? Arrays.asList(orderByKey.split(",")) : new ArrayList<String>();
+			}
+			List<GenericValue> values = cache.entityListCache.getDelegator().findList(entityName, condition, null,
+					orderBy, null, false);
+			cache.put(entityName, condition, orderBy, values);
+			loaded.incrementAndGet();
+		}
+	}
+
+	private static int getInt(ResourceBundle res, String key, int defaultValue) {
+		try {
+			return res.containsKey(key) ? Integer.parseInt(res.getString(key).trim()) : defaultValue;
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+}
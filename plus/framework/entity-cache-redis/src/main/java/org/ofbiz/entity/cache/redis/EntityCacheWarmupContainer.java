@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.entity.cache.redis;
+
+import org.ofbiz.base.container.Container;
+import org.ofbiz.base.container.ContainerConfig;
+import org.ofbiz.base.container.ContainerException;
+
+/**
+ * Runs EntityCacheWarmup while the containers start. Containers start in the
+ * order they are declared, so declared before the catalina container the node
+ * only accepts requests once the caches are warm.
+ *
+ * Properties: delegator-name (default), threads (4), timeout in milliseconds
+ * (60000).
+ */
+public class EntityCacheWarmupContainer implements Container {
+
+	public static final String module = EntityCacheWarmupContainer.class.getName();
+
+	protected String name;
+
+	protected String delegatorName;
+
+	protected int threads;
+
+	protected int timeout;
+
+	@Override
+	public void init(String[] args, String name, String configFile) throws ContainerException {
+		this.name = name;
+		ContainerConfig.Container cfg = ContainerConfig.getContainer(name, configFile);
+		this.delegatorName = ContainerConfig.getPropertyValue(cfg, "delegator-name", "default");
+		this.threads = ContainerConfig.getPropertyValue(cfg, "threads", 4);
+		this.timeout = ContainerConfig.getPropertyValue(cfg, "timeout", 60000);
+	}
+
+	@Override
+	public boolean start() throws ContainerException {
+		new EntityCacheWarmup(delegatorName).run(threads, timeout);
+		return true;
+	}
+
+	@Override
+	public void stop() throws ContainerException {
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+}
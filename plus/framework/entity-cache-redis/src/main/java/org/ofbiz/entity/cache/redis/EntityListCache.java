@@ -21,10 +21,12 @@ package org.ofbiz.entity.cache.redis;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
 
 import org.ofbiz.base.cache.redis.UtilRedisCache;
 import org.ofbiz.base.util.Debug;
+import org.ofbiz.entity.GenericEntityException;
 import org.ofbiz.entity.GenericValue;
 import org.ofbiz.entity.condition.EntityCondition;
 import org.ofbiz.entity.model.ModelEntity;
@@ -46,10 +48,93 @@ public class EntityListCache extends AbstractEntityConditionCache<Object, List<G
     	UtilRedisCache<Object, List<GenericValue>> cache = getCache(entityName);
         if (cache == null) return null;
         Object orderByKey = getOrderByKey(orderBy);
+        if (cache.getSoftExpireTime() > 0) {
+            // past softExpireTime the list is served while it is reloaded from the delegator
+            return cache.get(condition, orderByKey, getRefresher(entityName, getFrozenConditionKey(condition), orderBy));
+        }
         List<GenericValue> valueList = cache.get(condition, orderByKey);
         return valueList;
     }
 
+    /**
+     * Returns limit values of the cached list starting at offset (all from
+     * offset when limit is negative). Of a list stored in chunks only the
+     * chunks holding the requested values are read and decoded.
+     */
+    public List<GenericValue> get(String entityName, EntityCondition condition, List<String> orderBy, int offset, int limit) {
+        UtilRedisCache<Object, List<GenericValue>> cache = getCache(entityName);
+        if (cache == null) return null;
+        return cache.getRange(condition, getOrderByKey(orderBy), offset, limit);
+    }
+
+    /**
+     * Returns the cached list as a read-only view that reads a list stored in
+     * chunks chunk by chunk as it is accessed. A chunk replaced or removed
+     * before it is first accessed raises a ConcurrentModificationException,
+     * use get when the whole list is needed anyway.
+     */
+    public List<GenericValue> getView(String entityName, EntityCondition condition, List<String> orderBy) {
+        UtilRedisCache<Object, List<GenericValue>> cache = getCache(entityName);
+        if (cache == null) return null;
+        return cache.getView(condition, getOrderByKey(orderBy));
+    }
+
+    protected Callable<List<GenericValue>> getRefresher(final String entityName, final EntityCondition condition,
+            final List<String> orderBy) {
+        return new Callable<List<GenericValue>>() {
+            @Override
+            public List<GenericValue> call() throws Exception {
+                List<GenericValue> entities = getDelegator().findList(entityName, condition, null, orderBy, null, false);
+                put(entityName, condition, orderBy, entities);
+                return entities;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached list, on a miss loads it with loader and caches it.
+     * Concurrent misses of the same condition and order share one load, also
+     * across nodes, see UtilRedisCache.getOrLoad.
+     */
+    public List<GenericValue> getOrLoad(final String entityName, final EntityCondition condition, final List<String> orderBy,
+            final Callable<List<GenericValue>> loader) throws GenericEntityException {
+        ModelEntity entity = this.getDelegator().getModelEntity(entityName);
+        if (entity.getNeverCache()) {
+            return call(loader);
+        }
+        UtilRedisCache<Object, List<GenericValue>> cache = getOrCreateCache(entityName);
+        try {
+            return cache.getOrLoad(condition, getOrderByKey(orderBy), new Callable<List<GenericValue>>() {
+                @Override
+                public List<GenericValue> call() throws Exception {
+                    List<GenericValue> entities = loader.call();
+                    if (entities != null) {
+                        put(entityName, condition, orderBy, entities);
+                    }
+                    return entities;
+                }
+            });
+        } catch (GenericEntityException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new GenericEntityException("Error loading " + entityName + " list for the cache", e);
+        }
+    }
+
+    private static List<GenericValue> call(Callable<List<GenericValue>> loader) throws GenericEntityException {
+        try {
+            return loader.call();
+        } catch (GenericEntityException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new GenericEntityException("Error loading list for the cache", e);
+        }
+    }
+
     public void put(String entityName, EntityCondition condition, List<GenericValue> entities) {
         this.put(entityName, condition, null, entities);
     }
@@ -64,7 +149,13 @@ public class EntityListCache extends AbstractEntityConditionCache<Object, List<G
             memberValue.setImmutable();
         }
         UtilRedisCache<Object, List<GenericValue>> cache = getOrCreateCache(entityName);
-        return cache.put(getFrozenConditionKey(condition), getOrderByKey(orderBy), entities);
+        EntityCondition frozenCondition = getFrozenConditionKey(condition);
+        return put(cache, frozenCondition, getOrderByKey(orderBy), entities, entities);
+    }
+
+    @Override
+    protected boolean isMemberTracked() {
+        return true;
     }
 
     public List<GenericValue> remove(String entityName, EntityCondition condition, List<String> orderBy) {
@@ -19,6 +19,8 @@
 
 package org.ofbiz.entity.cache.redis;
 
+import java.util.concurrent.Callable;
+
 import org.ofbiz.entity.condition.EntityCondition;
 
 public class EntityObjectCache extends AbstractEntityConditionCache<String, Object> {
@@ -34,6 +36,17 @@ public class EntityObjectCache extends AbstractEntityConditionCache<String, Obje
         return super.get(entityName, condition, name);
     }
 
+    /**
+     * Stale-while-revalidate get: past the softExpireTime of the entity the
+     * cached object is still returned and refresher, which must put the new
+     * object, runs once in the background. Without refresher such an object
+     * is a miss.
+     */
+    @Override
+    public Object get(String entityName, EntityCondition condition, String name, Callable<Object> refresher) {
+        return super.get(entityName, condition, name, refresher);
+    }
+
     @Override
     public Object put(String entityName, EntityCondition condition, String name, Object value) {
         return super.put(entityName, getFrozenConditionKey(condition), name, value);
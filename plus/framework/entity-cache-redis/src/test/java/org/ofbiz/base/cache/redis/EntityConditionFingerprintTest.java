@@ -0,0 +1,105 @@
+package org.ofbiz.base.cache.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.ofbiz.entity.condition.EntityCondition;
+import org.ofbiz.entity.condition.EntityJoinOperator;
+import org.ofbiz.entity.condition.EntityOperator;
+
+public class EntityConditionFingerprintTest {
+
+	private static final EntityCondition A = EntityCondition.makeCondition("productId", "WG-1111");
+	private static final EntityCondition B = EntityCondition.makeCondition("productStoreId", "9000");
+	private static final EntityCondition C = EntityCondition.makeCondition("currencyUomId", "USD");
+
+	private static EntityCondition join(EntityJoinOperator op, EntityCondition... conditions) {
+		return EntityCondition.makeCondition(Arrays.asList(conditions), op);
+	}
+
+	private static String fingerprint(EntityCondition condition) {
+		return EntityConditionFingerprint.fingerprint(condition);
+	}
+
+	@Test
+	public void fingerprintIsHex() {
+		String fingerprint = fingerprint(A);
+		assertEquals(EntityConditionFingerprint.LENGTH, fingerprint.length());
+		assertEquals(fingerprint, fingerprint.replaceAll("[^0-9a-f]", ""));
+		assertEquals(EntityConditionFingerprint.LENGTH, fingerprint(null).length());
+	}
+
+	@Test
+	public void nestedListsOfTheSameOperatorAreFlattened() {
+		assertEquals(fingerprint(join(EntityOperator.AND, A, B, C)),
+				fingerprint(join(EntityOperator.AND, A, join(EntityOperator.AND, B, C))));
+		assertEquals(fingerprint(join(EntityOperator.OR, A, B, C)),
+				fingerprint(join(EntityOperator.OR, join(EntityOperator.OR, A, B), C)));
+	}
+
+	@Test
+	public void nestedListsOfAnotherOperatorAreKept() {
+		assertNotEquals(fingerprint(join(EntityOperator.AND, A, B, C)),
+				fingerprint(join(EntityOperator.AND, A, join(EntityOperator.OR, B, C))));
+	}
+
+	@Test
+	public void membersAreSorted() {
+		assertEquals(fingerprint(join(EntityOperator.AND, A, B, C)), fingerprint(join(EntityOperator.AND, C, A, B)));
+		assertNotEquals(fingerprint(join(EntityOperator.AND, A, B)), fingerprint(join(EntityOperator.OR, A, B)));
+	}
+
+	@Test
+	public void singleMemberListIsTheMember() {
+		assertEquals(fingerprint(A), fingerprint(join(EntityOperator.AND, A)));
+		assertEquals(fingerprint(A), fingerprint(join(EntityOperator.OR, join(EntityOperator.AND, A))));
+	}
+
+	@Test
+	public void fieldMapIsTheListOfItsExpressions() {
+		Map<String, Object> fields = new LinkedHashMap<String, Object>();
+		fields.put("productId", "WG-1111");
+		fields.put("productStoreId", "9000");
+		assertEquals(fingerprint(join(EntityOperator.AND, B, A)), fingerprint(EntityCondition.makeCondition(fields)));
+	}
+
+	@Test
+	public void inValuesAreSorted() {
+		EntityCondition in = EntityCondition.makeCondition("productId", EntityOperator.IN, Arrays.asList("a", "b", "c"));
+		EntityCondition reordered = EntityCondition.makeCondition("productId", EntityOperator.IN,
+				Arrays.asList("c", "a", "b"));
+		assertEquals(fingerprint(in), fingerprint(reordered));
+		assertNotEquals(fingerprint(in), fingerprint(EntityCondition.makeCondition("productId", EntityOperator.IN,
+				Arrays.asList("a", "b", "d"))));
+	}
+
+	@Test
+	public void integralNumbersHashTheSameRegardlessOfType() {
+		assertEquals(fingerprint(EntityCondition.makeCondition("sequenceNum", 10L)),
+				fingerprint(EntityCondition.makeCondition("sequenceNum", 10)));
+		assertEquals(fingerprint(EntityCondition.makeCondition("sequenceNum", (short) 10)),
+				fingerprint(EntityCondition.makeCondition("sequenceNum", 10L)));
+		assertNotEquals(fingerprint(EntityCondition.makeCondition("sequenceNum", 10L)),
+				fingerprint(EntityCondition.makeCondition("sequenceNum", 11L)));
+	}
+
+	@Test
+	public void decimalsHashTheSameRegardlessOfScale() {
+		assertEquals(fingerprint(EntityCondition.makeCondition("price", new BigDecimal("1.50"))),
+				fingerprint(EntityCondition.makeCondition("price", new BigDecimal("1.5"))));
+		assertEquals(fingerprint(EntityCondition.makeCondition("price", new BigDecimal("0.00"))),
+				fingerprint(EntityCondition.makeCondition("price", BigDecimal.ZERO)));
+	}
+
+	@Test
+	public void valuesAndFieldsAreDistinguished() {
+		assertNotEquals(fingerprint(A), fingerprint(EntityCondition.makeCondition("productId", "WG-1112")));
+		assertNotEquals(fingerprint(A), fingerprint(EntityCondition.makeCondition("parentProductId", "WG-1111")));
+	}
+}
@@ -0,0 +1,135 @@
+package org.ofbiz.base.cache.redis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.ofbiz.base.util.UtilObject;
+import org.ofbiz.entity.GenericValue;
+
+public class GenericValueCodecTest {
+
+	private final GenericValueCodec codec = new GenericValueCodec();
+
+	static {
+		TestEntities.entity("CodecProduct", "productId", "id", "productName", "name", "price", "currency-amount",
+				"piecesIncluded", "numeric", "introductionDate", "date-time");
+		TestEntities.entity("CodecMember", "productCategoryId", "id", "productId", "id");
+	}
+
+	private static GenericValue makeProduct(String productId, String productName) {
+		Map<String, Object> fields = new HashMap<String, Object>();
+		fields.put("productId", productId);
+		fields.put("productName", productName);
+		fields.put("price", new BigDecimal("12.99"));
+		fields.put("piecesIncluded", Long.valueOf(3));
+		fields.put("introductionDate", new Timestamp(1500000000123L));
+		return TestEntities.makeValue("CodecProduct", fields);
+	}
+
+	private static GenericValue makeMember(String productCategoryId, String productId) {
+		Map<String, Object> fields = new HashMap<String, Object>();
+		fields.put("productCategoryId", productCategoryId);
+		fields.put("productId", productId);
+		return TestEntities.makeValue("CodecMember", fields);
+	}
+
+	@Test
+	public void valueRoundTrip() {
+		// productName stays null
+		GenericValue value = makeProduct("WG-1111", null);
+		byte[] bytes = codec.encode(value);
+		assertEquals(GenericValueCodec.TAG_VALUE, bytes[0]);
+		GenericValue decoded = (GenericValue) codec.decode(bytes);
+		assertEquals(value, decoded);
+		assertSame(value.getModelEntity(), decoded.getModelEntity());
+		assertEquals(TestEntities.DELEGATOR_NAME, decoded.getDelegator().getDelegatorName());
+	}
+
+	@Test
+	public void listRoundTrip() {
+		// members of two entities, the header is written once per run of one entity
+		List<GenericValue> list = new ArrayList<GenericValue>(Arrays.asList(makeProduct("WG-1111", "Widget"),
+				makeProduct("WG-2222", "Gizmo"), makeMember("CAT-1", "WG-1111")));
+		byte[] bytes = codec.encode(list);
+		assertEquals(GenericValueCodec.TAG_VALUE_LIST, bytes[0]);
+		assertEquals(list, codec.decode(bytes));
+		assertEquals(new ArrayList<GenericValue>(), codec.decode(codec.encode(new ArrayList<GenericValue>())));
+	}
+
+	@Test
+	public void valueOfAnotherEntityDefinitionIsAMiss() {
+		TestEntities.entity("CodecChanging", "changingId", "id", "amount", "currency-amount");
+		Map<String, Object> fields = new HashMap<String, Object>();
+		fields.put("changingId", "C-1");
+		fields.put("amount", new BigDecimal("1.00"));
+		byte[] bytes = codec.encode(TestEntities.makeValue("CodecChanging", fields));
+		assertEquals(TestEntities.makeValue("CodecChanging", fields), codec.decode(bytes));
+		// same field count, another type
+		TestEntities.entity("CodecChanging", "changingId", "id", "amount", "numeric");
+		assertNull(codec.decode(bytes));
+	}
+
+	@Test
+	public void nullValueIsOneTag() {
+		byte[] bytes = codec.encode(GenericValue.NULL_VALUE);
+		assertArrayEquals(new byte[] { GenericValueCodec.TAG_NULL_VALUE }, bytes);
+		assertSame(GenericValue.NULL_VALUE, codec.decode(bytes));
+	}
+
+	@Test
+	public void otherValuesUseJavaSerialization() {
+		Map<String, Object> value = new HashMap<String, Object>();
+		value.put("productId", "WG-1111");
+		byte[] bytes = codec.encode(value);
+		assertEquals(GenericValueCodec.TAG_JAVA, bytes[0]);
+		assertEquals(value, codec.decode(bytes));
+	}
+
+	@Test
+	public void listOfOtherValuesUsesJavaSerialization() {
+		List<String> value = new ArrayList<String>(Arrays.asList("a", "b"));
+		byte[] bytes = codec.encode(value);
+		assertEquals(GenericValueCodec.TAG_JAVA, bytes[0]);
+		assertEquals(value, codec.decode(bytes));
+	}
+
+	@Test
+	public void readsPlainJavaSerialization() {
+		assertEquals("cached", codec.decode(UtilObject.getBytes("cached")));
+	}
+
+	@Test
+	public void valuesWithoutFieldsHashAreMisses() {
+		assertNull(codec.decode(new byte[] { GenericValueCodec.TAG_VALUE_V1, 1, 0, 1, 'x' }));
+		assertNull(codec.decode(new byte[] { GenericValueCodec.TAG_VALUE_LIST_V1, 0, 0, 0, 1 }));
+	}
+
+	@Test
+	public void memberWithoutHeaderIsCorrupt() {
+		// a list of one member flagged as sharing the header of a previous one
+		assertNull(codec.decode(new byte[] { GenericValueCodec.TAG_VALUE_LIST, 0, 0, 0, 1, 0, 0, 1, 1 }));
+		assertNull(codec.decode(new byte[] { GenericValueCodec.TAG_VALUE, 0, 0, 1, 1 }));
+	}
+
+	@Test
+	public void truncatedValueIsAMiss() {
+		assertNull(codec.decode(new byte[] { GenericValueCodec.TAG_VALUE_LIST, 0, 0 }));
+	}
+
+	@Test
+	public void emptyBytesAreAMiss() {
+		assertNull(codec.decode(null));
+		assertNull(codec.decode(new byte[0]));
+	}
+}
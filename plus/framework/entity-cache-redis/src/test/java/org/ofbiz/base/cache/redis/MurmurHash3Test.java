@@ -0,0 +1,33 @@
+package org.ofbiz.base.cache.redis;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class MurmurHash3Test {
+
+	private static long[] hash(String value) {
+		return MurmurHash3.hash128(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void emptyInputHashesToZero() {
+		assertArrayEquals(new long[] { 0, 0 }, hash(""));
+	}
+
+	@Test
+	public void matchesReferenceVectors() {
+		// x64 128 bit, seed 0, as the reference implementation
+		assertArrayEquals(new long[] { 0xcbd8a7b341bd9b02L, 0x5b1e906a48ae1d19L }, hash("hello"));
+		assertArrayEquals(new long[] { 0xe34bbc7bbc071b6cL, 0x7a433ca9c49a9347L },
+				hash("The quick brown fox jumps over the lazy dog"));
+	}
+
+	@Test
+	public void hashesTheGivenRange() {
+		byte[] data = "xxhelloxx".getBytes(StandardCharsets.UTF_8);
+		assertArrayEquals(hash("hello"), MurmurHash3.hash128(data, 2, 5));
+	}
+}
@@ -0,0 +1,84 @@
+package org.ofbiz.base.cache.redis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RedisBloomFilterTest {
+
+	@Test
+	public void bitsAreInTheOrderOfSetbit() {
+		RedisBloomFilter filter = new RedisBloomFilter(128, 1);
+		filter.add(new long[] { 0 });
+		filter.add(new long[] { 9 });
+		filter.add(new long[] { 127 });
+		byte[] bitmap = filter.toBytes();
+		assertEquals(16, bitmap.length);
+		// SETBIT key 0 sets the most significant bit of the first byte
+		assertEquals((byte) 0x80, bitmap[0]);
+		assertEquals((byte) 0x40, bitmap[1]);
+		assertEquals((byte) 0x01, bitmap[15]);
+		for (int i = 2; i < 15; i++) {
+			assertEquals(0, bitmap[i]);
+		}
+	}
+
+	@Test
+	public void loadReadsTheBitmapOfToBytes() {
+		RedisBloomFilter filter = RedisBloomFilter.create(1000, 0.01);
+		for (int i = 0; i < 100; i++) {
+			filter.add(filter.positions("key" + i));
+		}
+		RedisBloomFilter loaded = new RedisBloomFilter(filter.getBits(), filter.getHashes());
+		loaded.beginLoad();
+		loaded.load(filter.toBytes());
+		assertArrayEquals(filter.toBytes(), loaded.toBytes());
+		for (int i = 0; i < 100; i++) {
+			assertTrue(loaded.mightContain("key" + i));
+		}
+	}
+
+	@Test
+	public void shortBitmapLeavesTheRestClear() {
+		RedisBloomFilter filter = new RedisBloomFilter(128, 1);
+		filter.beginLoad();
+		// redis returns the bitmap up to the highest byte set
+		filter.load(new byte[] { (byte) 0x80 });
+		byte[] bitmap = filter.toBytes();
+		assertEquals((byte) 0x80, bitmap[0]);
+		assertEquals(0, bitmap[1]);
+	}
+
+	@Test
+	public void addsDuringLoadAreKept() {
+		RedisBloomFilter filter = new RedisBloomFilter(128, 1);
+		filter.beginLoad();
+		filter.add(new long[] { 64 });
+		filter.load(new byte[] { (byte) 0x80 });
+		byte[] bitmap = filter.toBytes();
+		assertEquals((byte) 0x80, bitmap[0]);
+		assertEquals((byte) 0x80, bitmap[8]);
+	}
+
+	@Test
+	public void createSizesForTheFalsePositiveRate() {
+		RedisBloomFilter filter = RedisBloomFilter.create(1000000, 0.01);
+		// m = -n ln p / (ln 2)^2, k = m / n ln 2
+		assertEquals(9585059, filter.getBits());
+		assertEquals(7, filter.getHashes());
+		assertFalse(filter.mightContain("absent"));
+	}
+
+	@Test
+	public void positionsAreWithinTheFilter() {
+		RedisBloomFilter filter = new RedisBloomFilter(100, 5);
+		long[] positions = filter.positions("key");
+		assertEquals(5, positions.length);
+		for (long position : positions) {
+			assertTrue(position >= 0 && position < 100);
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package org.ofbiz.base.cache.redis;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.DelegatorFactory;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.model.ModelEntity;
+import org.ofbiz.entity.model.ModelField;
+import org.ofbiz.entity.model.ModelFieldType;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Entity models without an entity engine, for the codec tests: the delegator
+ * "test" is a proxy that knows the entities defined with entity(), found by
+ * DelegatorFactory through TestEntities.Factory (META-INF/services).
+ */
+public final class TestEntities {
+
+	public static final String DELEGATOR_NAME = "test";
+
+	private static final Map<String, ModelEntity> models = new ConcurrentHashMap<String, ModelEntity>();
+
+	private static final Map<String, ModelFieldType> fieldTypes = new ConcurrentHashMap<String, ModelFieldType>();
+
+	private static final Delegator delegator;
+
+	static {
+		fieldType("id", "VARCHAR(20)", "String");
+		fieldType("name", "VARCHAR(100)", "String");
+		fieldType("currency-amount", "DECIMAL(18,2)", "java.math.BigDecimal");
+		fieldType("numeric", "DECIMAL(20,0)", "Long");
+		fieldType("date-time", "TIMESTAMP", "java.sql.Timestamp");
+
+		delegator = (Delegator) Proxy.newProxyInstance(TestEntities.class.getClassLoader(),
+				new Class<?>[] { Delegator.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						return invokeDelegator(proxy, method, args);
+					}
+				});
+	}
+
+	/** returns the test delegator to DelegatorFactory.getDelegator */
+	public static class Factory extends DelegatorFactory {
+		@Override
+		public Delegator getInstance(String delegatorName) {
+			return DELEGATOR_NAME.equals(delegatorName) ? delegator : null;
+		}
+	}
+
+	private TestEntities() {
+	}
+
+	public static Delegator getDelegator() {
+		return delegator;
+	}
+
+	/**
+	 * defines, or defines again, an entity with the given fields as name,
+	 * type pairs, the first one the primary key
+	 */
+	public static ModelEntity entity(String entityName, String... fields) {
+		ModelEntity model = new ModelEntity();
+		model.setEntityName(entityName);
+		model.setPackageName("org.ofbiz.test");
+		for (int i = 0; i + 1 < fields.length; i += 2) {
+			boolean isPk = i == 0;
+			model.addField(ModelField.create(model, "", fields[i], fields[i + 1], null, null, null, isPk, isPk, false,
+					false, false, null));
+		}
+		models.put(entityName, model);
+		return model;
+	}
+
+	public static GenericValue makeValue(String entityName, Map<String, Object> fields) {
+		return GenericValue.create(delegator, models.get(entityName), fields);
+	}
+
+	private static Object invokeDelegator(Object proxy, Method method, Object[] args) {
+		String name = method.getName();
+		if ("getDelegatorName".equals(name) || "getDelegatorBaseName".equals(name) || "toString".equals(name)) {
+			return DELEGATOR_NAME;
+		} else if ("getModelEntity".equals(name)) {
+			return models.get(args[0]);
+		} else if ("getEntityFieldType".equals(name)) {
+			return fieldTypes.get(args[1]);
+		} else if ("getEntityGroupName".equals(name)) {
+			return "org.ofbiz";
+		} else if ("makeValue".equals(name) && args != null && args.length == 2 && args[1] instanceof Map) {
+			@SuppressWarnings("unchecked")
+			Map<String, Object> fields = (Map<String, Object>) args[1];
+			return GenericValue.create((Delegator) proxy, models.get(args[0]), fields);
+		} else if ("hashCode".equals(name)) {
+			return System.identityHashCode(proxy);
+		} else if ("equals".equals(name)) {
+			return proxy == args[0];
+		}
+		Class<?> returnType = method.getReturnType();
+		if (returnType == boolean.class) {
+			return Boolean.FALSE;
+		} else if (returnType.isPrimitive() && returnType != void.class) {
+			return 0;
+		}
+		// everything else is not used by the codec
+		return null;
+	}
+
+	private static void fieldType(String type, String sqlType, String javaType) {
+		try {
+			Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+			Element element = document.createElement("field-type-def");
+			element.setAttribute("type", type);
+			element.setAttribute("sql-type", sqlType);
+			element.setAttribute("java-type", javaType);
+			fieldTypes.put(type, new ModelFieldType(element));
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package org.ofbiz.base.redis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.util.JedisClusterCRC16;
+
+/**
+ * Slot aware connection pools for a Redis Cluster.
+ *
+ * The slot map is read with CLUSTER SLOTS from any known node and refreshed
+ * after connection errors (at most once per second), which covers MOVED
+ * replies after resharding and failovers. Keys are routed by
+ * JedisClusterCRC16, so all keys sharing a {hash tag} go to the same node.
+ *
+ * Shared by entity-cache-redis and tomcat-session-redis, which log through
+ * different frameworks and pass their own Log.
+ */
+public class RedisClusterRouter {
+
+	/**
+	 * where the router logs to: Debug in entity-cache-redis, juli in
+	 * tomcat-session-redis
+	 */
+	public interface Log {
+		boolean isVerboseEnabled();
+
+		void verbose(String message);
+
+		void warning(String message);
+	}
+
+	private static final int SLOT_COUNT = 16384;
+
+	private static final long MIN_REFRESH_INTERVAL_MILLIS = 1000;
+
+	private final Set<HostAndPort> seedNodes;
+
+	private final JedisPoolConfig poolConfig;
+
+	private final int timeout;
+
+	private final String password;
+
+	private final Log log;
+
+	/** host:port -> pool, for every node ever seen */
+	private final Map<String, JedisPool> nodes = new ConcurrentHashMap<String, JedisPool>();
+
+	private volatile HostAndPort[] slots = new HostAndPort[SLOT_COUNT];
+
+	private long lastRefresh = 0;
+
+	/**
+	 * @param clusterNodes
+	 *            comma separated host:port list of some cluster nodes
+	 */
+	public RedisClusterRouter(String clusterNodes, JedisPoolConfig poolConfig, int timeout, String password, Log log) {
+		this.seedNodes = new LinkedHashSet<HostAndPort>();
+		for (String node : clusterNodes.split(",")) {
+			node = node.trim();
+			if (node.length() == 0) {
+				continue;
+			}
+			int separator = node.lastIndexOf(':');
+			if (separator < 0) {
+				seedNodes.add(new HostAndPort(node, 6379));
+			} else {
+				seedNodes.add(new HostAndPort(node.substring(0, separator),
+						Integer.parseInt(node.substring(separator + 1))));
+			}
+		}
+		this.poolConfig = poolConfig;
+		this.timeout = timeout;
+		this.password = password != null && !"".equals(password.trim()) ? password : null;
+		this.log = log;
+	}
+
+	public void initialize() {
+		if (!refresh(true)) {
+			throw new RuntimeException("Unable to read the slot map from redis cluster nodes " + seedNodes);
+		}
+	}
+
+	public static int getSlot(String key) {
+		return JedisClusterCRC16.getSlot(key);
+	}
+
+	public static int getSlot(byte[] key) {
+		return JedisClusterCRC16.getSlot(key);
+	}
+
+	/**
+	 * master node of the slot of key, any node when the slot is not mapped
+	 */
+	public HostAndPort getNode(int slot) {
+		HostAndPort node = slots[slot];
+		if (node == null) {
+			refresh(false);
+			node = slots[slot];
+		}
+		return node != null ? node : seedNodes.iterator().next();
+	}
+
+	public JedisPool getPool(int slot) {
+		return getPool(getNode(slot));
+	}
+
+	public JedisPool getPool(HostAndPort node) {
+		String nodeKey = node.toString();
+		JedisPool pool = nodes.get(nodeKey);
+		if (pool == null) {
+			synchronized (nodes) {
+				pool = nodes.get(nodeKey);
+				if (pool == null) {
+					pool = new JedisPool(poolConfig, node.getHost(), node.getPort(), timeout, password);
+					nodes.put(nodeKey, pool);
+				}
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * pool the connection was borrowed from
+	 */
+	public JedisPool getPool(Jedis jedis) {
+		return getPool(new HostAndPort(jedis.getClient().getHost(), jedis.getClient().getPort()));
+	}
+
+	/**
+	 * all nodes currently serving slots
+	 */
+	public Set<HostAndPort> getMasters() {
+		Set<HostAndPort> masters = new LinkedHashSet<HostAndPort>();
+		for (HostAndPort node : slots) {
+			if (node != null) {
+				masters.add(node);
+			}
+		}
+		return masters;
+	}
+
+	/**
+	 * pools of all nodes currently serving slots
+	 */
+	public Collection<JedisPool> getMasterPools() {
+		Set<HostAndPort> masters = getMasters();
+		List<JedisPool> pools = new ArrayList<JedisPool>(masters.size());
+		for (HostAndPort node : masters) {
+			pools.add(getPool(node));
+		}
+		return pools;
+	}
+
+	/**
+	 * Re-reads the slot map, unless that was done less than a second ago.
+	 * Returns true when a slot map was read.
+	 */
+	public boolean refresh(boolean force) {
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			if (!force && now - lastRefresh < MIN_REFRESH_INTERVAL_MILLIS) {
+				return false;
+			}
+			lastRefresh = now;
+		}
+		Set<HostAndPort> candidates = new LinkedHashSet<HostAndPort>();
+		for (HostAndPort node : slots) {
+			if (node != null) {
+				candidates.add(node);
+			}
+		}
+		candidates.addAll(seedNodes);
+		for (HostAndPort candidate : candidates) {
+			Jedis jedis = null;
+			Boolean error = true;
+			JedisPool pool = getPool(candidate);
+			try {
+				jedis = pool.getResource();
+				HostAndPort[] newSlots = new HostAndPort[SLOT_COUNT];
+				for (Object range : jedis.clusterSlots()) {
+					List<?> slotInfo = (List<?>) range;
+					int start = ((Long) slotInfo.get(0)).intValue();
+					int end = ((Long) slotInfo.get(1)).intValue();
+					HostAndPort master = toHostAndPort((List<?>) slotInfo.get(2));
+					for (int slot = start; slot <= end; slot++) {
+						newSlots[slot] = master;
+					}
+				}
+				error = false;
+				slots = newSlots;
+				if (log.isVerboseEnabled())
+					log.verbose("redis cluster slot map read from " + candidate);
+				return true;
+			} catch (Exception e) {
+				log.warning("Unable to read redis cluster slots from " + candidate + ": " + e.getMessage());
+			} finally {
+				if (jedis != null) {
+					if (error) {
+						pool.returnBrokenResource(jedis);
+					} else {
+						pool.returnResource(jedis);
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	public void destroy() {
+		for (JedisPool pool : nodes.values()) {
+			try {
+				pool.destroy();
+			} catch (Exception e) {
+				// Do nothing.
+			}
+		}
+		nodes.clear();
+	}
+
+	private static HostAndPort toHostAndPort(List<?> nodeInfo) {
+		String host = new String((byte[]) nodeInfo.get(0));
+		int port = ((Long) nodeInfo.get(1)).intValue();
+		return new HostAndPort(host, port);
+	}
+}
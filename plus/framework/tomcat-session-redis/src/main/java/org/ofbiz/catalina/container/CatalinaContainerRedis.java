@@ -188,6 +188,34 @@ public class CatalinaContainerRedis extends CatalinaContainer implements Contain
 				if (sentinelMaster != null) {
 					((RedisSessionManager) sessionMgr).setSentinelMaster(sentinelMaster);
 				}
+				String clusterNodes = ContainerConfig.getPropertyValue(clusterProp, "redis-clusterNodes", null);
+				if (clusterNodes != null && !"".equals(clusterNodes.trim())) {
+					((RedisSessionManager) sessionMgr).setClusterNodes(clusterNodes);
+				}
+				String sessionStorage = ContainerConfig.getPropertyValue(clusterProp, "redis-sessionStorage", null);
+				if (sessionStorage != null && !"".equals(sessionStorage.trim())) {
+					((RedisSessionManager) sessionMgr).setSessionStorage(sessionStorage);
+				}
+				String blobFormat = ContainerConfig.getPropertyValue(clusterProp, "redis-blobFormat", null);
+				if (blobFormat != null && !"".equals(blobFormat.trim())) {
+					((RedisSessionManager) sessionMgr).setBlobFormat(blobFormat);
+				}
+				int expireRefreshInterval = ContainerConfig.getPropertyValue(clusterProp, "redis-expireRefreshInterval", 0);
+				if (expireRefreshInterval > 0) {
+					((RedisSessionManager) sessionMgr).setExpireRefreshInterval(expireRefreshInterval);
+				}
+				int asyncSaveThreads = ContainerConfig.getPropertyValue(clusterProp, "redis-asyncSaveThreads", 0);
+				if (asyncSaveThreads > 0) {
+					((RedisSessionManager) sessionMgr).setAsyncSaveThreads(asyncSaveThreads);
+				}
+				int asyncSaveQueueSize = ContainerConfig.getPropertyValue(clusterProp, "redis-asyncSaveQueueSize", 0);
+				if (asyncSaveQueueSize > 0) {
+					((RedisSessionManager) sessionMgr).setAsyncSaveQueueSize(asyncSaveQueueSize);
+				}
+				int asyncSaveWaitTimeout = ContainerConfig.getPropertyValue(clusterProp, "redis-asyncSaveWaitTimeout", 0);
+				if (asyncSaveWaitTimeout > 0) {
+					((RedisSessionManager) sessionMgr).setAsyncSaveWaitTimeout(asyncSaveWaitTimeout);
+				}
 			}
 		} else {
 			if (clusterProp != null && contextIsDistributable) {
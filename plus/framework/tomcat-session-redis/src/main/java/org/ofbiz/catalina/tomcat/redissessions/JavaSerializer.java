@@ -4,18 +4,28 @@ import org.apache.catalina.util.CustomObjectInputStream;
 
 import javax.servlet.http.HttpSession;
 
-import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.Map;
 import java.io.*;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
 public class JavaSerializer implements Serializer {
+  /**
+   * First bytes of a session written by serializeFrom in the attribute
+   * format: the metadata and each attribute serialized on its own, so
+   * attributes are deserialized on first access. Sessions starting with the
+   * java serialization magic 0xACED hold all attributes in one stream, the
+   * format written otherwise and by older versions.
+   */
+  private static final short FORMAT_MAGIC = 0x5253;
+  /** version 1 had an unused attributes hash before the metadata */
+  private static final byte FORMAT_VERSION = 2;
+
   private ClassLoader loader;
 
+  private boolean attributeFormat = false;
+
   private final Log log = LogFactory.getLog(JavaSerializer.class);
 
   @Override
@@ -23,43 +33,103 @@ public class JavaSerializer implements Serializer {
     this.loader = loader;
   }
 
-  public byte[] attributesHashFrom(RedisSession session) throws IOException {
-    HashMap<String,Object> attributes = new HashMap<String,Object>();
-    for (Enumeration<String> enumerator = session.getAttributeNames(); enumerator.hasMoreElements();) {
-      String key = enumerator.nextElement();
-      attributes.put(key, session.getAttribute(key));
-    }
+  @Override
+  public void setAttributeFormat(boolean attributeFormat) {
+    this.attributeFormat = attributeFormat;
+  }
 
+  /**
+   * @param attributes
+   *          the serialized attributes, see RedisSession.serializeAttributes;
+   *          not used by the session format, its stream holds the values
+   */
+  @Override
+  public byte[] serializeFrom(RedisSession session, Map<String, byte[]> attributes) throws IOException {
     byte[] serialized = null;
 
+    if (!attributeFormat) {
+      try (
+           ByteArrayOutputStream bos = new ByteArrayOutputStream();
+           ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(bos));
+      ) {
+        // older versions read the metadata first
+        oos.writeObject(new SessionSerializationMetadata());
+        session.writeObjectData(oos);
+        oos.flush();
+        serialized = bos.toByteArray();
+      }
+      return serialized;
+    }
+
     try (
          ByteArrayOutputStream bos = new ByteArrayOutputStream();
-         ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(bos));
+         DataOutputStream out = new DataOutputStream(bos);
     ) {
-      oos.writeUnshared(attributes);
-      oos.flush();
+      out.writeShort(FORMAT_MAGIC);
+      out.writeByte(FORMAT_VERSION);
+      writeBytes(out, session.writeMetadata());
+      out.writeInt(attributes.size());
+      for (Map.Entry<String, byte[]> attribute : attributes.entrySet()) {
+        out.writeUTF(attribute.getKey());
+        writeBytes(out, attribute.getValue());
+      }
+      out.flush();
       serialized = bos.toByteArray();
     }
 
-    MessageDigest digester = null;
-    try {
-      digester = MessageDigest.getInstance("MD5");
-    } catch (NoSuchAlgorithmException e) {
-      log.error("Unable to get MessageDigest instance for MD5");
+    return serialized;
+  }
+
+  @Override
+  public void deserializeInto(byte[] data, RedisSession session) throws IOException, ClassNotFoundException {
+    if (data.length >= 2 && (short) ((data[0] & 0xFF) << 8 | data[1] & 0xFF) == FORMAT_MAGIC) {
+      try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+        in.readShort();
+        byte version = in.readByte();
+        if (version == 1) {
+          readBytes(in);
+        } else if (version != FORMAT_VERSION) {
+          throw new IOException("Unknown serialized session version " + version);
+        }
+        session.readMetadata(readBytes(in));
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+          String key = in.readUTF();
+          session.addSerializedAttribute(key, readBytes(in));
+        }
+      }
+      return;
+    }
+
+    try(
+        BufferedInputStream bis = new BufferedInputStream(new ByteArrayInputStream(data));
+        ObjectInputStream ois = new CustomObjectInputStream(bis, loader);
+    ) {
+      ois.readObject(); // SessionSerializationMetadata
+      session.readObjectData(ois);
     }
-    return digester.digest(serialized);
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
   }
 
   @Override
-  public byte[] serializeFrom(RedisSession session, SessionSerializationMetadata metadata) throws IOException {
+  public byte[] serializeAttribute(Object value) throws IOException {
     byte[] serialized = null;
 
     try (
          ByteArrayOutputStream bos = new ByteArrayOutputStream();
          ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(bos));
     ) {
-      oos.writeObject(metadata);
-      session.writeObjectData(oos);
+      oos.writeObject(value);
       oos.flush();
       serialized = bos.toByteArray();
     }
@@ -68,14 +138,12 @@ public class JavaSerializer implements Serializer {
   }
 
   @Override
-  public void deserializeInto(byte[] data, RedisSession session, SessionSerializationMetadata metadata) throws IOException, ClassNotFoundException {
+  public Object deserializeAttribute(byte[] data) throws IOException, ClassNotFoundException {
     try(
         BufferedInputStream bis = new BufferedInputStream(new ByteArrayInputStream(data));
         ObjectInputStream ois = new CustomObjectInputStream(bis, loader);
     ) {
-      SessionSerializationMetadata serializedMetadata = (SessionSerializationMetadata)ois.readObject();
-      metadata.copyFieldsFrom(serializedMetadata);
-      session.readObjectData(ois);
+      return ois.readObject();
     }
   }
 }
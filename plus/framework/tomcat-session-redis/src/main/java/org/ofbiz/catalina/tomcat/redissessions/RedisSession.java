@@ -3,7 +3,22 @@ package org.ofbiz.catalina.tomcat.redissessions;
 import java.security.Principal;
 import org.apache.catalina.Manager;
 import org.apache.catalina.session.StandardSession;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 
 import org.apache.juli.logging.Log;
@@ -14,6 +29,58 @@ public class RedisSession extends StandardSession {
 
   private final Log log = LogFactory.getLog(RedisSession.class);
 
+  /**
+   * Value of an attribute read from redis that is not deserialized yet, the
+   * first getAttribute deserializes it. Requests touching few attributes of a
+   * large session only pay for those.
+   */
+  static final class SerializedAttribute {
+    final byte[] data;
+
+    SerializedAttribute(byte[] data) {
+      this.data = data;
+    }
+
+    @Override
+    public String toString() {
+      return "SerializedAttribute[" + data.length + " bytes]";
+    }
+  }
+
+  /**
+   * A mutable attribute that counts its changes, such as a wrapper of an
+   * object the application changes in place: it is saved again only when its
+   * version differs from the one it had when read or stored.
+   */
+  public interface Versioned {
+    long getAttributeVersion();
+  }
+
+  /**
+   * An attribute as stored in redis: the instance that was deserialized from
+   * or written as data; data is null when not known, as for the attributes
+   * of a session stream.
+   */
+  static final class StoredAttribute {
+    final Object value;
+    final byte[] data;
+
+    StoredAttribute(Object value, byte[] data) {
+      this.value = value;
+      this.data = data;
+    }
+  }
+
+  /** types whose instances cannot change once stored, enums are immutable as serialized */
+  private static final Set<Class<?>> IMMUTABLE_TYPES = new HashSet<Class<?>>(Arrays.<Class<?>>asList(String.class,
+      Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class,
+      BigDecimal.class, BigInteger.class, Locale.class, UUID.class));
+
+  /** containers nested deeper are not fingerprinted, so cycles end */
+  private static final int MAX_FINGERPRINT_DEPTH = 8;
+
+  private static final byte METADATA_VERSION = 1;
+
   protected static Boolean manualDirtyTrackingSupportEnabled = false;
 
   public static void setManualDirtyTrackingSupportEnabled(Boolean enabled) {
@@ -28,8 +95,18 @@ public class RedisSession extends StandardSession {
 
 
   protected HashMap<String, Object> changedAttributes;
+  protected HashSet<String> removedAttributes;
   protected Boolean dirty;
 
+  /** the deserialized attributes as stored in redis, to tell which ones changed */
+  protected HashMap<String, StoredAttribute> storedAttributes = new HashMap<>();
+
+  /**
+   * the mutable attributes handed out since they were read, or set, with
+   * their fingerprint at that time; null when their state has none
+   */
+  protected HashMap<String, Long> accessedAttributes = new HashMap<>();
+
   public RedisSession(Manager manager) {
     super(manager);
     resetDirtyTracking();
@@ -43,11 +120,241 @@ public class RedisSession extends StandardSession {
     return changedAttributes;
   }
 
+  /** names of the attributes removed since the last save */
+  public HashSet<String> getRemovedAttributes() {
+    return removedAttributes;
+  }
+
   public void resetDirtyTracking() {
     changedAttributes = new HashMap<>();
+    removedAttributes = new HashSet<>();
     dirty = false;
   }
 
+  @Override
+  public Object getAttribute(String name) {
+    Object value = super.getAttribute(name);
+    if (value instanceof SerializedAttribute) {
+      value = deserializeAttribute(name, (SerializedAttribute) value);
+    }
+    if (value != null && !isImmutable(value) && !accessedAttributes.containsKey(name)) {
+      // the caller may change it in place from now on
+      accessedAttributes.put(name, fingerprint(value));
+    }
+    return value;
+  }
+
+  private Object deserializeAttribute(String name, SerializedAttribute serialized) {
+    Object value;
+    try {
+      value = ((RedisSessionManager)this.manager).deserializeAttribute(this, name, serialized.data);
+    } catch (IOException ex) {
+      // the stored value is kept
+      log.error("Error deserializing attribute " + name + " of session " + id + ": " + ex.getMessage());
+      return null;
+    }
+    if (attributes.get(name) == serialized) {
+      attributes.put(name, value);
+      storedAttributes.put(name, new StoredAttribute(value, serialized.data));
+    }
+    return value;
+  }
+
+  /** adds an attribute read from redis, deserialized on first access */
+  public void addSerializedAttribute(String name, byte[] data) {
+    attributes.put(name, new SerializedAttribute(data));
+  }
+
+  /**
+   * the stored value of an attribute that is not deserialized yet, null once
+   * it is deserialized or set
+   */
+  public byte[] getSerializedAttribute(String name) {
+    Object value = attributes.get(name);
+    return value instanceof SerializedAttribute ? ((SerializedAttribute) value).data : null;
+  }
+
+  /** true when the attribute is written to redis, as StandardSession.writeObject does */
+  public boolean isAttributeStorable(String name, Object value) {
+    return value != null && !exclude(name) && isAttributeDistributable(name, value);
+  }
+
+  /**
+   * Adds to changed the attributes written to redis that may differ from the
+   * stored ones, without serializing them. Attributes not deserialized, and
+   * the stored instances of immutable types, are unchanged; a stored mutable
+   * instance is unchanged when it was not handed out by getAttribute, or when
+   * its fingerprint is the one it had then. A stored attribute replaced by a
+   * value that is not written, not distributable or excluded, counts as
+   * removed.
+   */
+  public void findChangedAttributes(Set<String> changed) {
+    for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+      String name = entry.getKey();
+      Object value = entry.getValue();
+      if (value instanceof SerializedAttribute) {
+        continue;
+      }
+      if (!isAttributeStorable(name, value)) {
+        if (storedAttributes.containsKey(name)) {
+          removedAttributes.add(name);
+        }
+        continue;
+      }
+      StoredAttribute stored = storedAttributes.get(name);
+      if (stored == null || stored.value != value) {
+        changed.add(name);
+      } else if (!isImmutable(value) && accessedAttributes.containsKey(name)) {
+        Long accessed = accessedAttributes.get(name);
+        if (accessed == null || !accessed.equals(fingerprint(value))) {
+          changed.add(name);
+        }
+      }
+    }
+  }
+
+  /**
+   * The serialized value of the attributes written to redis, by name: of all
+   * of them, or of the changed ones only. Attributes not deserialized, and
+   * unchanged ones stored with known bytes, keep those bytes; the others are
+   * serialized.
+   *
+   * @param changed
+   *          as found by findChangedAttributes
+   */
+  public Map<String, byte[]> serializeAttributes(Serializer serializer, Set<String> changed, boolean all)
+      throws IOException {
+    Map<String, byte[]> serialized = new TreeMap<>();
+    for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+      String name = entry.getKey();
+      Object value = entry.getValue();
+      if (!all && !changed.contains(name)) {
+        continue;
+      }
+      if (value instanceof SerializedAttribute) {
+        serialized.put(name, ((SerializedAttribute) value).data);
+        continue;
+      }
+      if (!isAttributeStorable(name, value)) {
+        continue;
+      }
+      StoredAttribute stored = storedAttributes.get(name);
+      if (!changed.contains(name) && stored != null && stored.value == value && stored.data != null) {
+        serialized.put(name, stored.data);
+      } else {
+        serialized.put(name, serializer.serializeAttribute(value));
+      }
+    }
+    return serialized;
+  }
+
+  /**
+   * records the attributes read deserialized, from a session stream, as
+   * stored, so the unchanged ones do not make the session saved again
+   */
+  public void attributesRead() {
+    for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+      Object value = entry.getValue();
+      if (!(value instanceof SerializedAttribute) && isAttributeStorable(entry.getKey(), value)) {
+        storedAttributes.put(entry.getKey(), new StoredAttribute(value, null));
+      }
+    }
+  }
+
+  private static boolean isImmutable(Object value) {
+    return value instanceof Enum || IMMUTABLE_TYPES.contains(value.getClass());
+  }
+
+  /**
+   * The version of a Versioned value, or a hash of the state of a value whose
+   * state is all in the hash codes of its leaves: collections, maps (entity
+   * values are maps of their fields) and arrays of immutable values and dates.
+   * Null for other values, which count as changed once handed out.
+   */
+  static Long fingerprint(Object value) {
+    if (value instanceof Versioned) {
+      return ((Versioned) value).getAttributeVersion();
+    }
+    long[] hash = { 1 };
+    return addFingerprint(value, hash, 0) ? hash[0] : null;
+  }
+
+  private static boolean addFingerprint(Object value, long[] hash, int depth) {
+    if (value == null || isImmutable(value) || value instanceof Date) {
+      hash[0] = 31 * hash[0] + (value == null ? 0 : value.hashCode());
+      return true;
+    }
+    if (depth >= MAX_FINGERPRINT_DEPTH) {
+      return false;
+    }
+    if (value instanceof Map) {
+      hash[0] = 31 * hash[0] + ((Map<?, ?>) value).size();
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        if (!addFingerprint(entry.getKey(), hash, depth + 1) || !addFingerprint(entry.getValue(), hash, depth + 1)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (value instanceof Collection) {
+      hash[0] = 31 * hash[0] + ((Collection<?>) value).size();
+      for (Object element : (Collection<?>) value) {
+        if (!addFingerprint(element, hash, depth + 1)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (value instanceof Object[]) {
+      hash[0] = 31 * hash[0] + ((Object[]) value).length;
+      for (Object element : (Object[]) value) {
+        if (!addFingerprint(element, hash, depth + 1)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (value instanceof byte[]) {
+      hash[0] = 31 * hash[0] + Arrays.hashCode((byte[]) value);
+    } else if (value instanceof char[]) {
+      hash[0] = 31 * hash[0] + Arrays.hashCode((char[]) value);
+    } else if (value instanceof int[]) {
+      hash[0] = 31 * hash[0] + Arrays.hashCode((int[]) value);
+    } else if (value instanceof long[]) {
+      hash[0] = 31 * hash[0] + Arrays.hashCode((long[]) value);
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * records the attributes as stored, with their bytes when serialized or
+   * unchanged, and forgets the removed ones; call after they are written and
+   * before resetDirtyTracking. The mutable ones handed out, or set, are
+   * fingerprinted again, the request may still change them.
+   */
+  public void attributesStored(Map<String, byte[]> serialized, Set<String> changed) {
+    for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+      String name = entry.getKey();
+      Object value = entry.getValue();
+      if (value instanceof SerializedAttribute || !isAttributeStorable(name, value)) {
+        continue;
+      }
+      StoredAttribute stored = storedAttributes.get(name);
+      boolean same = stored != null && stored.value == value;
+      byte[] data = serialized.get(name);
+      if (data == null && same && !changed.contains(name)) {
+        data = stored.data;
+      }
+      storedAttributes.put(name, new StoredAttribute(value, data));
+      if (!isImmutable(value) && (!same || accessedAttributes.containsKey(name))) {
+        accessedAttributes.put(name, fingerprint(value));
+      }
+    }
+    storedAttributes.keySet().removeAll(removedAttributes);
+  }
+
   @Override
   public void setAttribute(String key, Object value) {
     if (manualDirtyTrackingSupportEnabled && manualDirtyTrackingAttributeKey.equals(key)) {
@@ -57,6 +364,10 @@ public class RedisSession extends StandardSession {
 
     Object oldValue = getAttribute(key);
     super.setAttribute(key, value);
+    accessedAttributes.remove(key);
+    if (value != null) {
+      removedAttributes.remove(key);
+    }
 
     if ( (value != null || oldValue != null)
          && ( value == null && oldValue != null
@@ -91,6 +402,19 @@ public class RedisSession extends StandardSession {
     }
   }
 
+  @Override
+  protected void removeAttributeInternal(String name, boolean notify) {
+    Object value = attributes.get(name);
+    if (notify && value instanceof SerializedAttribute) {
+      // listeners are passed the value
+      deserializeAttribute(name, (SerializedAttribute) value);
+    }
+    super.removeAttributeInternal(name, notify);
+    accessedAttributes.remove(name);
+    changedAttributes.remove(name);
+    removedAttributes.add(name);
+  }
+
   @Override
   public void setId(String id) {
     // Specifically do not call super(): it's implementation does unexpected things
@@ -105,8 +429,43 @@ public class RedisSession extends StandardSession {
     super.setPrincipal(principal);
   }
 
+  /** the session fields, without the attributes, as stored in the hash of the session */
+  public byte[] writeMetadata() throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(48);
+    DataOutputStream out = new DataOutputStream(bos);
+    out.writeByte(METADATA_VERSION);
+    out.writeLong(creationTime);
+    out.writeLong(lastAccessedTime);
+    out.writeInt(maxInactiveInterval);
+    out.writeBoolean(isNew);
+    out.writeBoolean(isValid);
+    out.writeLong(thisAccessedTime);
+    out.flush();
+    return bos.toByteArray();
+  }
+
+  public void readMetadata(byte[] data) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+    byte version = in.readByte();
+    if (version != METADATA_VERSION) {
+      throw new IOException("Unknown session metadata version " + version);
+    }
+    creationTime = in.readLong();
+    lastAccessedTime = in.readLong();
+    maxInactiveInterval = in.readInt();
+    isNew = in.readBoolean();
+    isValid = in.readBoolean();
+    thisAccessedTime = in.readLong();
+  }
+
   @Override
   public void writeObjectData(java.io.ObjectOutputStream out) throws IOException {
+    // the stream holds the values, StandardSession would skip the ones not deserialized yet
+    for (Map.Entry<String, Object> entry : new HashMap<>(attributes).entrySet()) {
+      if (entry.getValue() instanceof SerializedAttribute) {
+        deserializeAttribute(entry.getKey(), (SerializedAttribute) entry.getValue());
+      }
+    }
     super.writeObjectData(out);
     out.writeLong(this.getCreationTime());
   }
@@ -1,12 +1,29 @@
 package org.ofbiz.catalina.tomcat.redissessions;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.catalina.Lifecycle;
 import org.apache.catalina.LifecycleException;
@@ -19,12 +36,15 @@ import org.apache.catalina.session.ManagerBase;
 import org.apache.catalina.util.LifecycleSupport;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
+import org.ofbiz.base.redis.RedisClusterRouter;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
 import redis.clients.jedis.JedisSentinelPool;
 import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisDataException;
 import redis.clients.util.Pool;
 
 public class RedisSessionManager extends ManagerBase implements Lifecycle {
@@ -43,8 +63,79 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
 		}
 	}
 
+	/**
+	 * How a session is kept in redis: BLOB serializes the whole session into
+	 * one value, HASH keeps the metadata and each attribute in its own field of
+	 * a hash so a save only writes the changed attributes.
+	 */
+	enum SessionStorage {
+		BLOB, HASH;
+
+		static SessionStorage fromName(String name) {
+			for (SessionStorage storage : SessionStorage.values()) {
+				if (storage.name().equalsIgnoreCase(name)) {
+					return storage;
+				}
+			}
+			throw new IllegalArgumentException("Invalid session storage [" + name + "]. Must be one of "
+					+ Arrays.asList(SessionStorage.values()) + ".");
+		}
+	}
+
+	/**
+	 * How a blob session is written: SESSION as one java serialization stream
+	 * of the session, which every version reads; ATTRIBUTES with each attribute
+	 * serialized on its own, deserialized on first access, which nodes running
+	 * a version before it cannot read. Switch to ATTRIBUTES once all nodes read
+	 * it, and back to SESSION before a rollback.
+	 */
+	enum BlobFormat {
+		SESSION, ATTRIBUTES;
+
+		static BlobFormat fromName(String name) {
+			for (BlobFormat format : BlobFormat.values()) {
+				if (format.name().equalsIgnoreCase(name)) {
+					return format;
+				}
+			}
+			throw new IllegalArgumentException("Invalid blob format [" + name + "]. Must be one of "
+					+ Arrays.asList(BlobFormat.values()) + ".");
+		}
+	}
+
 	protected byte[] NULL_SESSION = "null".getBytes();
 
+	/** hash field of the session metadata, see RedisSession.writeMetadata */
+	protected static final byte[] METADATA_FIELD = "#meta".getBytes(StandardCharsets.UTF_8);
+
+	/** prefix of the hash fields of the attributes */
+	protected static final String ATTRIBUTE_FIELD_PREFIX = "a:";
+
+	private static final byte[] NX = "NX".getBytes();
+	private static final byte[] EX = "EX".getBytes();
+
+	/**
+	 * KEYS[1] session id, ARGV metadata field, metadata, seconds to expire;
+	 * returns 0 when the id is used
+	 */
+	private static final byte[] CREATE_HASH_SCRIPT = ("if redis.call('exists', KEYS[1]) == 1 then return 0 end\n"
+			+ "redis.call('hset', KEYS[1], ARGV[1], ARGV[2])\n"
+			+ "redis.call('expire', KEYS[1], ARGV[3])\n"
+			+ "return 1").getBytes();
+
+	/**
+	 * KEYS[1] session id, ARGV[1] seconds to expire, ARGV[2] number n of
+	 * fields to set, then n field/value pairs and the fields to delete; returns
+	 * 0 without writing when the session is gone (invalidated on another node
+	 * or expired)
+	 */
+	private static final byte[] UPDATE_HASH_SCRIPT = ("if redis.call('exists', KEYS[1]) == 0 then return 0 end\n"
+			+ "local n = tonumber(ARGV[2])\n"
+			+ "redis.call('hmset', KEYS[1], unpack(ARGV, 3, 2 + 2 * n))\n"
+			+ "if #ARGV > 2 + 2 * n then redis.call('hdel', KEYS[1], unpack(ARGV, 3 + 2 * n)) end\n"
+			+ "redis.call('expire', KEYS[1], ARGV[1])\n"
+			+ "return 1").getBytes();
+
 	private final Log log = LogFactory.getLog(RedisSessionManager.class);
 
 	protected String host = "localhost";
@@ -54,13 +145,14 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
 	protected int timeout = Protocol.DEFAULT_TIMEOUT;
 	protected String sentinelMaster = null;
 	Set<String> sentinelSet = null;
+	protected String clusterNodes = null;
 
 	protected Pool<Jedis> connectionPool;
+	protected RedisClusterRouter clusterRouter = null;
 	protected JedisPoolConfig connectionPoolConfig = new JedisPoolConfig();
 
 	protected RedisSessionHandlerValve handlerValve;
 	protected ThreadLocal<RedisSession> currentSession = new ThreadLocal<>();
-	protected ThreadLocal<SessionSerializationMetadata> currentSessionSerializationMetadata = new ThreadLocal<>();
 	protected ThreadLocal<String> currentSessionId = new ThreadLocal<>();
 	protected ThreadLocal<Boolean> currentSessionIsPersisted = new ThreadLocal<>();
 	protected Serializer serializer;
@@ -71,6 +163,25 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
 
 	protected EnumSet<SessionPersistPolicy> sessionPersistPoliciesSet = EnumSet.of(SessionPersistPolicy.DEFAULT);
 
+	protected SessionStorage sessionStorage = SessionStorage.BLOB;
+
+	protected BlobFormat blobFormat = BlobFormat.SESSION;
+
+	protected int expireRefreshInterval = 0;
+
+	/** when this node last set the expiry of a session, by id */
+	protected ConcurrentHashMap<String, Long> expireRefreshTimes = new ConcurrentHashMap<>();
+
+	protected int asyncSaveThreads = 0;
+	protected int asyncSaveQueueSize = 1000;
+	protected int asyncSaveWaitTimeout = 5000;
+
+	/** saves sessions after the request when asyncSaveThreads > 0 */
+	protected volatile ThreadPoolExecutor saveExecutor = null;
+
+	/** the last save queued for a session, by id; the lock of the next links */
+	protected final ConcurrentHashMap<String, SessionSave> pendingSaves = new ConcurrentHashMap<>();
+
 	/**
 	 * The lifecycle event support for this component.
 	 */
@@ -150,6 +261,89 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
 		return this.sessionPersistPoliciesSet.contains(SessionPersistPolicy.ALWAYS_SAVE_AFTER_REQUEST);
 	}
 
+	public String getSessionStorage() {
+		return sessionStorage.name();
+	}
+
+	/**
+	 * blob (default) or hash; sessions saved as a blob are read and rewritten
+	 * as a hash once hash storage is enabled, not the other way round
+	 */
+	public void setSessionStorage(String sessionStorage) {
+		this.sessionStorage = SessionStorage.fromName(sessionStorage.trim());
+	}
+
+	public boolean isHashStorage() {
+		return sessionStorage == SessionStorage.HASH;
+	}
+
+	public String getBlobFormat() {
+		return blobFormat.name();
+	}
+
+	/**
+	 * session (default) or attributes, see BlobFormat; both are read whatever
+	 * the setting
+	 */
+	public void setBlobFormat(String blobFormat) {
+		this.blobFormat = BlobFormat.fromName(blobFormat.trim());
+	}
+
+	public int getExpireRefreshInterval() {
+		return expireRefreshInterval;
+	}
+
+	/**
+	 * seconds between two refreshes of the expiry of an unchanged session by
+	 * this node, 0 (default) refreshes it after every request; the expiry is
+	 * extended by the interval so skipped refreshes never expire a session
+	 * before maxInactiveInterval
+	 */
+	public void setExpireRefreshInterval(int expireRefreshInterval) {
+		this.expireRefreshInterval = expireRefreshInterval;
+	}
+
+	public int getAsyncSaveThreads() {
+		return asyncSaveThreads;
+	}
+
+	/**
+	 * threads saving sessions after the request, 0 (default) saves them on
+	 * the request thread
+	 */
+	public void setAsyncSaveThreads(int asyncSaveThreads) {
+		this.asyncSaveThreads = asyncSaveThreads;
+	}
+
+	public int getAsyncSaveQueueSize() {
+		return asyncSaveQueueSize;
+	}
+
+	/**
+	 * saves waiting for a thread, a request finding the queue full saves its
+	 * session itself
+	 */
+	public void setAsyncSaveQueueSize(int asyncSaveQueueSize) {
+		this.asyncSaveQueueSize = asyncSaveQueueSize;
+	}
+
+	public int getAsyncSaveWaitTimeout() {
+		return asyncSaveWaitTimeout;
+	}
+
+	/**
+	 * milliseconds a request waits for the pending save of its session before
+	 * reading it
+	 */
+	public void setAsyncSaveWaitTimeout(int asyncSaveWaitTimeout) {
+		this.asyncSaveWaitTimeout = asyncSaveWaitTimeout;
+	}
+
+	/** seconds to expire set on the key of a session */
+	protected int getSessionExpire() {
+		return getMaxInactiveInterval() + expireRefreshInterval;
+	}
+
 	public String getSentinels() {
 		StringBuilder sentinels = new StringBuilder();
 		for (Iterator<String> iter = this.sentinelSet.iterator(); iter.hasNext();) {
@@ -182,6 +376,18 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
 		this.sentinelMaster = master;
 	}
 
+	public String getClusterNodes() {
+		return clusterNodes;
+	}
+
+	/**
+	 * comma separated host:port list of Redis Cluster nodes, enables cluster
+	 * mode; session keys are spread over the cluster by session id
+	 */
+	public void setClusterNodes(String clusterNodes) {
+		this.clusterNodes = clusterNodes;
+	}
+
 	@Override
 	public int getRejectedSessions() {
 		// Essentially do nothing.
@@ -193,16 +399,51 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
 	}
 
 	protected Jedis acquireConnection() {
-		Jedis jedis = connectionPool.getResource();
+		return acquireConnection((String) null);
+	}
+
+	/**
+	 * connection to the node serving key, any node when key is null
+	 */
+	protected Jedis acquireConnection(String key) {
+		if (clusterRouter != null) {
+			int slot = key != null ? RedisClusterRouter.getSlot(key) : 0;
+			return clusterRouter.getPool(slot).getResource();
+		}
+		return acquireConnection(connectionPool);
+	}
+
+	private Jedis acquireConnection(Pool<Jedis> pool) {
+		Jedis jedis = pool.getResource();
 
-		if (getDatabase() != 0) {
+		if (clusterRouter == null && getDatabase() != 0) {
 			jedis.select(getDatabase());
 		}
 
 		return jedis;
 	}
 
+	/**
+	 * the single pool, or the pools of all cluster masters
+	 */
+	protected Collection<? extends Pool<Jedis>> getMasterPools() {
+		if (clusterRouter != null) {
+			return clusterRouter.getMasterPools();
+		}
+		return Collections.singletonList(connectionPool);
+	}
+
 	protected void returnConnection(Jedis jedis, Boolean error) {
+		if (clusterRouter != null) {
+			if (error) {
+				clusterRouter.getPool(jedis).returnBrokenResource(jedis);
+				// may be a MOVED reply after resharding or failover
+				clusterRouter.refresh(false);
+			} else {
+				clusterRouter.getPool(jedis).returnResource(jedis);
+			}
+			return;
+		}
 		if (error) {
 			connectionPool.returnBrokenResource(jedis);
 		} else {
@@ -297,6 +538,20 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
 
 		initializeDatabaseConnection();
 
+		if (asyncSaveThreads > 0) {
+			final AtomicInteger threadCount = new AtomicInteger();
+			saveExecutor = new ThreadPoolExecutor(asyncSaveThreads, asyncSaveThreads, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(Math.max(1, asyncSaveQueueSize)), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable, "redis-session-save-" + threadCount.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			log.info("Will save sessions with " + asyncSaveThreads + " threads");
+		}
+
 		setDistributable(true);
 	}
 
@@ -316,8 +571,25 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
 
 		setState(LifecycleState.STOPPING);
 
+		if (saveExecutor != null) {
+			// the queued saves are still written
+			saveExecutor.shutdown();
+			try {
+				if (!saveExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+					log.warn("Sessions still being saved at stop: " + pendingSaves.keySet());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			saveExecutor = null;
+		}
+
 		try {
-			connectionPool.destroy();
+			if (clusterRouter != null) {
+				clusterRouter.destroy();
+			} else {
+				connectionPool.destroy();
+			}
 		} catch (Exception e) {
 			// Do nothing.
 		}
@@ -335,63 +607,50 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
 		Boolean error = true;
 		Jedis jedis = null;
 		try {
-			jedis = acquireConnection();
-
-			// Ensure generation of a unique session identifier.
 			if (null != requestedSessionId) {
 				sessionId = sessionIdWithJvmRoute(requestedSessionId, jvmRoute);
-				if (jedis.setnx(sessionId.getBytes(), NULL_SESSION) == 0L) {
-					sessionId = null;
-				}
 			} else {
-				do {
-					sessionId = sessionIdWithJvmRoute(generateSessionId(), jvmRoute);
-				} while (jedis.setnx(sessionId.getBytes(), NULL_SESSION) == 0L); // 1
-																					// =
-																					// key
-																					// set;
-																					// 0
-																					// =
-																					// key
-																					// already
-																					// existed
-			}
-
-			/*
-			 * Even though the key is set in Redis, we are not going to flag the
-			 * current thread as having had the session persisted since the
-			 * session isn't actually serialized to Redis yet. This ensures that
-			 * the save(session) at the end of the request will serialize the
-			 * session into Redis with 'set' instead of 'setnx'.
-			 */
-
-			error = false;
+				sessionId = sessionIdWithJvmRoute(generateSessionId(), jvmRoute);
+			}
 
-			if (null != sessionId) {
-				session = (RedisSession) createEmptySession();
-				session.setNew(true);
-				session.setValid(true);
-				session.setCreationTime(System.currentTimeMillis());
-				session.setMaxInactiveInterval(getMaxInactiveInterval());
+			session = (RedisSession) createEmptySession();
+			session.setNew(true);
+			session.setValid(true);
+			session.setCreationTime(System.currentTimeMillis());
+			session.setMaxInactiveInterval(getMaxInactiveInterval());
+			session.setId(sessionId);
+
+			// Ensure generation of a unique session identifier: the session is
+			// written only when its id is not used
+			jedis = acquireConnection(sessionId);
+			while (!storeNewSession(jedis, session)) {
+				// the next id may live on another cluster node
+				returnConnection(jedis, false);
+				jedis = null;
+				if (null != requestedSessionId) {
+					sessionId = null;
+					session = null;
+					break;
+				}
+				sessionId = sessionIdWithJvmRoute(generateSessionId(), jvmRoute);
 				session.setId(sessionId);
-				session.tellNew();
+				jedis = acquireConnection(sessionId);
 			}
 
+			error = false;
+
 			currentSession.set(session);
 			currentSessionId.set(sessionId);
-			currentSessionIsPersisted.set(false);
-			currentSessionSerializationMetadata.set(new SessionSerializationMetadata());
+			currentSessionIsPersisted.set(null != session);
 
 			if (null != session) {
-				try {
-					error = saveInternal(jedis, session, true);
-				} catch (IOException ex) {
-					log.error("Error saving newly created session: " + ex.getMessage());
-					currentSession.set(null);
-					currentSessionId.set(null);
-					session = null;
-				}
+				session.tellNew();
 			}
+		} catch (IOException ex) {
+			log.error("Error saving newly created session: " + ex.getMessage());
+			currentSession.set(null);
+			currentSessionId.set(null);
+			session = null;
 		} finally {
 			if (jedis != null) {
 				returnConnection(jedis, error);
@@ -401,6 +660,27 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
 		return session;
 	}
 
+	/**
+	 * Writes a new session with its expiry in one round trip, unless its id is
+	 * used: SET NX EX for a blob, CREATE_HASH_SCRIPT for a hash.
+	 */
+	private boolean storeNewSession(Jedis jedis, RedisSession session) throws IOException {
+		byte[] binaryId = session.getId().getBytes();
+		boolean stored;
+		if (isHashStorage()) {
+			Object result = jedis.eval(CREATE_HASH_SCRIPT, Collections.singletonList(binaryId),
+					Arrays.asList(METADATA_FIELD, session.writeMetadata(), String.valueOf(getSessionExpire()).getBytes()));
+			stored = Long.valueOf(1).equals(result);
+		} else {
+			byte[] data = serializer.serializeFrom(session, Collections.<String, byte[]> emptyMap());
+			stored = "OK".equals(jedis.set(binaryId, data, NX, EX, getSessionExpire()));
+		}
+		if (stored) {
+			expireRefreshed(session.getId());
+		}
+		return stored;
+	}
+
 	private String sessionIdWithJvmRoute(String sessionId, String jvmRoute) {
 		if (jvmRoute != null) {
 			String jvmRoutePrefix = '.' + jvmRoute;
@@ -431,23 +711,31 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
 		if (null == id) {
 			currentSessionIsPersisted.set(false);
 			currentSession.set(null);
-			currentSessionSerializationMetadata.set(null);
 			currentSessionId.set(null);
 		} else if (id.equals(currentSessionId.get())) {
 			session = currentSession.get();
 		} else {
-			byte[] data = loadSessionDataFromRedis(id);
-			if (data != null) {
-				DeserializedSessionContainer container = sessionFromSerializedData(id, data);
+			// read the writes of the previous request
+			awaitPendingSave(id);
+
+			DeserializedSessionContainer container = null;
+			if (isHashStorage()) {
+				container = loadSessionFromHash(id);
+			} else {
+				byte[] data = loadSessionDataFromRedis(id);
+				if (data != null) {
+					container = sessionFromSerializedData(id, data);
+				}
+			}
+			if (container != null) {
 				session = container.session;
 				currentSession.set(session);
-				currentSessionSerializationMetadata.set(container.metadata);
-				currentSessionIsPersisted.set(true);
+				// a blob read with hash storage is written again in full
+				currentSessionIsPersisted.set(!isHashStorage() || container.hashStored);
 				currentSessionId.set(id);
 			} else {
 				currentSessionIsPersisted.set(false);
 				currentSession.set(null);
-				currentSessionSerializationMetadata.set(null);
 				currentSessionId.set(null);
 			}
 		}
@@ -456,47 +744,55 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
 	}
 
 	public void clear() {
-		Jedis jedis = null;
-		Boolean error = true;
-		try {
-			jedis = acquireConnection();
-			jedis.flushDB();
-			error = false;
-		} finally {
-			if (jedis != null) {
-				returnConnection(jedis, error);
+		for (Pool<Jedis> pool : getMasterPools()) {
+			Jedis jedis = null;
+			Boolean error = true;
+			try {
+				jedis = acquireConnection(pool);
+				jedis.flushDB();
+				error = false;
+			} finally {
+				if (jedis != null) {
+					returnConnection(jedis, error);
+				}
 			}
 		}
 	}
 
 	public int getSize() throws IOException {
-		Jedis jedis = null;
-		Boolean error = true;
-		try {
-			jedis = acquireConnection();
-			int size = jedis.dbSize().intValue();
-			error = false;
-			return size;
-		} finally {
-			if (jedis != null) {
-				returnConnection(jedis, error);
+		int size = 0;
+		for (Pool<Jedis> pool : getMasterPools()) {
+			Jedis jedis = null;
+			Boolean error = true;
+			try {
+				jedis = acquireConnection(pool);
+				size += jedis.dbSize().intValue();
+				error = false;
+			} finally {
+				if (jedis != null) {
+					returnConnection(jedis, error);
+				}
 			}
 		}
+		return size;
 	}
 
 	public String[] keys() throws IOException {
-		Jedis jedis = null;
-		Boolean error = true;
-		try {
-			jedis = acquireConnection();
-			Set<String> keySet = jedis.keys("*");
-			error = false;
-			return keySet.toArray(new String[keySet.size()]);
-		} finally {
-			if (jedis != null) {
-				returnConnection(jedis, error);
+		Set<String> keySet = new HashSet<String>();
+		for (Pool<Jedis> pool : getMasterPools()) {
+			Jedis jedis = null;
+			Boolean error = true;
+			try {
+				jedis = acquireConnection(pool);
+				keySet.addAll(jedis.keys("*"));
+				error = false;
+			} finally {
+				if (jedis != null) {
+					returnConnection(jedis, error);
+				}
 			}
 		}
+		return keySet.toArray(new String[keySet.size()]);
 	}
 
 	public byte[] loadSessionDataFromRedis(String id) throws IOException {
@@ -506,7 +802,7 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
 		try {
 			log.trace("Attempting to load session " + id + " from Redis");
 
-			jedis = acquireConnection();
+			jedis = acquireConnection(id);
 			byte[] data = jedis.get(id.getBytes());
 			error = false;
 
@@ -531,12 +827,13 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
 		}
 
 		RedisSession session = null;
-		SessionSerializationMetadata metadata = new SessionSerializationMetadata();
 
 		try {
 			session = (RedisSession) createEmptySession();
 
-			serializer.deserializeInto(data, session, metadata);
+			serializer.deserializeInto(data, session);
+			// attributes of a session stream are read deserialized
+			session.attributesRead();
 
 			session.setId(id);
 			session.setNew(false);
@@ -557,7 +854,90 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
 			throw new IOException("Unable to deserialize into session", ex);
 		}
 
-		return new DeserializedSessionContainer(session, metadata);
+		return new DeserializedSessionContainer(session);
+	}
+
+	/**
+	 * Reads a session stored as a hash with one HGETALL, the attribute values
+	 * are deserialized on first access, see RedisSession.getAttribute. A
+	 * session still stored as a blob is read as such.
+	 */
+	public DeserializedSessionContainer loadSessionFromHash(String id) throws IOException {
+		Jedis jedis = null;
+		Boolean error = true;
+		Map<byte[], byte[]> fields = null;
+		boolean blob = false;
+
+		try {
+			log.trace("Attempting to load session " + id + " from Redis");
+
+			jedis = acquireConnection(id);
+			try {
+				fields = jedis.hgetAll(id.getBytes());
+			} catch (JedisDataException e) {
+				// WRONGTYPE, saved before hash storage was enabled
+				blob = true;
+			}
+			error = false;
+		} finally {
+			if (jedis != null) {
+				returnConnection(jedis, error);
+			}
+		}
+
+		if (blob) {
+			byte[] data = loadSessionDataFromRedis(id);
+			return data != null ? sessionFromSerializedData(id, data) : null;
+		}
+		byte[] metadata = null;
+		Map<String, byte[]> attributes = new HashMap<>();
+		for (Map.Entry<byte[], byte[]> field : fields.entrySet()) {
+			String fieldName = new String(field.getKey(), StandardCharsets.UTF_8);
+			if (fieldName.startsWith(ATTRIBUTE_FIELD_PREFIX)) {
+				attributes.put(fieldName.substring(ATTRIBUTE_FIELD_PREFIX.length()), field.getValue());
+			} else if (Arrays.equals(METADATA_FIELD, field.getKey())) {
+				metadata = field.getValue();
+			}
+		}
+		if (metadata == null) {
+			log.trace("Session " + id + " not found in Redis");
+			return null;
+		}
+		if (Arrays.equals(NULL_SESSION, metadata)) {
+			log.error("Encountered serialized session " + id + " with data equal to NULL_SESSION. This is a bug.");
+			throw new IOException("Serialized session data was equal to NULL_SESSION");
+		}
+
+		RedisSession session = (RedisSession) createEmptySession();
+		session.readMetadata(metadata);
+		for (Map.Entry<String, byte[]> attribute : attributes.entrySet()) {
+			session.addSerializedAttribute(attribute.getKey(), attribute.getValue());
+		}
+
+		session.setId(id);
+		session.setNew(false);
+		session.setMaxInactiveInterval(getMaxInactiveInterval());
+		session.access();
+		session.setValid(true);
+		session.resetDirtyTracking();
+
+		return new DeserializedSessionContainer(session, true);
+	}
+
+	/**
+	 * deserializes an attribute as read from redis, on the first access to it
+	 */
+	public Object deserializeAttribute(RedisSession session, String name, byte[] data) throws IOException {
+		try {
+			return serializer.deserializeAttribute(data);
+		} catch (ClassNotFoundException ex) {
+			log.fatal("Unable to deserialize session attribute " + name, ex);
+			throw new IOException("Unable to deserialize session attribute " + name, ex);
+		}
+	}
+
+	private static byte[] attributeField(String name) {
+		return (ATTRIBUTE_FIELD_PREFIX + name).getBytes(StandardCharsets.UTF_8);
 	}
 
 	public void save(Session session) throws IOException {
@@ -569,7 +949,7 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
 		Boolean error = true;
 
 		try {
-			jedis = acquireConnection();
+			jedis = acquireConnection(session.getId());
 			error = saveInternal(jedis, session, forceSave);
 		} catch (IOException e) {
 			throw e;
@@ -596,39 +976,16 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
 				}
 			}
 
-			byte[] binaryId = redisSession.getId().getBytes();
-
-			Boolean isCurrentSessionPersisted;
-			SessionSerializationMetadata sessionSerializationMetadata = currentSessionSerializationMetadata.get();
-			byte[] originalSessionAttributesHash = sessionSerializationMetadata.getSessionAttributesHash();
-			byte[] sessionAttributesHash = null;
-			if (forceSave || redisSession.isDirty()
-					|| null == (isCurrentSessionPersisted = this.currentSessionIsPersisted.get())
-					|| !isCurrentSessionPersisted || !Arrays.equals(originalSessionAttributesHash,
-							(sessionAttributesHash = serializer.attributesHashFrom(redisSession)))) {
-
-				log.trace("Save was determined to be necessary");
-
-				if (null == sessionAttributesHash) {
-					sessionAttributesHash = serializer.attributesHashFrom(redisSession);
-				}
-
-				SessionSerializationMetadata updatedSerializationMetadata = new SessionSerializationMetadata();
-				updatedSerializationMetadata.setSessionAttributesHash(sessionAttributesHash);
-
-				jedis.set(binaryId, serializer.serializeFrom(redisSession, updatedSerializationMetadata));
-
+			SessionWrite write = prepareSave(redisSession, forceSave);
+			if (write == null) {
+				log.trace("Save was determined to be unnecessary");
+				refreshExpire(jedis, redisSession.getId());
+			} else if (writeSave(jedis, write)) {
+				redisSession.attributesStored(write.attributes, write.changedAttributes);
 				redisSession.resetDirtyTracking();
-				currentSessionSerializationMetadata.set(updatedSerializationMetadata);
 				currentSessionIsPersisted.set(true);
-			} else {
-				log.trace("Save was determined to be unnecessary");
 			}
 
-			log.trace(
-					"Setting expire timeout on session [" + redisSession.getId() + "] to " + getMaxInactiveInterval());
-			jedis.expire(binaryId, getMaxInactiveInterval());
-
 			error = false;
 
 			return error;
@@ -641,6 +998,158 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
 		}
 	}
 
+	/**
+	 * A save prepared from a session by prepareSave. It holds the serialized
+	 * session, or the serialized fields, and no reference to the session, so
+	 * a save thread can write it while the session is used on.
+	 */
+	protected static final class SessionWrite {
+		final String id;
+
+		/** the serialized attributes and the changed ones, see RedisSession.attributesStored */
+		final Map<String, byte[]> attributes;
+		final Set<String> changedAttributes;
+
+		/** the session of blob storage, null for hash storage */
+		final byte[] data;
+
+		/** the fields to set and the attributes to remove of hash storage */
+		final Map<byte[], byte[]> fields;
+		final List<String> removed;
+		final boolean full;
+
+		SessionWrite(String id, Map<String, byte[]> attributes, Set<String> changedAttributes, byte[] data) {
+			this(id, attributes, changedAttributes, data, null, null, true);
+		}
+
+		SessionWrite(String id, Map<String, byte[]> attributes, Set<String> changedAttributes,
+				Map<byte[], byte[]> fields, List<String> removed, boolean full) {
+			this(id, attributes, changedAttributes, null, fields, removed, full);
+		}
+
+		private SessionWrite(String id, Map<String, byte[]> attributes, Set<String> changedAttributes, byte[] data,
+				Map<byte[], byte[]> fields, List<String> removed, boolean full) {
+			this.id = id;
+			this.attributes = attributes;
+			this.changedAttributes = changedAttributes;
+			this.data = data;
+			this.fields = fields;
+			this.removed = removed;
+			this.full = full;
+		}
+	}
+
+	/**
+	 * Finds what changed in a session since it was read or saved and
+	 * serializes what is to be written, on the thread using the session: null
+	 * when it is unchanged and only its expiry is to be refreshed. Changed
+	 * attributes are found without serializing them, see
+	 * RedisSession.findChangedAttributes. A blob is written whole; a hash gets
+	 * the metadata and the changed attributes and loses the fields of the
+	 * removed ones, attributes not read are left as they are. A session not
+	 * stored as a hash yet is written in full.
+	 */
+	protected SessionWrite prepareSave(RedisSession session, boolean forceSave) throws IOException {
+		Boolean isCurrentSessionPersisted = this.currentSessionIsPersisted.get();
+		boolean full = null == isCurrentSessionPersisted || !isCurrentSessionPersisted;
+
+		Set<String> changedAttributes = new HashSet<>();
+		session.findChangedAttributes(changedAttributes);
+
+		if (!isHashStorage()) {
+			if (!full && !forceSave && !session.isDirty() && changedAttributes.isEmpty()) {
+				return null;
+			}
+			log.trace("Save was determined to be necessary");
+
+			// the session format writes the attribute values in its stream
+			Map<String, byte[]> attributes = blobFormat == BlobFormat.ATTRIBUTES
+					? session.serializeAttributes(serializer, changedAttributes, true)
+					: Collections.<String, byte[]> emptyMap();
+			return new SessionWrite(session.getId(), attributes, changedAttributes,
+					serializer.serializeFrom(session, attributes));
+		}
+
+		Map<String, byte[]> attributes = session.serializeAttributes(serializer, changedAttributes, full);
+		List<String> removed = new ArrayList<>(session.getRemovedAttributes());
+		if (!full && !forceSave && !session.isDirty() && attributes.isEmpty() && removed.isEmpty()) {
+			return null;
+		}
+
+		log.trace("Saving " + attributes.size() + " attributes and removing " + removed.size()
+				+ " attributes of session [" + session.getId() + "]");
+
+		Map<byte[], byte[]> fields = new HashMap<>();
+		for (Map.Entry<String, byte[]> entry : attributes.entrySet()) {
+			fields.put(attributeField(entry.getKey()), entry.getValue());
+		}
+		fields.put(METADATA_FIELD, session.writeMetadata());
+		return new SessionWrite(session.getId(), attributes, changedAttributes, fields, removed, full);
+	}
+
+	/**
+	 * Writes a prepared save with its expiry in one round trip: SETEX for a
+	 * blob; for a hash a transaction replacing the key when written in full,
+	 * UPDATE_HASH_SCRIPT otherwise, which only writes while the session exists
+	 * so a session deleted meanwhile is not recreated in part. False when the
+	 * session was not written.
+	 */
+	protected boolean writeSave(Jedis jedis, SessionWrite write) {
+		byte[] binaryId = write.id.getBytes();
+		if (write.data != null) {
+			jedis.setex(binaryId, getSessionExpire(), write.data);
+		} else if (write.full) {
+			// replaces the NULL_SESSION placeholder or the blob
+			Transaction transaction = jedis.multi();
+			transaction.del(binaryId);
+			transaction.hmset(binaryId, write.fields);
+			transaction.expire(binaryId, getSessionExpire());
+			transaction.exec();
+		} else {
+			List<byte[]> args = new ArrayList<>(2 + write.fields.size() * 2 + write.removed.size());
+			args.add(String.valueOf(getSessionExpire()).getBytes());
+			args.add(String.valueOf(write.fields.size()).getBytes());
+			for (Map.Entry<byte[], byte[]> field : write.fields.entrySet()) {
+				args.add(field.getKey());
+				args.add(field.getValue());
+			}
+			for (String name : write.removed) {
+				args.add(attributeField(name));
+			}
+			Object result = jedis.eval(UPDATE_HASH_SCRIPT, Collections.singletonList(binaryId), args);
+			if (!Long.valueOf(1).equals(result)) {
+				log.debug("Session [" + write.id + "] is no longer in Redis, not saved");
+				expireRefreshTimes.remove(write.id);
+				return false;
+			}
+		}
+		expireRefreshed(write.id);
+		return true;
+	}
+
+	/**
+	 * refreshes the expiry of an unchanged session, at most once per
+	 * expireRefreshInterval by this node
+	 */
+	private void refreshExpire(Jedis jedis, String id) {
+		if (expireRefreshInterval > 0) {
+			Long refreshed = expireRefreshTimes.get(id);
+			if (refreshed != null && System.currentTimeMillis() - refreshed < expireRefreshInterval * 1000L) {
+				log.trace("Expire timeout on session [" + id + "] was refreshed recently");
+				return;
+			}
+		}
+		log.trace("Setting expire timeout on session [" + id + "] to " + getSessionExpire());
+		jedis.expire(id.getBytes(), getSessionExpire());
+		expireRefreshed(id);
+	}
+
+	private void expireRefreshed(String id) {
+		if (expireRefreshInterval > 0) {
+			expireRefreshTimes.put(id, System.currentTimeMillis());
+		}
+	}
+
 	@Override
 	public void remove(Session session) {
 		remove(session, false);
@@ -648,14 +1157,19 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
 
 	@Override
 	public void remove(Session session, boolean update) {
+		remove(session.getId());
+	}
+
+	private void remove(String id) {
 		Jedis jedis = null;
 		Boolean error = true;
 
-		log.trace("Removing session ID : " + session.getId());
+		log.trace("Removing session ID : " + id);
 
 		try {
-			jedis = acquireConnection();
-			jedis.del(session.getId());
+			jedis = acquireConnection(id);
+			jedis.del(id);
+			expireRefreshTimes.remove(id);
 			error = false;
 		} finally {
 			if (jedis != null) {
@@ -668,15 +1182,15 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
 		RedisSession redisSession = currentSession.get();
 		if (redisSession != null) {
 			try {
-				if (redisSession.isValid()) {
-					log.trace("Request with session completed, saving session " + redisSession.getId());
-					save(redisSession, getAlwaysSaveAfterRequest());
+				if (saveExecutor != null) {
+					log.trace("Request with session completed, queueing save of session " + redisSession.getIdInternal());
+					Runnable task = afterRequestTask(redisSession);
+					if (task != null) {
+						queueSave(new SessionSave(redisSession.getIdInternal(), task));
+					}
 				} else {
-					log.trace("HTTP Session has been invalidated, removing :" + redisSession.getId());
-					remove(redisSession);
+					saveOrRemove(redisSession);
 				}
-			} catch (Exception e) {
-				log.error("Error storing/removing session", e);
 			} finally {
 				currentSession.remove();
 				currentSessionId.remove();
@@ -686,17 +1200,187 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
 		}
 	}
 
+	private void saveOrRemove(RedisSession redisSession) {
+		try {
+			if (redisSession.isValid()) {
+				log.trace("Request with session completed, saving session " + redisSession.getId());
+				save(redisSession, getAlwaysSaveAfterRequest());
+			} else {
+				log.trace("HTTP Session has been invalidated, removing :" + redisSession.getId());
+				remove(redisSession);
+			}
+		} catch (Exception e) {
+			log.error("Error storing/removing session", e);
+		}
+	}
+
+	/**
+	 * saveOrRemove for a save thread: the session is serialized here, on the
+	 * request thread, and the task only writes; null when it cannot be
+	 * serialized
+	 */
+	private Runnable afterRequestTask(RedisSession redisSession) {
+		final String id = redisSession.getIdInternal();
+		if (!redisSession.isValid()) {
+			log.trace("HTTP Session has been invalidated, removing :" + id);
+			return new Runnable() {
+				@Override
+				public void run() {
+					try {
+						remove(id);
+					} catch (Exception e) {
+						log.error("Error storing/removing session", e);
+					}
+				}
+			};
+		}
+
+		final SessionWrite write;
+		try {
+			write = prepareSave(redisSession, getAlwaysSaveAfterRequest());
+		} catch (Exception e) {
+			log.error("Error storing/removing session", e);
+			return null;
+		}
+		return new Runnable() {
+			@Override
+			public void run() {
+				Jedis jedis = null;
+				Boolean error = true;
+				try {
+					jedis = acquireConnection(id);
+					if (write == null) {
+						refreshExpire(jedis, id);
+					} else {
+						writeSave(jedis, write);
+					}
+					error = false;
+				} catch (Exception e) {
+					log.error("Error storing/removing session", e);
+				} finally {
+					if (jedis != null) {
+						returnConnection(jedis, error);
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * The save of a session after a request, run by saveExecutor. The saves of
+	 * one session run one after the other in request order: a save queued
+	 * while the previous one is pending is run when that one is done.
+	 */
+	protected final class SessionSave extends FutureTask<Void> {
+		private final String id;
+
+		/** guarded by pendingSaves */
+		private SessionSave next = null;
+
+		SessionSave(String id, Runnable task) {
+			super(task, null);
+			this.id = id;
+		}
+
+		@Override
+		protected void done() {
+			SessionSave next;
+			synchronized (pendingSaves) {
+				next = this.next;
+				if (next == null) {
+					pendingSaves.remove(id, this);
+				}
+			}
+			if (next != null) {
+				executeSave(next);
+			}
+		}
+	}
+
+	private void queueSave(SessionSave save) {
+		synchronized (pendingSaves) {
+			SessionSave last = pendingSaves.put(save.id, save);
+			if (last != null && !last.isDone()) {
+				last.next = save;
+				return;
+			}
+		}
+		executeSave(save);
+	}
+
+	private void executeSave(SessionSave save) {
+		ThreadPoolExecutor executor = saveExecutor;
+		if (executor != null) {
+			try {
+				executor.execute(save);
+				return;
+			} catch (RejectedExecutionException e) {
+				// queue full or stopping
+			}
+		}
+		save.run();
+	}
+
+	/**
+	 * waits for the saves queued for a session, so a request reads what the
+	 * previous requests wrote; at most asyncSaveWaitTimeout milliseconds,
+	 * after which the session is read as it is
+	 */
+	protected void awaitPendingSave(String id) {
+		SessionSave save = pendingSaves.get(id);
+		if (save != null) {
+			log.trace("Waiting for the pending save of session " + id);
+			try {
+				save.get(asyncSaveWaitTimeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				log.error("Error saving session " + id, e.getCause());
+			} catch (TimeoutException e) {
+				log.warn("Save of session " + id + " still pending after " + asyncSaveWaitTimeout
+						+ " ms, reading it without that save");
+			}
+		}
+	}
+
 	@Override
 	public void processExpires() {
 		// We are going to use Redis's ability to expire keys for session
 		// expiration.
 
-		// Do nothing.
+		// Only forget the expiry refreshes that are due anyway.
+		if (expireRefreshInterval > 0) {
+			long due = System.currentTimeMillis() - expireRefreshInterval * 1000L;
+			for (Iterator<Long> iter = expireRefreshTimes.values().iterator(); iter.hasNext();) {
+				if (iter.next() < due) {
+					iter.remove();
+				}
+			}
+		}
 	}
 
 	private void initializeDatabaseConnection() throws LifecycleException {
 		try {
-			if (getSentinelMaster() != null) {
+			if (getClusterNodes() != null && !"".equals(getClusterNodes().trim())) {
+				clusterRouter = new RedisClusterRouter(getClusterNodes(), this.connectionPoolConfig, getTimeout(),
+						getPassword(), new RedisClusterRouter.Log() {
+							@Override
+							public boolean isVerboseEnabled() {
+								return log.isTraceEnabled();
+							}
+
+							@Override
+							public void verbose(String message) {
+								log.trace(message);
+							}
+
+							@Override
+							public void warning(String message) {
+								log.warn(message);
+							}
+						});
+				clusterRouter.initialize();
+			} else if (getSentinelMaster() != null) {
 				Set<String> sentinelSet = getSentinelSet();
 				if (sentinelSet != null && sentinelSet.size() > 0) {
 					connectionPool = new JedisSentinelPool(getSentinelMaster(), sentinelSet, this.connectionPoolConfig,
@@ -731,6 +1415,7 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
 			classLoader = loader.getClassLoader();
 		}
 		serializer.setClassLoader(classLoader);
+		serializer.setAttributeFormat(blobFormat == BlobFormat.ATTRIBUTES);
 	}
 
 	// Connection Pool Config Accessors
@@ -886,10 +1571,15 @@ public class RedisSessionManager extends ManagerBase implements Lifecycle {
 
 class DeserializedSessionContainer {
 	public final RedisSession session;
-	public final SessionSerializationMetadata metadata;
+	/** read from a hash, see RedisSessionManager.loadSessionFromHash */
+	public final boolean hashStored;
+
+	public DeserializedSessionContainer(RedisSession session) {
+		this(session, false);
+	}
 
-	public DeserializedSessionContainer(RedisSession session, SessionSerializationMetadata metadata) {
+	public DeserializedSessionContainer(RedisSession session, boolean hashStored) {
 		this.session = session;
-		this.metadata = metadata;
+		this.hashStored = hashStored;
 	}
 }
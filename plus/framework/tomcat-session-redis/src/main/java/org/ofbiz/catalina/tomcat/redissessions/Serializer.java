@@ -2,11 +2,20 @@ package org.ofbiz.catalina.tomcat.redissessions;
 
 import javax.servlet.http.HttpSession;
 import java.io.IOException;
+import java.util.Map;
 
 public interface Serializer {
   void setClassLoader(ClassLoader loader);
 
-  byte[] attributesHashFrom(RedisSession session) throws IOException;
-  byte[] serializeFrom(RedisSession session, SessionSerializationMetadata metadata) throws IOException;
-  void deserializeInto(byte[] data, RedisSession session, SessionSerializationMetadata metadata) throws IOException, ClassNotFoundException;
+  /**
+   * true to write sessions with serializeFrom in a format with each attribute
+   * serialized on its own, false for the session stream older versions read
+   */
+  void setAttributeFormat(boolean attributeFormat);
+
+  byte[] serializeFrom(RedisSession session, Map<String, byte[]> attributes) throws IOException;
+  void deserializeInto(byte[] data, RedisSession session) throws IOException, ClassNotFoundException;
+
+  byte[] serializeAttribute(Object value) throws IOException;
+  Object deserializeAttribute(byte[] data) throws IOException, ClassNotFoundException;
 }
@@ -3,6 +3,12 @@ package org.ofbiz.catalina.tomcat.redissessions;
 import java.io.*;
 
 
+/**
+ * First object of a session written as a java serialization stream, see
+ * JavaSerializer. Nothing reads its hash any more, it is written for the
+ * versions that expect it; its members are kept as they are, they make the
+ * serialVersionUID those versions check.
+ */
 public class SessionSerializationMetadata implements Serializable {
 
   private byte[] sessionAttributesHash;